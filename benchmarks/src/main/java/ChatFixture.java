@@ -0,0 +1,112 @@
+/**
+ * ChatFixture.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import lsb.bench.Fixtures;
+
+/**
+ * two Managers in this process, one listening and one connected to it,
+ * exactly as two users would connect. the listening side sends back every
+ * message it receives, so a round trip covers encrypting, framing, the
+ * socket, the receive pipeline and decrypting, both ways.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class ChatFixture implements Fixtures.Chat
+{
+    private Manager echo;
+    private Manager user;
+    private Screen  screen;  // what the user sees
+    private String  message;
+
+    public void open ( int size ) throws Exception
+    {
+        int port;
+
+        try ( ServerSocket probe = new ServerSocket ( 0 ) ) {
+            port = probe.getLocalPort ( );
+        }
+        echo = new Manager ( );
+        user = new Manager ( );
+        Screen echoScreen = new Screen ( echo, true );
+        screen = new Screen ( user, false );
+        echo.setListener ( echoScreen );
+        user.setListener ( screen );
+
+        echo.sendInput ( "/listen " + port );
+        for ( int tries = 1; !user.sendInput ( "/connect 127.0.0.1 " + port ); tries++ ) {
+            if ( tries == 100 ) throw new IllegalStateException ( "could not connect on port " + port );
+            Thread.sleep ( 10 ); // until the listening side is up
+        }
+        echoScreen.connected.await ( );
+
+        char[] text = new char [ size ];
+
+        Arrays.fill ( text, 'x' );
+        message = new String ( text );
+    }
+
+    public String roundTrip ( ) throws Exception
+    {
+        user.sendInput ( message );
+
+        return screen.incoming.take ( );
+    }
+
+    public void close ( ) throws Exception
+    {
+        user.disconnect ( );
+        echo.disconnect ( );
+    }
+
+    /**
+     * shows nothing, hands received messages to the benchmark, or on the
+     * echo side sends them straight back.
+     */
+    private static class Screen implements ManagerListener
+    {
+        final BlockingQueue<String> incoming = new LinkedBlockingQueue<> ( );
+        final CountDownLatch        connected = new CountDownLatch ( 1 );
+        private final Manager       manager;
+        private final boolean       echo;
+
+        Screen ( Manager manager,
+                 boolean echo )
+        {
+            this.manager = manager;
+            this.echo = echo;
+        }
+
+        @Override
+        public void print ( String output )
+        {
+        }
+
+        @Override
+        public void printAlert ( String alert )
+        {
+            if ( alert.startsWith ( "Someone has connected" ) ) connected.countDown ( );
+        }
+
+        @Override
+        public void printIncoming ( String message )
+        {
+            if ( echo ) manager.sendInput ( message );
+            else incoming.add ( message );
+        }
+    }
+}
+
+// ChatFixture.java END
@@ -0,0 +1,172 @@
+/**
+ * ConnectionsFixture.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import lsb.bench.Fixtures;
+
+/**
+ * an echo Manager serving many connections, accepted and read the way the
+ * application does it: a Network per connection whose handshake and
+ * listener threads come from Threads, or SelectorNetwork sessions. the
+ * clients are Networks that never start listening, so they hold no thread.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class ConnectionsFixture implements Fixtures.Connections
+{
+    private final Map<Integer, Transport> sessions = new ConcurrentHashMap<> ( );
+    private final List<Network>           clients = new ArrayList<> ( );
+    private final byte[]                  payload = new byte [ 16 ];
+    private ServerSocket                  server;
+    private SelectorNetwork               engine;
+    private SelectorNetwork.Acceptor      acceptor;
+
+    public void open ( String mode,
+                       int    connections ) throws Exception
+    {
+        // read once by Threads, so this only works in a fresh fork
+        System.setProperty ( "lsb.threads", "virtual".equals ( mode ) ? "virtual" : "platform" );
+        if ( Threads.VIRTUAL_REQUESTED != "virtual".equals ( mode ) )
+            throw new IllegalStateException ( "thread mode already fixed, run each mode in its own fork" );
+
+        int port;
+
+        try ( ServerSocket probe = new ServerSocket ( 0 ) ) {
+            port = probe.getLocalPort ( );
+        }
+        Manager echo = new EchoManager ( );
+        CountDownLatch ready = new CountDownLatch ( connections );
+        long start = System.nanoTime ( );
+
+        if ( "nio".equals ( mode ) ) {
+            engine = new SelectorNetwork ( Math.max ( 1, SelectorNetwork.LOOPS ) );
+            acceptor = engine.bind ( port );
+            Threads.start ( "Accept", true, ( ) -> {
+                try {
+                    for ( int i = 0; i < connections; i++ ) {
+                        SelectorNetwork.Session session = acceptor.accept ( echo, i );
+
+                        sessions.put ( i, session );
+                        session.startListening ( );
+                        ready.countDown ( );
+                    }
+                } catch ( Exception e ) {
+                    e.printStackTrace ( );
+                }
+            } );
+        } else {
+            server = new ServerSocket ( port, connections );
+            Threads.start ( "Accept", true, ( ) -> {
+                try {
+                    for ( int i = 0; i < connections; i++ ) {
+                        Socket socket = server.accept ( );
+                        int    id = i;
+
+                        Threads.start ( "Handshake-" + id, true, ( ) -> {
+                            try {
+                                Network network = new Network ( port, echo, id );
+
+                                network.connect ( socket, true );
+                                sessions.put ( id, network );
+                                network.startListening ( );
+                                ready.countDown ( );
+                            } catch ( Exception e ) {
+                                e.printStackTrace ( );
+                            }
+                        } );
+                    }
+                } catch ( Exception e ) {
+                    e.printStackTrace ( );
+                }
+            } );
+        }
+
+        for ( int i = 0; i < connections; i++ ) {
+            Network client = new Network ( port );
+
+            while ( true ) { // until the server socket is up
+                try {
+                    client.connect ( "localhost" );
+                    break;
+                } catch ( ConnectException e ) {
+                    Thread.sleep ( 10 );
+                }
+            }
+            client.listen ( ); // answers the server's HELLO
+            clients.add ( client );
+        }
+        ready.await ( );
+        long opened = System.nanoTime ( );
+
+        System.gc ( );
+        Runtime runtime = Runtime.getRuntime ( );
+        System.out.printf ( "\nmode: %s, connections: %d\n",
+                            "nio".equals ( mode ) ? "nio" : Threads.isVirtual ( ) ? "virtual" : "platform",
+                            connections );
+        System.out.printf ( "open:  %d ms\n", ( opened - start ) / 1000000 );
+        System.out.printf ( "platform threads: %d\n", ManagementFactory.getThreadMXBean ( ).getThreadCount ( ) );
+        System.out.printf ( "heap:  %d KB\n", ( runtime.totalMemory ( ) - runtime.freeMemory ( ) ) / 1024 );
+    }
+
+    public int echoRound ( ) throws Exception
+    {
+        int echoed = 0;
+
+        for ( Network client : clients ) client.send ( payload );
+        for ( Network client : clients ) {
+            if ( client.listen ( ) != null ) echoed++;
+        }
+
+        return echoed;
+    }
+
+    public void close ( ) throws Exception
+    {
+        for ( Network client : clients ) client.quit ( );
+        if ( server != null ) server.close ( );
+        if ( acceptor != null ) acceptor.close ( );
+        if ( engine != null ) engine.shutdown ( );
+    }
+
+    /**
+     * sends every message straight back on the connection it came in on,
+     * instead of decrypting it.
+     */
+    private class EchoManager extends Manager
+    {
+        @Override
+        public void receiveMessage ( int        id,
+                                     ByteBuffer message )
+        {
+            byte[] data = new byte [ message.remaining ( ) ];
+
+            message.get ( data );
+            BufferPool.release ( message );
+            try {
+                sessions.get ( id ).send ( data );
+            } catch ( IOException e ) {
+                return; // the QUIT of a client, passed on like a message
+            }
+        }
+    }
+}
+
+// ConnectionsFixture.java END
@@ -0,0 +1,81 @@
+/**
+ * CryptoFixture.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.util.Arrays;
+
+import lsb.bench.Fixtures;
+
+/**
+ * two ends of one session, keyed the way the RSA handshake keys them:
+ * the sender wraps a new AES key with the receiver's public key and the
+ * receiver unwraps it with setAESKey.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class CryptoFixture implements Fixtures.Crypto
+{
+    private Encryption  sender;
+    private Encryption  receiver;
+    private RSAKeyPool  generator;  // depth 0, every take ( ) generates a pair
+    private byte[]      wrappedKey;
+    private boolean     gcm;
+    private String      payload;
+    private byte[]      ciphertext;
+
+    public void setup ( boolean gcm,
+                        int     size ) throws Exception
+    {
+        this.gcm = gcm;
+        generator = new RSAKeyPool ( 0, 1 );
+        receiver = new Encryption ( );
+        sender = new Encryption ( receiver.getMyPublicKey ( ).getEncoded ( ) );
+        wrappedKey = sender.generateAESKey ( );
+        receiver.setAESKey ( wrappedKey );
+        if ( gcm ) {
+            sender.enableGCM ( true );
+            receiver.enableGCM ( false );
+        }
+
+        char[] text = new char [ size ];
+
+        Arrays.fill ( text, 'x' );
+        payload = new String ( text );
+        ciphertext = sender.AESEncrypt ( payload );
+    }
+
+    public byte[] aesEncrypt ( ) throws Exception
+    {
+        return sender.AESEncrypt ( payload );
+    }
+
+    /**
+     * aesDecrypt ( )
+     * <p>
+     * a GCM record is only accepted once, so in GCM mode every call decrypts
+     * a record sealed just before; subtract aesEncrypt for the decrypt alone.
+     * <p>
+     */
+    public String aesDecrypt ( ) throws Exception
+    {
+        return receiver.AESDecrypt ( gcm ? sender.AESEncrypt ( payload ) : ciphertext );
+    }
+
+    public Object rsaKeyPair ( ) throws Exception
+    {
+        return generator.take ( );
+    }
+
+    public void setAESKey ( ) throws Exception
+    {
+        receiver.setAESKey ( wrappedKey );
+    }
+}
+
+// CryptoFixture.java END
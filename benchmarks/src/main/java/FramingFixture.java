@@ -0,0 +1,74 @@
+/**
+ * FramingFixture.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.net.ConnectException;
+import java.net.ServerSocket;
+
+import lsb.bench.Fixtures;
+
+/**
+ * a server and a client Network connected over loopback and past HELLO,
+ * with no Manager behind them. the client sends, the server listens.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class FramingFixture implements Fixtures.Framing
+{
+    private Network server;
+    private Network client;
+    private byte[]  payload;
+
+    public void open ( int size ) throws Exception
+    {
+        int port;
+
+        try ( ServerSocket probe = new ServerSocket ( 0 ) ) {
+            port = probe.getLocalPort ( );
+        }
+        server = new Network ( port );
+        client = new Network ( port );
+
+        Thread accept = new Thread ( ( ) -> {
+            try {
+                server.connect ( );
+            } catch ( Exception e ) {
+                e.printStackTrace ( );
+            }
+        } );
+
+        accept.start ( );
+        while ( true ) { // until the server socket is up
+            try {
+                client.connect ( "localhost" );
+                break;
+            } catch ( ConnectException e ) {
+                Thread.sleep ( 10 );
+            }
+        }
+        client.listen ( ); // answers the server's HELLO
+        accept.join ( );
+        payload = new byte [ size ];
+    }
+
+    public byte[] sendAndListen ( ) throws Exception
+    {
+        client.send ( payload );
+
+        return server.listen ( );
+    }
+
+    public void close ( ) throws Exception
+    {
+        client.quit ( );
+        server.quit ( );
+    }
+}
+
+// FramingFixture.java END
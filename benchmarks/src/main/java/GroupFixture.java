@@ -0,0 +1,62 @@
+/**
+ * GroupFixture.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.util.Arrays;
+
+import lsb.bench.Fixtures;
+
+/**
+ * a group member's GCM session with every other member, and its sender key.
+ * sessions are keyed with X25519 like a new connection.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class GroupFixture implements Fixtures.Group
+{
+    private Encryption[] sessions;
+    private Group        group;
+    private byte[]       payload;
+
+    public void setup ( int members,
+                        int size ) throws Exception
+    {
+        sessions = new Encryption [ members ];
+        group = new Group ( "bench" );
+        for ( int i = 0; i < members; i++ ) {
+            Encryption mine = new Encryption ( );
+            Encryption theirs = new Encryption ( );
+            byte[] myKey = mine.generateECDHKey ( );
+
+            mine.agreeECDH ( theirs.generateECDHKey ( ), true );
+            theirs.agreeECDH ( myKey, false );
+            mine.enableGCM ( true );
+            sessions [ i ] = mine;
+            group.add ( i );
+        }
+        payload = new byte [ size ];
+        Arrays.fill ( payload, ( byte ) 'x' );
+    }
+
+    public Object perMember ( ) throws Exception
+    {
+        byte[][] records = new byte [ sessions.length ] [ ];
+
+        for ( int i = 0; i < sessions.length; i++ )
+            records [ i ] = sessions [ i ].encryptBytes ( payload );
+        return records;
+    }
+
+    public Object senderKey ( ) throws Exception
+    {
+        return group.getMyKey ( ).seal ( group.getHeader ( ), payload );
+    }
+}
+
+// GroupFixture.java END
@@ -0,0 +1,65 @@
+/**
+ * ConnectionBench.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+package lsb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * compares the connection thread modes. opens many connections to an echo
+ * Manager: Networks read by a platform thread each, by a virtual thread each
+ * ( -Dlsb.threads=virtual, Java 21 ), or SelectorNetwork sessions on its
+ * event loops. setup prints how long opening took, how many platform threads
+ * and how much heap the connections hold; the benchmark is one message out
+ * and back on every connection.
+ *
+ * the thread mode is fixed when the application classes load, so every mode
+ * needs its own fork. raise the open file limit for more connections, e.g.
+ *     java -jar benchmarks/target/benchmarks.jar -p connections=20000 ConnectionBench
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+@State ( Scope.Benchmark )
+@Fork ( value = 1, jvmArgsAppend = "-Dlsb.history=off" )
+@Warmup ( iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS )
+@Measurement ( iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS )
+public class ConnectionBench
+{
+    @Param ( { "platform", "virtual", "nio" } )
+    public String mode;
+
+    @Param ( { "1000", "5000" } )
+    public int connections;
+
+    private Fixtures.Connections server;
+
+    @Setup
+    public void setup ( ) throws Exception
+    {
+        server = Fixtures.load ( Fixtures.Connections.class );
+        server.open ( mode, connections );
+    }
+
+    @TearDown
+    public void tearDown ( ) throws Exception
+    {
+        server.close ( );
+    }
+
+    @Benchmark
+    public int echoRound ( ) throws Exception
+    {
+        return server.echoRound ( );
+    }
+}
+
+// ConnectionBench.java END
@@ -0,0 +1,63 @@
+/**
+ * CryptoBench.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+package lsb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * AESEncrypt and AESDecrypt of one message, in the old AES/ECB mode and in
+ * the AES-GCM records used when both sides support them.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+@State ( Scope.Thread )
+@Fork ( 1 )
+@Warmup ( iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS )
+@Measurement ( iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS )
+public class CryptoBench
+{
+    @Param ( { "16", "1024", "65536" } )
+    public int size;
+
+    @Param ( { "ecb", "gcm" } )
+    public String mode;
+
+    private Fixtures.Crypto crypto;
+
+    @Setup
+    public void setup ( ) throws Exception
+    {
+        crypto = Fixtures.load ( Fixtures.Crypto.class );
+        crypto.setup ( "gcm".equals ( mode ), size );
+    }
+
+    @Benchmark
+    public byte[] aesEncrypt ( ) throws Exception
+    {
+        return crypto.aesEncrypt ( );
+    }
+
+    /**
+     * aesDecrypt ( )
+     * <p>
+     * in GCM mode this includes sealing the record, see CryptoFixture
+     * <p>
+     */
+    @Benchmark
+    public String aesDecrypt ( ) throws Exception
+    {
+        return crypto.aesDecrypt ( );
+    }
+}
+
+// CryptoBench.java END
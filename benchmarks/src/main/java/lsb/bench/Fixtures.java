@@ -0,0 +1,99 @@
+/**
+ * Fixtures.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+package lsb.bench;
+
+/**
+ * the application classes live in the unnamed package, which a benchmark
+ * ( JMH only accepts benchmarks in a named package ) can not import. each
+ * benchmark drives them through one of these interfaces instead, implemented
+ * by a class in the unnamed package named after it ( Crypto -> CryptoFixture ).
+ * a call through an interface with one implementation is inlined by the JIT,
+ * so the indirection does not show up in the results.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public final class Fixtures
+{
+    /**
+     * Encryption of one session, see CryptoBench
+     */
+    public interface Crypto
+    {
+        void setup ( boolean gcm, int size ) throws Exception; // keys both ends, builds a payload of size bytes
+        byte[] aesEncrypt ( ) throws Exception;                // the payload with AESEncrypt
+        String aesDecrypt ( ) throws Exception;                // a ciphertext of the payload with AESDecrypt
+        Object rsaKeyPair ( ) throws Exception;                // a new RSA pair, as the key pool makes them
+        void setAESKey ( ) throws Exception;                   // unwraps an RSA wrapped AES key
+    }
+
+    /**
+     * two Networks connected over loopback, see FramingBench
+     */
+    public interface Framing
+    {
+        void open ( int size ) throws Exception;          // connects, builds a payload of size bytes
+        byte[] sendAndListen ( ) throws Exception;        // sends the payload one way, returns what listen read
+        void close ( ) throws Exception;
+    }
+
+    /**
+     * two Managers connected over loopback, see RoundTripBench
+     */
+    public interface Chat
+    {
+        void open ( int size ) throws Exception;          // connects, builds a message of size characters
+        String roundTrip ( ) throws Exception;            // sends the message and waits for it to come back
+        void close ( ) throws Exception;
+    }
+
+    /**
+     * one member of a group and the sessions to the others, see GroupBench
+     */
+    public interface Group
+    {
+        void setup ( int members, int size ) throws Exception; // keys every session, builds a payload of size bytes
+        Object perMember ( ) throws Exception;                 // the payload encrypted with every member's session
+        Object senderKey ( ) throws Exception;                 // the payload sealed once with the sender key
+    }
+
+    /**
+     * many connections to one echo server in this process, see ConnectionBench
+     */
+    public interface Connections
+    {
+        void open ( String mode, int connections ) throws Exception; // platform, virtual or nio server, connects every client
+        int echoRound ( ) throws Exception;                           // one message out and back on every connection
+        void close ( ) throws Exception;
+    }
+
+    private Fixtures ( )
+    {
+    }
+
+    /**
+     * load ( )
+     * <p>
+     * creates the implementation of a fixture interface
+     * <p>
+     *
+     * @param type one of the interfaces above
+     * @return a new instance of its implementation
+     * @throws ReflectiveOperationException if the implementation is missing
+     */
+    static <T> T load ( Class<T> type ) throws ReflectiveOperationException
+    {
+        Class<?> fixture = Class.forName ( type.getSimpleName ( ) + "Fixture" );
+
+        return type.cast ( fixture.getDeclaredConstructor ( ).newInstance ( ) );
+    } /* load */
+}
+
+// Fixtures.java END
@@ -0,0 +1,54 @@
+/**
+ * FramingBench.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+package lsb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Network.send on one end of a loopback connection and Network.listen on
+ * the other: the writer thread, framing and the socket, without encryption.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+@State ( Scope.Thread )
+@Fork ( 1 )
+@Warmup ( iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS )
+@Measurement ( iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS )
+public class FramingBench
+{
+    @Param ( { "16", "1024", "65536" } )
+    public int size;
+
+    private Fixtures.Framing framing;
+
+    @Setup
+    public void setup ( ) throws Exception
+    {
+        framing = Fixtures.load ( Fixtures.Framing.class );
+        framing.open ( size );
+    }
+
+    @TearDown
+    public void tearDown ( ) throws Exception
+    {
+        framing.close ( );
+    }
+
+    @Benchmark
+    public byte[] sendAndListen ( ) throws Exception
+    {
+        return framing.sendAndListen ( );
+    }
+}
+
+// FramingBench.java END
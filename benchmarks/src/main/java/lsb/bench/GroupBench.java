@@ -0,0 +1,58 @@
+/**
+ * GroupBench.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+package lsb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * the encryption of one group message, once per member with its pairwise
+ * session against once with the sender key. perMember grows with the room,
+ * senderKey should not.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+@State ( Scope.Thread )
+@Fork ( 1 )
+@Warmup ( iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS )
+@Measurement ( iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS )
+public class GroupBench
+{
+    @Param ( { "2", "8", "32" } )
+    public int members;
+
+    @Param ( { "64", "1024" } )
+    public int size;
+
+    private Fixtures.Group group;
+
+    @Setup
+    public void setup ( ) throws Exception
+    {
+        group = Fixtures.load ( Fixtures.Group.class );
+        group.setup ( members, size );
+    }
+
+    @Benchmark
+    public Object perMember ( ) throws Exception
+    {
+        return group.perMember ( );
+    }
+
+    @Benchmark
+    public Object senderKey ( ) throws Exception
+    {
+        return group.senderKey ( );
+    }
+}
+
+// GroupBench.java END
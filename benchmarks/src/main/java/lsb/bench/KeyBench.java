@@ -0,0 +1,51 @@
+/**
+ * KeyBench.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+package lsb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * the expensive steps of the RSA handshake: making a key pair, which the
+ * key pool does ahead of time, and unwrapping the AES key with setAESKey.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+@State ( Scope.Thread )
+@Fork ( 1 )
+@Warmup ( iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS )
+@Measurement ( iterations = 5, time = 5, timeUnit = TimeUnit.SECONDS )
+public class KeyBench
+{
+    private Fixtures.Crypto crypto;
+
+    @Setup
+    public void setup ( ) throws Exception
+    {
+        crypto = Fixtures.load ( Fixtures.Crypto.class );
+        crypto.setup ( false, 16 );
+    }
+
+    @Benchmark
+    public Object rsaKeyPair ( ) throws Exception
+    {
+        return crypto.rsaKeyPair ( );
+    }
+
+    @Benchmark
+    public void setAESKey ( ) throws Exception
+    {
+        crypto.setAESKey ( );
+    }
+}
+
+// KeyBench.java END
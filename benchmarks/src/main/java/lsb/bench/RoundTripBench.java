@@ -0,0 +1,55 @@
+/**
+ * RoundTripBench.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+package lsb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * one message from a Manager to another one in this process and back.
+ * messages longer than one packet are sent in chunks. history is turned
+ * off so nothing is written to disk.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+@State ( Scope.Thread )
+@Fork ( value = 1, jvmArgsAppend = "-Dlsb.history=off" )
+@Warmup ( iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS )
+@Measurement ( iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS )
+public class RoundTripBench
+{
+    @Param ( { "16", "512", "16384" } )
+    public int size;
+
+    private Fixtures.Chat chat;
+
+    @Setup
+    public void setup ( ) throws Exception
+    {
+        chat = Fixtures.load ( Fixtures.Chat.class );
+        chat.open ( size );
+    }
+
+    @TearDown
+    public void tearDown ( ) throws Exception
+    {
+        chat.close ( );
+    }
+
+    @Benchmark
+    public String roundTrip ( ) throws Exception
+    {
+        return chat.roundTrip ( );
+    }
+}
+
+// RoundTripBench.java END
@@ -0,0 +1,82 @@
+/**
+ * Run.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+package lsb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * main class of benchmarks.jar, takes the usual JMH options. unless a mode
+ * is picked with -bm, every benchmark is run twice: for throughput in ops/s,
+ * and sampled for latency percentiles ( p50, p99, ... ) in microseconds.
+ * the gc profiler is always on, so allocation per op and the allocation
+ * rate are reported next to every result.
+ *
+ * run with:
+ *     java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regexp]
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class Run
+{
+    /**
+     * main ( )
+     * <p>
+     * runs the benchmarks
+     * <p>
+     *
+     * @param args JMH command line
+     * @throws Exception on a failed run
+     */
+    public static void main ( String[] args ) throws Exception
+    {
+        CommandLineOptions options = new CommandLineOptions ( args );
+
+        if ( options.shouldHelp ( ) || options.shouldList ( ) || options.shouldListWithParams ( ) ||
+             options.shouldListProfilers ( ) || options.shouldListResultFormats ( ) ) {
+            org.openjdk.jmh.Main.main ( args );
+            return;
+        }
+
+        if ( !options.getBenchModes ( ).isEmpty ( ) ) {
+            new Runner ( profiled ( options ).build ( ) ).run ( );
+            return;
+        }
+        new Runner ( profiled ( options ).mode ( Mode.Throughput ).timeUnit ( TimeUnit.SECONDS ).build ( ) ).run ( );
+        new Runner ( profiled ( options ).mode ( Mode.SampleTime ).timeUnit ( TimeUnit.MICROSECONDS ).build ( ) ).run ( );
+    } /* main */
+
+    /**
+     * profiled ( )
+     * <p>
+     * the command line options, with the gc profiler added if it is missing
+     * <p>
+     *
+     * @param options parsed command line
+     * @return builder to add the mode to
+     */
+    private static ChainedOptionsBuilder profiled ( CommandLineOptions options )
+    {
+        ChainedOptionsBuilder builder = new OptionsBuilder ( ).parent ( options );
+
+        if ( options.getProfilers ( ).stream ( ).noneMatch ( p -> p.getKlass ( ).equals ( "gc" ) ) )
+            builder.addProfiler ( GCProfiler.class );
+        return builder;
+    } /* profiled */
+}
+
+// Run.java END
@@ -0,0 +1,273 @@
+/**
+ * BufferPool.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * recycles the buffers packets are framed, read and decrypted in, so a
+ * steady stream of messages does not allocate a fresh array per packet.
+ * Buffers come in power of two size classes from MIN_SIZE to MAX_SIZE.
+ * Every thread keeps up to LOCAL_DEPTH of each class for itself and falls
+ * back to a shared queue holding up to DEPTH more, so a thread that takes
+ * and gives back buffers itself never touches a lock. A thread only keeps
+ * as many buffers as it took lately; one that just gives back what others
+ * took, like a writer thread, hands them to the shared queue where the
+ * takers find them. Larger requests get
+ * a buffer of their own that release ( ) lets the garbage collector have.
+ * <p>
+ * The buffers are on the heap: the blocking Network reads a socket stream
+ * into an array, and the JDK's AES decrypts heap buffers without staging
+ * them through temporary arrays like it does for direct ones.
+ * <p>
+ * With -Dlsb.pool.debug=true every buffer handed out is tracked. Buffers
+ * held longer than LEAK_SECONDS are reported once with the stack that took
+ * them, and so is giving back a buffer twice or one that was never taken.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public final class BufferPool
+{
+    public static final int MIN_SHIFT = 9;                          // 512 bytes, a short message
+    public static final int MAX_SHIFT = 17;                         // 128 KB, a file record
+    public static final int MIN_SIZE  = 1 << MIN_SHIFT;
+    public static final int MAX_SIZE  = 1 << MAX_SHIFT;
+    public static final int DEPTH     = Integer.getInteger ( "lsb.pool.depth", 64 );     // shared buffers kept per size class
+    public static final int LOCAL_DEPTH = Integer.getInteger ( "lsb.pool.localDepth", 8 ); // buffers a thread keeps per size class
+    public static final boolean DEBUG = Boolean.getBoolean ( "lsb.pool.debug" );
+    public static final int LEAK_SECONDS = Integer.getInteger ( "lsb.pool.leakSeconds", 30 );
+
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private static final List<ArrayBlockingQueue<ByteBuffer>> SHARED = new ArrayList<> ( CLASSES );
+    private static final ThreadLocal<Cache> LOCAL = ThreadLocal.withInitial ( Cache::new );
+
+    /* debug mode only, buffers handed out and not yet given back */
+    private static final Map<ByteBuffer, Lease> LEASES = Collections.synchronizedMap ( new IdentityHashMap<> ( ) );
+
+    static
+    {
+        for ( int i = 0; i < CLASSES; i++ )
+            SHARED.add ( new ArrayBlockingQueue<ByteBuffer> ( Math.max ( 1, DEPTH ) ) );
+
+        if ( DEBUG ) {
+            Threads.start ( "BufferPoolLeaks", true, BufferPool::watch );
+            Runtime.getRuntime ( ).addShutdownHook ( new Thread ( ( ) -> {
+                    int held = held ( TimeUnit.SECONDS.toNanos ( 1 ) ); // younger ones are still being written
+
+                    if ( held > 0 ) System.err.printf ( "BufferPool: %d buffers not given back at exit\n", held );
+                } ) );
+        }
+    }
+
+    /**
+     * the free buffers of one thread, a stack per size class
+     */
+    private static final class Cache
+    {
+        private final ByteBuffer[][] free = new ByteBuffer [ CLASSES ] [ Math.max ( 0, LOCAL_DEPTH ) ];
+        private final int[] count = new int [ CLASSES ];
+        private final int[] taken = new int [ CLASSES ]; // acquires not yet matched by a release, at most LOCAL_DEPTH
+    }
+
+    /**
+     * who took a buffer and when, kept in debug mode
+     */
+    private static final class Lease
+    {
+        private final Throwable trace = new Throwable ( "taken by " + Thread.currentThread ( ).getName ( ) );
+        private final long taken = System.nanoTime ( );
+        private boolean reported = false;
+    }
+
+    private BufferPool ( )
+    {
+    }
+
+    /**
+     * acquire ( )
+     * <p>
+     * hands out a buffer of at least size bytes, position 0 and limit size.
+     * Its contents are whatever its last user left. Give it back with
+     * release ( ) once done.
+     * <p>
+     *
+     * @param size bytes needed
+     * @return the buffer
+     */
+    public static ByteBuffer acquire ( int size )
+    {
+        if ( size > MAX_SIZE ) {
+            Metrics.POOL_ALLOCATED.increment ( );
+            return ByteBuffer.allocate ( size );
+        }
+        int sizeClass = sizeClass ( size );
+        Cache cache = LOCAL.get ( );
+        ByteBuffer buffer;
+
+        if ( cache.taken [ sizeClass ] < LOCAL_DEPTH ) cache.taken [ sizeClass ]++;
+
+        if ( cache.count [ sizeClass ] > 0 ) {
+            int top = --cache.count [ sizeClass ];
+
+            buffer = cache.free [ sizeClass ] [ top ];
+            cache.free [ sizeClass ] [ top ] = null;
+        } else {
+            buffer = SHARED.get ( sizeClass ).poll ( );
+        }
+
+        if ( buffer == null ) {
+            Metrics.POOL_ALLOCATED.increment ( );
+            buffer = ByteBuffer.allocate ( MIN_SIZE << sizeClass );
+        }
+        if ( DEBUG ) LEASES.put ( buffer, new Lease ( ) );
+        buffer.limit ( size );
+        return buffer;
+    } /* acquire */
+
+    /**
+     * release ( )
+     * <p>
+     * takes back a buffer from acquire ( ). Nothing may use it afterwards,
+     * null and buffers too large to pool are ignored. It stays with this
+     * thread only if the thread took one of its size itself.
+     * <p>
+     *
+     * @param buffer the buffer
+     */
+    public static void release ( ByteBuffer buffer )
+    {
+        if ( buffer == null ) return;
+
+        int capacity = buffer.capacity ( );
+
+        if ( capacity > MAX_SIZE ) return;
+
+        if ( DEBUG && LEASES.remove ( buffer ) == null ) {
+            new Throwable ( "BufferPool: buffer given back twice or not from the pool" ).printStackTrace ( );
+            return;
+        }
+        if ( capacity < MIN_SIZE || Integer.bitCount ( capacity ) != 1 || buffer.isDirect ( ) ) return;
+
+        int sizeClass = sizeClass ( capacity );
+        Cache cache = LOCAL.get ( );
+
+        buffer.clear ( );
+        if ( cache.taken [ sizeClass ] > 0 && cache.count [ sizeClass ] < LOCAL_DEPTH ) {
+            cache.taken [ sizeClass ]--;
+            cache.free [ sizeClass ] [ cache.count [ sizeClass ]++ ] = buffer;
+            return;
+        }
+        SHARED.get ( sizeClass ).offer ( buffer ); // dropped if the class is full
+    } /* release */
+
+    /**
+     * copyOf ( )
+     * <p>
+     * a pooled buffer holding a copy of part of an array
+     * <p>
+     *
+     * @param data the array
+     * @param offset start of the part
+     * @param length length of the part
+     * @return the buffer, positioned at the copy
+     */
+    public static ByteBuffer copyOf ( byte[] data, int offset, int length )
+    {
+        ByteBuffer buffer = acquire ( length );
+
+        buffer.put ( data, offset, length ).flip ( );
+        return buffer;
+    } /* copyOf */
+
+    /**
+     * outstanding ( )
+     * <p>
+     * @return buffers handed out and not given back, only counted in debug mode
+     */
+    public static int outstanding ( )
+    {
+        return LEASES.size ( );
+    }
+
+    /**
+     * held ( )
+     * <p>
+     * @param age nanoseconds
+     * @return buffers handed out at least age ago and not given back
+     */
+    private static int held ( long age )
+    {
+        long now = System.nanoTime ( );
+        int held = 0;
+
+        synchronized ( LEASES ) {
+            for ( Lease lease : LEASES.values ( ) )
+                if ( now - lease.taken >= age ) held++;
+        }
+        return held;
+    }
+
+    /**
+     * sizeClass ( )
+     * <p>
+     * @param size bytes needed, at most MAX_SIZE
+     * @return index of the smallest size class holding size bytes
+     */
+    private static int sizeClass ( int size )
+    {
+        if ( size <= MIN_SIZE ) return 0;
+        return 32 - Integer.numberOfLeadingZeros ( size - 1 ) - MIN_SHIFT;
+    }
+
+    /**
+     * watch ( )
+     * <p>
+     * debug mode leak detector, reports buffers held too long
+     * <p>
+     */
+    private static void watch ( )
+    {
+        long limit = TimeUnit.SECONDS.toNanos ( LEAK_SECONDS );
+
+        while ( true ) {
+            try {
+                Thread.sleep ( Math.max ( 1000, limit / 2 / 1000000 ) );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+            List<Map.Entry<ByteBuffer, Lease>> held;
+
+            synchronized ( LEASES ) {
+                held = new ArrayList<> ( LEASES.entrySet ( ) );
+            }
+            long now = System.nanoTime ( );
+
+            for ( Map.Entry<ByteBuffer, Lease> entry : held ) {
+                Lease lease = entry.getValue ( );
+
+                if ( lease.reported || now - lease.taken < limit ) continue;
+                lease.reported = true;
+                System.err.printf ( "BufferPool: buffer of %d bytes held for %d s, possibly leaked\n",
+                                    entry.getKey ( ).capacity ( ),
+                                    TimeUnit.NANOSECONDS.toSeconds ( now - lease.taken ) );
+                lease.trace.printStackTrace ( );
+            }
+        }
+    } /* watch */
+}
+
+// BufferPool.java END
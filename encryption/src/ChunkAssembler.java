@@ -0,0 +1,186 @@
+/**
+    ChunkAssembler.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    Long messages are sent as a stream of CHUNK packets, each encrypted on
+    its own so no packet grows past Network.DATA_SIZE. The plaintext of a
+    chunk starts with the id of the message it belongs to, its index, and
+    a flag marking the last chunk. Chunks of different messages may arrive
+    interleaved; this class puts each message back together and holds at
+    most MAX_PARTIAL unfinished messages of at most MAX_MESSAGE_SIZE bytes.
+    Once a message is dropped, the rest of its chunks are thrown away
+    quietly, so a bad message is reported once and not once per chunk.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class ChunkAssembler
+{
+    // -Dlsb.chunk.maxMessage, longest message sent or accepted, in bytes
+    public static final int MAX_MESSAGE_SIZE = Integer.getInteger("lsb.chunk.maxMessage", 1 << 20);
+    // -Dlsb.chunk.maxPartial, most messages being reassembled at once
+    public static final int MAX_PARTIAL = Integer.getInteger("lsb.chunk.maxPartial", 4);
+
+    public static final int HEADER_SIZE = 9;   // message id, index, flags
+    public static final int DATA_SIZE = 896;   // plaintext per chunk, fits DATA_SIZE in ECB and GCM
+    public static final byte LAST = 1;         // flag of the final chunk of a message
+    private static final int MAX_DROPPED = 64; // dropped messages whose chunks are still ignored
+
+    private final Map<Integer, Partial> partial;
+    private final Set<Integer> dropped;        // ids of dropped messages, until their last chunk
+
+    /**
+        A message still missing chunks
+    */
+    private static class Partial
+    {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int nextIndex = 0;
+    }
+
+    /**
+        Constructor to initialize fields
+    */
+    public ChunkAssembler()
+    {
+        partial = new LinkedHashMap<>();
+        dropped = Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>()
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest)
+            {
+                return size() > MAX_DROPPED;
+            }
+        });
+    }
+
+    /**
+        chunk()
+        Build the plaintext of one chunk.
+        @param messageId - the message the chunk belongs to
+        @param index - position of the chunk in the message, starting at 0
+        @param message - the whole message
+        @return header and the slice of the message for this index
+    */
+    public static byte[] chunk(int messageId, int index, byte[] message)
+    {
+        int offset = index * DATA_SIZE;
+        int length = Math.min(DATA_SIZE, message.length - offset);
+        boolean last = offset + length >= message.length;
+        return ByteBuffer.allocate(HEADER_SIZE + length)
+            .putInt(messageId)
+            .putInt(index)
+            .put(last ? LAST : 0)
+            .put(message, offset, length)
+            .array();
+    }
+
+    /**
+        chunks()
+        @param length - length of a message in bytes
+        @return number of chunks the message is sent in
+    */
+    public static int chunks(int length)
+    {
+        return Math.max(1, (length + DATA_SIZE - 1) / DATA_SIZE);
+    }
+
+    /**
+        add()
+        Add a decrypted chunk to its message.
+        @param chunk - plaintext of the chunk, header included, read to its end
+        @return the message bytes if this was its last chunk, otherwise null
+        @throws IOException if the chunk is malformed, out of order, or
+            the message or the number of open messages is over the limit;
+            the message it belongs to is dropped and its later chunks are
+            ignored without another exception
+    */
+    public synchronized byte[] add(ByteBuffer in) throws IOException
+    {
+        if (in.remaining() < HEADER_SIZE)
+        {
+            throw new IOException("Chunk too short");
+        }
+        int messageId = in.getInt();
+        int index = in.getInt();
+        boolean last = (in.get() & LAST) != 0;
+
+        if (dropped.contains(messageId))
+        {
+            if (last)
+            {
+                dropped.remove(messageId);
+            }
+            in.position(in.limit());
+            return null;
+        }
+
+        Partial message = partial.get(messageId);
+        if (message == null)
+        {
+            if (index != 0)
+            {
+                drop(messageId, last);
+                throw new IOException("Chunk " + index + " of unknown message " + messageId);
+            }
+            if (partial.size() >= MAX_PARTIAL)
+            {
+                drop(messageId, last);
+                throw new IOException("Too many messages in progress");
+            }
+            message = new Partial();
+            partial.put(messageId, message);
+        }
+
+        if (index != message.nextIndex)
+        {
+            drop(messageId, last);
+            throw new IOException("Chunk " + index + " out of order in message " + messageId);
+        }
+        if (message.data.size() + in.remaining() > MAX_MESSAGE_SIZE)
+        {
+            drop(messageId, last);
+            throw new IOException("Message " + messageId + " over " + MAX_MESSAGE_SIZE + " bytes");
+        }
+        message.data.write(in.array(), in.arrayOffset() + in.position(), in.remaining());
+        in.position(in.limit());
+        message.nextIndex++;
+
+        if (!last)
+        {
+            return null;
+        }
+        partial.remove(messageId);
+        return message.data.toByteArray();
+    }
+
+    /**
+        drop()
+        Forget a message and ignore the rest of its chunks.
+        @param messageId - the message
+        @param last - true if the chunk that dropped it was its last one
+    */
+    private void drop(int messageId, boolean last)
+    {
+        partial.remove(messageId);
+        if (!last)
+        {
+            dropped.add(messageId);
+        }
+    }
+
+    /**
+        @return number of messages waiting for more chunks
+    */
+    public synchronized int pending()
+    {
+        return partial.size();
+    }
+}
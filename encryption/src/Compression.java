@@ -0,0 +1,179 @@
+/**
+    Compression.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    Compresses messages before they are encrypted, once both sides agreed
+    on Network.FEATURE_COMPRESSED in HELLO. Every message starts with a codec
+    byte: RAW for messages under THRESHOLD bytes or ones that do not shrink,
+    DEFLATE for raw deflate primed with DICTIONARY. The dictionary holds
+    words and fragments common in chat, code and logs, so even a short
+    message finds matches. Each message is compressed on its own: packets
+    may be decrypted out of order within the replay window and the receive
+    pipeline may drop messages, so the two sides never share a running
+    deflate stream. The Deflater and Inflater are kept for the whole
+    session instead of being made per message.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class Compression
+{
+    // -Dlsb.compress.threshold, shorter messages are sent uncompressed, in bytes
+    public static final int THRESHOLD = Integer.getInteger("lsb.compress.threshold", 64);
+    // -Dlsb.compress.level, deflate level from 1 (fastest) to 9 (smallest)
+    public static final int LEVEL = Integer.getInteger("lsb.compress.level", 6);
+
+    public static final byte RAW = 0;       // message follows as is
+    public static final byte DEFLATE = 1;   // raw deflate primed with DICTIONARY follows
+
+    /*
+        Preset dictionary shared by both sides. Deflate finds the end of the
+        dictionary cheapest to refer to, so the most common fragments go last.
+    */
+    private static final byte[] DICTIONARY = (
+        "0123456789abcdefABCDEF ::1 127.0.0.1 localhost http://https://www. .com .org .net .html .json "
+        + "/usr/local/bin/ /home/ /var/log/ /tmp/ C:\\Users\\ .txt .log .xml .yml .properties .java .py .js "
+        + "SELECT * FROM WHERE ORDER BY GROUP BY INSERT INTO VALUES UPDATE SET DELETE "
+        + "java.lang. java.util. java.io. java.net. Caused by: Exception in thread \"main\" "
+        + "\tat java.base/ .java: ... more\nNullPointerException IllegalArgumentException IOException "
+        + "[INFO] [WARN] [ERROR] [DEBUG] INFO WARN ERROR DEBUG TRACE FATAL 2026-01-01T00:00:00.000Z "
+        + "public static void main(String[] args) { } private final protected class interface "
+        + "extends implements import package return new this null true false if (else {for (int i = 0; i < "
+        + "while (try {} catch (Exception e) {throw new } finally {String int long byte[] boolean "
+        + "function def self. const let var => console.log( print( #include <std::std::vector "
+        + "   \"name\": \"id\": \"type\": \"value\": \"data\": \"error\": \"message\": \"status\": "
+        + "thanks thank you please sorry okay yeah yes no hey hello hi lol :) :( :D "
+        + "could you would you can you do you know I think I don't I'm not sure that's what's it's "
+        + "about after again because before being could does doing from have just like make more "
+        + "only over really right should some still than that them then there these they think "
+        + "this time want what when where which while will with would your you the and for are "
+        + "but not all any can had her was one our out get has him his how its let may now see "
+        + "the of to in is it on be at as by we or an so if my me up do go "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private Deflater deflater;   // made on first use, most sessions never compress
+    private Inflater inflater;
+
+    /**
+        pack()
+        Prefix a message with its codec, compressing it if that pays off.
+        @param message - the plaintext message
+        @return the codec byte followed by the message, compressed or not
+    */
+    public synchronized byte[] pack(byte[] message)
+    {
+        if (message.length >= THRESHOLD)
+        {
+            if (deflater == null)
+            {
+                deflater = new Deflater(LEVEL, true);
+            }
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(message);
+            deflater.finish();
+
+            // only worth it if the result is shorter than the message
+            byte[] packed = new byte[message.length];
+            packed[0] = DEFLATE;
+            int length = 1;
+            while (!deflater.finished() && length < packed.length)
+            {
+                length += deflater.deflate(packed, length, packed.length - length);
+            }
+            if (deflater.finished())
+            {
+                return Arrays.copyOf(packed, length);
+            }
+        }
+        byte[] packed = new byte[1 + message.length];
+        packed[0] = RAW;
+        System.arraycopy(message, 0, packed, 1, message.length);
+        return packed;
+    }
+
+    /**
+        unpack()
+        Undo pack().
+        @param packed - codec byte and message, read to its end
+        @param limit - longest message accepted, in bytes
+        @return the plaintext message, packed itself if it was not compressed
+        @throws IOException if the codec is unknown, the data is corrupt,
+            or the message grows past limit
+    */
+    public synchronized ByteBuffer unpack(ByteBuffer packed, int limit) throws IOException
+    {
+        if (!packed.hasRemaining())
+        {
+            throw new IOException("Empty message");
+        }
+        byte codec = packed.get();
+        if (codec == RAW)
+        {
+            return packed;
+        }
+        if (codec != DEFLATE)
+        {
+            throw new IOException("Unknown compression " + codec);
+        }
+
+        if (inflater == null)
+        {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(packed);
+        byte[] message = new byte[Math.min(limit, Math.max(64, packed.remaining() * 4))];
+        int length = 0;
+        try
+        {
+            while (!inflater.finished())
+            {
+                if (length == message.length)
+                {
+                    if (length >= limit)
+                    {
+                        throw new IOException("Message over " + limit + " bytes");
+                    }
+                    message = Arrays.copyOf(message, (int) Math.min(limit, 2L * length));
+                }
+                int n = inflater.inflate(message, length, message.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new IOException("Compressed message truncated");
+                }
+                length += n;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Corrupt compressed message", e);
+        }
+        return ByteBuffer.wrap(message, 0, length);
+    }
+
+    /**
+        Release the native memory of the deflater and inflater.
+    */
+    public synchronized void close()
+    {
+        if (deflater != null)
+        {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null)
+        {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
@@ -1,8 +1,10 @@
-import com.sun.crypto.provider.AESKeyGenerator;
-//import sun.security.krb5.internal.crypto.dk.AesDkCrypto; // not used
-
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.security.*;
 import java.security.spec.X509EncodedKeySpec;
 
@@ -10,21 +12,47 @@ import java.security.spec.X509EncodedKeySpec;
  * @author Samuel Lewis (srl8336)
  */
 public class Encryption {
-    private static KeyPair rsaKeys;
+    //GCM records are sequence number (8 bytes, also the AAD) + ciphertext + tag
+    public static final int RECORD_SEQ_SIZE = 8;
+    public static final int GCM_TAG_SIZE = 16;
+    private static final int REPLAY_WINDOW = 64;
+
+    private KeyPair myKeys; //this session's own RSA pair, taken from the RSAKeyPool
+    private KeyPair ecdhKeys; //ephemeral X25519 pair, only used by the ECDH handshake
+    //derived next to HKDF session keys, lets the peer reconnect without a key exchange
+    private byte[] resumptionSecret;
+    private byte[] ticket;
+    public static final int TICKET_SIZE = 16;
+    public static final int NONCE_SIZE = 16;
+    private static final SecureRandom random = new SecureRandom();
+    //GCM ciphers of threads encrypting in parallel, initialized per record like encryptCipher
+    private static final ThreadLocal<Cipher> parallelCiphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
     private PublicKey theirPublicKey;
     private SecretKey aesKey;
+    //one initialized cipher per direction, reused for every message of this session.
+    //Each is only ever used while holding its own lock, so sending and receiving never wait on each other
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+    //GCM record mode, the nonce is direction (4 bytes) + sequence number, so the two sides never share one
+    private boolean gcm = false;
+    private int sendDirection;
+    private int receiveDirection;
+    private long sendSeq;          //guarded by encryptCipher
+    private long highestSeq = -1;  //guarded by decryptCipher
+    private long replayWindow;     //bit i set means highestSeq - i was received
 
     /**
      * Null constructor, creates an encryption object without the public key of the intended communication partner
      * @throws Exception When theirPublicKey is null, an exception is thrown
      */
     public Encryption() throws Exception {
-        //Create RSA keys if not created
-        if (rsaKeys == null) {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-            keyGen.initialize(2048);
-            rsaKeys = keyGen.generateKeyPair();
-        }
+        //RSA keys are taken from the RSAKeyPool when first needed, ECDH sessions never need them
     }
 
     /**
@@ -34,24 +62,28 @@ public class Encryption {
      * @throws Exception When theirPublicKey is null, an exception is thrown
      */
     public Encryption(byte[] theirKey) throws Exception {
-        //Create RSA keys if not created
-        if (rsaKeys == null) {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-            keyGen.initialize(2048);
-            rsaKeys = keyGen.generateKeyPair();
-        }
+        this();
         setTheirPublicKey(theirKey);
     }
 
     /**
      * myPublicKey returns the Public RSA key associated with this Encryption
-     * @return Public key from KeyPair rsaKeys
+     * @return Public key from KeyPair myKeys
      */
     public PublicKey getMyPublicKey() throws Exception {
-        if (rsaKeys == null) {
-            throw new Exception("TheirPublicKey not initialized");
+        return myKeys().getPublic();
+    }
+
+    /**
+     * myKeys returns this session's RSA pair, taking a new one from the pool after a reset
+     * @return the RSA key pair
+     * @throws Exception When RSA is not available
+     */
+    private synchronized KeyPair myKeys() throws Exception {
+        if (myKeys == null) {
+            myKeys = RSAKeyPool.shared().take();
         }
-        return rsaKeys.getPublic();
+        return myKeys;
     }
 
     /**
@@ -84,7 +116,7 @@ public class Encryption {
      */
     private String RSADecrypt(byte[] cipherText) throws Exception {
         Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.DECRYPT_MODE, rsaKeys.getPrivate());
+        cipher.init(Cipher.DECRYPT_MODE, myKeys().getPrivate());
         byte[] newPlainText = cipher.doFinal(cipherText);
         return( new String(newPlainText, "UTF8") );
     }
@@ -112,10 +144,86 @@ public class Encryption {
      */
     public void setAESKey(byte[] keyCipherText) throws Exception {
         Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.DECRYPT_MODE, rsaKeys.getPrivate());
+        cipher.init(Cipher.DECRYPT_MODE, myKeys().getPrivate());
         byte[] newAESKEY = cipher.doFinal(keyCipherText);
         aesKey = new SecretKeySpec(newAESKEY, "AES");
+        initCiphers();
+    }
+
+    /**
+     * Creates and initializes the per-session AES ciphers for the current key.
+     * Provider lookup and key schedule setup happen once here instead of per message
+     * @throws Exception
+     */
+    private void initCiphers() throws Exception {
+        if (gcm) {
+            //GCM ciphers are initialized per record with that record's nonce
+            encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            return;
+        }
+        Cipher enc = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        enc.init(Cipher.ENCRYPT_MODE, aesKey);
+        Cipher dec = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        dec.init(Cipher.DECRYPT_MODE, aesKey);
+        encryptCipher = enc;
+        decryptCipher = dec;
+    }
+
+    /**
+     * Switches this session to authenticated AES-GCM records with sequence numbers.
+     * Both sides must call this after the AES key is exchanged and before any message
+     * @param initiator true on the side that generated the AES key, picks the nonce direction
+     * @throws Exception When the AES key is not set yet
+     */
+    public void enableGCM(boolean initiator) throws Exception {
+        if (aesKey == null) {
+            throw new Exception("AES key not initialized");
+        }
+        gcm = true;
+        sendDirection = initiator ? 1 : 2;
+        receiveDirection = initiator ? 2 : 1;
+        sendSeq = 0;
+        highestSeq = -1;
+        replayWindow = 0;
+        initCiphers();
+    }
+
+    /**
+     * isGCM
+     * @return true if records are AES-GCM with sequence numbers
+     */
+    public boolean isGCM() {
+        return gcm;
+    }
+
+    private GCMParameterSpec recordSpec(int direction, long seq) {
+        byte[] nonce = ByteBuffer.allocate(12).putInt(direction).putLong(seq).array();
+        return new GCMParameterSpec(GCM_TAG_SIZE * 8, nonce);
+    }
 
+    /**
+     * Checks a received sequence number against the sliding replay window.
+     * Records may arrive a little out of order, but never twice
+     * @param seq sequence number of the record
+     * @return true if the record has not been seen
+     */
+    private boolean isFresh(long seq) {
+        if (seq > highestSeq) {
+            return true;
+        }
+        long age = highestSeq - seq;
+        return age < REPLAY_WINDOW && (replayWindow >>> age & 1) == 0;
+    }
+
+    private void markSeen(long seq) {
+        if (seq > highestSeq) {
+            long shift = seq - highestSeq;
+            replayWindow = shift >= REPLAY_WINDOW ? 1 : (replayWindow << shift) | 1;
+            highestSeq = seq;
+        } else {
+            replayWindow |= 1L << (highestSeq - seq);
+        }
     }
 
     /**
@@ -128,6 +236,7 @@ public class Encryption {
         KeyGenerator keyGen = KeyGenerator.getInstance("AES");
         keyGen.init(128);
         aesKey = keyGen.generateKey();
+        initCiphers();
         if (theirPublicKey == null) {
             throw new Exception("TheirPublicKey not initialized");
         }
@@ -136,6 +245,135 @@ public class Encryption {
         return cipher.doFinal(aesKey.getEncoded());
     }
 
+    /**
+     * generateECDHKey creates this session's ephemeral X25519 pair
+     * @return our X25519 public key, X.509 encoded, to send to the peer
+     * @throws Exception When X25519 is not available
+     */
+    public byte[] generateECDHKey() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("X25519");
+        ecdhKeys = keyGen.generateKeyPair();
+        return ecdhKeys.getPublic().getEncoded();
+    }
+
+    /**
+     * agreeECDH derives and stores the AES key from our ephemeral pair and the peer's public key.
+     * The key is HKDF-SHA256 over the X25519 secret, salted with both public keys
+     * (initiator first) so both sides derive it from the same transcript
+     * @param theirKey the peer's X25519 public key, X.509 encoded
+     * @param initiator true on the side that connected
+     * @throws Exception When generateECDHKey was not called or the key is invalid
+     */
+    public void agreeECDH(byte[] theirKey, boolean initiator) throws Exception {
+        if (ecdhKeys == null) {
+            throw new Exception("ECDH key not generated");
+        }
+        PublicKey theirECDHKey = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(theirKey));
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(ecdhKeys.getPrivate());
+        agreement.doPhase(theirECDHKey, true);
+        byte[] secret = agreement.generateSecret();
+
+        byte[] mine = ecdhKeys.getPublic().getEncoded();
+        ByteArrayOutputStream transcript = new ByteArrayOutputStream();
+        transcript.write(initiator ? mine : theirKey);
+        transcript.write(initiator ? theirKey : mine);
+
+        ecdhKeys = null; //ephemeral, never reused
+        sessionKeys(hkdfExtract(transcript.toByteArray(), secret));
+    }
+
+    /**
+     * resume derives a fresh AES key from the resumption secret of an earlier session,
+     * without any key exchange. Both nonces make every resumed key unique
+     * @param secret the resumption secret stored with the ticket
+     * @param clientNonce random bytes sent by the connecting side
+     * @param serverNonce random bytes sent by the listening side
+     * @throws Exception
+     */
+    public void resume(byte[] secret, byte[] clientNonce, byte[] serverNonce) throws Exception {
+        byte[] salt = new byte[clientNonce.length + serverNonce.length];
+        System.arraycopy(clientNonce, 0, salt, 0, clientNonce.length);
+        System.arraycopy(serverNonce, 0, salt, clientNonce.length, serverNonce.length);
+        sessionKeys(hkdfExtract(salt, secret));
+    }
+
+    /**
+     * Expands the session's pseudorandom key into the AES key, the resumption secret and the ticket
+     * @param prk output of hkdfExtract for this session
+     * @throws Exception
+     */
+    private void sessionKeys(byte[] prk) throws Exception {
+        aesKey = new SecretKeySpec(hkdfExpand(prk, "lsb session key", 16), "AES");
+        resumptionSecret = hkdfExpand(prk, "lsb resumption", 32);
+        ticket = hkdfExpand(prk, "lsb ticket", TICKET_SIZE);
+        initCiphers();
+    }
+
+    /**
+     * getTicket returns the opaque ticket of this session
+     * @return the ticket, null if the session was not keyed with HKDF
+     */
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    /**
+     * getResumptionSecret returns the secret a resumed session derives its key from
+     * @return the secret, null if the session was not keyed with HKDF
+     */
+    public byte[] getResumptionSecret() {
+        return resumptionSecret;
+    }
+
+    /**
+     * randomNonce returns NONCE_SIZE random bytes
+     * @return the nonce
+     */
+    public static byte[] randomNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * HKDF-Extract (RFC 5869) with HMAC-SHA256
+     * @param salt the salt
+     * @param ikm the input keying material
+     * @return the pseudorandom key
+     * @throws Exception
+     */
+    static byte[] hkdfExtract(byte[] salt, byte[] ikm) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        return mac.doFinal(ikm);
+    }
+
+    /**
+     * HKDF-Expand (RFC 5869) with HMAC-SHA256
+     * @param prk the pseudorandom key from hkdfExtract
+     * @param info label binding the output to its use
+     * @param length number of bytes to derive, at most 255 * 32
+     * @return the derived bytes
+     * @throws Exception
+     */
+    static byte[] hkdfExpand(byte[] prk, String info, int length) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] out = new byte[length];
+        byte[] block = new byte[0];
+        for (int i = 0, done = 0; done < length; i++) {
+            mac.update(block);
+            mac.update(info.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) (i + 1));
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - done);
+            System.arraycopy(block, 0, out, done, n);
+            done += n;
+        }
+        return out;
+    }
+
     /**
      * Simple helper function for AESEncrypt. Offered to simplify Manager work.
      * @param in Input string to encrypt
@@ -162,20 +400,10 @@ public class Encryption {
      * @throws Exception
      */
     public byte[] AESEncrypt(String inputPlainText) throws Exception {
-        
-        if (aesKey == null) {
-            throw new Exception("AES key not initialized");
-        }
-        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-        byte[] ciphertext = cipher.doFinal(inputPlainText.getBytes());
-            //System.out.println("encrypted bytes:");
-            //for ( byte d : ciphertext) {
-            //    System.out.printf ( String.format ( "%d ",
-            //                                        d ) );
-            //}
-
-        return ciphertext;
+        byte[] plainText = inputPlainText.getBytes(StandardCharsets.UTF_8);
+        byte[] cipherText = new byte[encryptedSize(plainText.length)];
+        int length = encrypt(plainText, 0, plainText.length, cipherText, 0);
+        return length == cipherText.length ? cipherText : Arrays.copyOf(cipherText, length);
     }
 
     /**
@@ -185,30 +413,259 @@ public class Encryption {
      * @throws Exception
      */
     public String AESDecrypt(byte[] inputCipherText) throws Exception {
-            //System.out.println("decrypting bytes:");
-            //for ( byte d : inputCipherText) {
-            //    System.out.printf ( String.format ( "%d ",
-            //                                        d ) );
-            //}
-        if (aesKey == null) {
+        byte[] newPlainText = new byte[inputCipherText.length];
+        int length = decrypt(inputCipherText, 0, inputCipherText.length, newPlainText, 0);
+        return( new String(newPlainText, 0, length, StandardCharsets.UTF_8) );
+    }
+
+    /**
+     * Encrypts a byte[] with the AES key
+     * @param plainText bytes to be encrypted
+     * @return the ciphertext
+     * @throws Exception
+     */
+    public byte[] encryptBytes(byte[] plainText) throws Exception {
+        byte[] cipherText = new byte[encryptedSize(plainText.length)];
+        int length = encrypt(plainText, 0, plainText.length, cipherText, 0);
+        return length == cipherText.length ? cipherText : Arrays.copyOf(cipherText, length);
+    }
+
+    /**
+     * Decrypts a byte[] with the AES key
+     * @param cipherText bytes to be decrypted
+     * @return the plaintext
+     * @throws Exception
+     */
+    public byte[] decryptBytes(byte[] cipherText) throws Exception {
+        byte[] plainText = new byte[cipherText.length];
+        int length = decrypt(cipherText, 0, cipherText.length, plainText, 0);
+        return Arrays.copyOf(plainText, length);
+    }
+
+    /**
+     * Encrypts a range of bytes into a caller supplied array, without allocating
+     * @param in array holding the plaintext
+     * @param inOffset start of the plaintext
+     * @param length length of the plaintext
+     * @param out array to write the ciphertext to, needs encryptedSize(length) bytes
+     * @param outOffset where to start writing
+     * @return number of bytes written to out
+     * @throws Exception
+     */
+    public int encrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) throws Exception {
+        long start = Metrics.sample();
+        try {
+            Cipher cipher = encryptCipher();
+            synchronized (cipher) {
+                if (!gcm) {
+                    return cipher.doFinal(in, inOffset, length, out, outOffset);
+                }
+                long seq = sendSeq++;
+                ByteBuffer.wrap(out, outOffset, RECORD_SEQ_SIZE).putLong(seq);
+                cipher.init(Cipher.ENCRYPT_MODE, aesKey, recordSpec(sendDirection, seq));
+                cipher.updateAAD(out, outOffset, RECORD_SEQ_SIZE);
+                return RECORD_SEQ_SIZE + cipher.doFinal(in, inOffset, length, out, outOffset + RECORD_SEQ_SIZE);
+            }
+        } finally {
+            Metrics.ENCRYPT.recordSince(start);
+        }
+    }
+
+    /**
+     * Decrypts a range of bytes into a caller supplied array, without allocating.
+     * in and out may be the same array
+     * @param in array holding the ciphertext
+     * @param inOffset start of the ciphertext
+     * @param length length of the ciphertext
+     * @param out array to write the plaintext to, needs length bytes
+     * @param outOffset where to start writing
+     * @return number of bytes written to out
+     * @throws Exception
+     */
+    public int decrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) throws Exception {
+        long start = Metrics.sample();
+        try {
+            Cipher cipher = decryptCipher();
+            synchronized (cipher) {
+                if (!gcm) {
+                    return cipher.doFinal(in, inOffset, length, out, outOffset);
+                }
+                if (length < RECORD_SEQ_SIZE + GCM_TAG_SIZE) {
+                    throw new AEADBadTagException("Record too short");
+                }
+                long seq = ByteBuffer.wrap(in, inOffset, RECORD_SEQ_SIZE).getLong();
+                if (!isFresh(seq)) {
+                    throw new AEADBadTagException("Replayed record " + seq);
+                }
+                cipher.init(Cipher.DECRYPT_MODE, aesKey, recordSpec(receiveDirection, seq));
+                cipher.updateAAD(in, inOffset, RECORD_SEQ_SIZE);
+                int plainLength = cipher.doFinal(in, inOffset + RECORD_SEQ_SIZE, length - RECORD_SEQ_SIZE, out, outOffset);
+                markSeen(seq);
+                return plainLength;
+            }
+        } finally {
+            Metrics.DECRYPT.recordSince(start);
+        }
+    }
+
+    /**
+     * Reserves count consecutive sequence numbers for encryptRecord, so records
+     * encrypted in any order by many threads still carry the order they are sent in
+     * @param count number of records to reserve
+     * @return the first sequence number of the block
+     * @throws Exception When the AES key is not set yet
+     */
+    public long reserveRecords(int count) throws Exception {
+        synchronized (encryptCipher()) {
+            long first = sendSeq;
+            sendSeq += count;
+            return first;
+        }
+    }
+
+    /**
+     * Encrypts prefix followed by the remaining bytes of in as one GCM record,
+     * under a sequence number from reserveRecords. The record is encrypted with
+     * a cipher of the calling thread, so many threads can encrypt records of
+     * this session at once. in may be a mapped file region
+     * @param seq the reserved sequence number of this record
+     * @param prefix bytes put in front of the data
+     * @param in buffer holding the data, advanced to its limit
+     * @param out array to write the record to, needs encryptedSize(prefix.length + in.remaining()) bytes
+     * @param outOffset where to start writing
+     * @return number of bytes written to out
+     * @throws Exception When the session is not in GCM mode
+     */
+    public int encryptRecord(long seq, byte[] prefix, ByteBuffer in, byte[] out, int outOffset) throws Exception {
+        long start = Metrics.sample();
+        try {
+            if (!gcm) {
+                throw new Exception("Parallel encryption needs GCM records");
+            }
+            Cipher cipher = parallelCiphers.get();
+            ByteBuffer.wrap(out, outOffset, RECORD_SEQ_SIZE).putLong(seq);
+            cipher.init(Cipher.ENCRYPT_MODE, aesKey, recordSpec(sendDirection, seq));
+            cipher.updateAAD(out, outOffset, RECORD_SEQ_SIZE);
+            int length = RECORD_SEQ_SIZE;
+            length += cipher.update(prefix, 0, prefix.length, out, outOffset + length);
+            ByteBuffer rest = ByteBuffer.wrap(out, outOffset + length, out.length - outOffset - length);
+            return length + cipher.doFinal(in, rest);
+        } finally {
+            Metrics.ENCRYPT.recordSince(start);
+        }
+    }
+
+    /**
+     * Encrypts the remaining bytes of in into out, advancing both buffers
+     * @param in buffer holding the plaintext
+     * @param out buffer with room for encryptedSize(in.remaining()) bytes
+     * @return number of bytes written to out
+     * @throws Exception
+     */
+    public int encrypt(ByteBuffer in, ByteBuffer out) throws Exception {
+        long start = Metrics.sample();
+        try {
+            Cipher cipher = encryptCipher();
+            synchronized (cipher) {
+                if (!gcm) {
+                    return cipher.doFinal(in, out);
+                }
+                long seq = sendSeq++;
+                byte[] aad = ByteBuffer.allocate(RECORD_SEQ_SIZE).putLong(seq).array();
+                out.put(aad);
+                cipher.init(Cipher.ENCRYPT_MODE, aesKey, recordSpec(sendDirection, seq));
+                cipher.updateAAD(aad);
+                return RECORD_SEQ_SIZE + cipher.doFinal(in, out);
+            }
+        } finally {
+            Metrics.ENCRYPT.recordSince(start);
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of in into out, advancing both buffers.
+     * in and out should not overlap, the JDK copies the input first if they do
+     * @param in buffer holding the ciphertext
+     * @param out buffer with room for in.remaining() bytes
+     * @return number of bytes written to out
+     * @throws Exception
+     */
+    public int decrypt(ByteBuffer in, ByteBuffer out) throws Exception {
+        long start = Metrics.sample();
+        try {
+            Cipher cipher = decryptCipher();
+            synchronized (cipher) {
+                if (!gcm) {
+                    return cipher.doFinal(in, out);
+                }
+                if (in.remaining() < RECORD_SEQ_SIZE + GCM_TAG_SIZE) {
+                    throw new AEADBadTagException("Record too short");
+                }
+                long seq = in.getLong(in.position());
+                if (!isFresh(seq)) {
+                    throw new AEADBadTagException("Replayed record " + seq);
+                }
+                cipher.init(Cipher.DECRYPT_MODE, aesKey, recordSpec(receiveDirection, seq));
+                if (in.hasArray()) { //the sequence number is the AAD, use it where it is
+                    cipher.updateAAD(in.array(), in.arrayOffset() + in.position(), RECORD_SEQ_SIZE);
+                    in.position(in.position() + RECORD_SEQ_SIZE);
+                } else {
+                    byte[] aad = new byte[RECORD_SEQ_SIZE];
+                    in.get(aad);
+                    cipher.updateAAD(aad);
+                }
+                int plainLength = cipher.doFinal(in, out);
+                markSeen(seq);
+                return plainLength;
+            }
+        } finally {
+            Metrics.DECRYPT.recordSince(start);
+        }
+    }
+
+    /**
+     * encryptedSize returns how long the ciphertext of a plaintext will be,
+     * so callers can size their output buffers
+     * @param length length of the plaintext
+     * @return length of the ciphertext
+     */
+    public int encryptedSize(int length) {
+        if (gcm) {
+            return RECORD_SEQ_SIZE + length + GCM_TAG_SIZE;
+        }
+        return (length / 16 + 1) * 16; //PKCS5 always adds 1 to 16 bytes of padding
+    }
+
+    private Cipher encryptCipher() throws Exception {
+        Cipher cipher = encryptCipher;
+        if (cipher == null) {
             throw new Exception("AES key not initialized");
         }
-        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-        cipher.init(Cipher.DECRYPT_MODE, aesKey);
-        byte[] newPlainText = cipher.doFinal(inputCipherText);
-        return( new String(newPlainText, "UTF8") );
+        return cipher;
+    }
+
+    private Cipher decryptCipher() throws Exception {
+        Cipher cipher = decryptCipher;
+        if (cipher == null) {
+            throw new Exception("AES key not initialized");
+        }
+        return cipher;
     }
 
     /**
-     * reset() sets the stored encryption information to null and generates
-     * a new pair of personal RSA keys
+     * reset() sets the stored encryption information to null and drops
+     * the personal RSA keys, a fresh pair is taken from the pool when next needed
      */
-    public void reset() throws Exception {
+    public synchronized void reset() throws Exception {
         theirPublicKey = null;
         aesKey = null;
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-        keyGen.initialize(2048);
-        rsaKeys = keyGen.generateKeyPair();
+        encryptCipher = null;
+        decryptCipher = null;
+        gcm = false;
+        myKeys = null;
+        ecdhKeys = null;
+        resumptionSecret = null;
+        ticket = null;
     }
 
 
@@ -0,0 +1,651 @@
+/**
+    FileTransfer.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    File transfers of one peer. A transfer is a conversation of FILE
+    records over the peer's session keys:
+
+        OFFER   id, size, digest, name  sender asks to send a file
+        ACCEPT  id, offset          receiver answers where to start, -1 declines
+        DATA    id, offset, bytes   one chunk of the file
+        ACK     id, offset          receiver has written everything before offset
+
+    The sender reads the file through a FileChannel, memory mapped when it
+    is large, and encrypts up to BATCH chunks at a time in parallel on a
+    fork join pool. At most WINDOW bytes are sent but not acknowledged.
+    The sequence numbers of a batch are reserved in file order before it
+    is encrypted, and the batch is sent under the peer's send lock, so
+    neither other transfers nor messages push a record out of the replay
+    window.
+
+    An offer waits for the user to /accept or /decline it. Offers larger
+    than MAX_SIZE, or than the free space of the download directory, are
+    declined right away.
+
+    The receiver writes each chunk at its offset into NAME.part, which is
+    preallocated to the file size plus a trailer holding how much has been
+    written and the SHA-256 digest of the file. If the connection drops,
+    sending the same file again picks up at that offset; a .part file with
+    a different digest is started over. Once complete the trailer is cut
+    off and the file renamed.
+*/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FileTransfer
+{
+    // -Dlsb.file.chunk, bytes of the file per DATA record
+    public static final int CHUNK_SIZE = Math.min(Integer.getInteger("lsb.file.chunk", 64 * 1024),
+                                                  Network.MAX_FRAME_SIZE - 64);
+    // -Dlsb.file.window, bytes sent ahead of the receiver's acknowledgements
+    public static final long WINDOW = Long.getLong("lsb.file.window", 8L << 20);
+    // -Dlsb.file.mapThreshold, files at least this large are memory mapped
+    public static final long MAP_THRESHOLD = Long.getLong("lsb.file.mapThreshold", 16L << 20);
+    // -Dlsb.file.threads, threads encrypting chunks
+    public static final int THREADS = Integer.getInteger("lsb.file.threads",
+                                                         Runtime.getRuntime().availableProcessors());
+    // -Dlsb.file.dir, where received files are written
+    public static final String DIRECTORY = System.getProperty("lsb.file.dir", "downloads");
+    // -Dlsb.file.maxSize, larger offers are declined without asking
+    public static final long MAX_SIZE = Long.getLong("lsb.file.maxSize", 4L << 30);
+
+    public static final byte OFFER = 0;
+    public static final byte ACCEPT = 1;
+    public static final byte DATA = 2;
+    public static final byte ACK = 3;
+
+    private static final int HEADER_SIZE = 13;       // type, id, offset
+    private static final int DIGEST_SIZE = 32;       // SHA-256 of the whole file
+    private static final int TRAILER_SIZE = 8 + DIGEST_SIZE; // written offset and digest at the end of a .part file
+    private static final int MAX_OFFERS = 8;         // offers waiting for the user, more are declined
+    private static final long MAP_REGION = 256L << 20;
+    private static final int BATCH = Math.max(1, Math.min(32, 2 * THREADS)); // stays inside the GCM replay window
+    private static final long ACCEPT_TIMEOUT = 300000; // time the user has to accept
+
+    private static ForkJoinPool pool;
+
+    private final Peer peer;
+    private final Manager manager;
+    private final AtomicInteger nextId;
+    private final Map<Integer, Outgoing> outgoing;
+    private final Map<Integer, Incoming> incoming;
+    private final Map<Integer, Offer> offers;       // guarded by itself, oldest first
+
+    /**
+        Constructor to initialize fields
+        @param peer - the peer files are sent to and received from
+        @param manager - the manager to report progress to
+    */
+    public FileTransfer(Peer peer, Manager manager)
+    {
+        this.peer = peer;
+        this.manager = manager;
+        nextId = new AtomicInteger();
+        outgoing = new ConcurrentHashMap<>();
+        incoming = new ConcurrentHashMap<>();
+        offers = new LinkedHashMap<>();
+    }
+
+    /**
+        pool()
+        @return the pool encrypting chunks, shared by every transfer
+    */
+    private static synchronized ForkJoinPool pool()
+    {
+        if (pool == null)
+        {
+            pool = new ForkJoinPool(Math.max(1, THREADS));
+        }
+        return pool;
+    }
+
+    /**
+        send()
+        Offer a file to the peer and send it on a background thread once accepted.
+        @param path - the file to send
+        @throws IOException if the file can not be read
+    */
+    public void send(Path path) throws IOException
+    {
+        if (!Files.isRegularFile(path) || !Files.isReadable(path))
+        {
+            throw new IOException("Can not read " + path);
+        }
+        Outgoing transfer = new Outgoing(nextId.getAndIncrement(), path);
+        outgoing.put(transfer.id, transfer);
+        Threads.start("FileSender-" + transfer.id, true, transfer);
+    }
+
+    /**
+        receive()
+        Handle a decrypted FILE record from the peer.
+        @param in - the plaintext of the record, read to its end
+        @throws IOException on a malformed record or when the file can not be written
+    */
+    public void receive(ByteBuffer in) throws IOException
+    {
+        byte type = in.get();
+        int id = in.getInt();
+        long offset = in.getLong();
+        switch (type)
+        {
+            case OFFER:
+                if (in.remaining() < DIGEST_SIZE)
+                {
+                    throw new IOException("Invalid file offer");
+                }
+                byte[] digest = new byte[DIGEST_SIZE];
+                in.get(digest);
+                offer(id, offset, digest, StandardCharsets.UTF_8.decode(in).toString());
+                break;
+            case DATA:
+                Incoming file = incoming.get(id);
+                if (file == null)
+                {
+                    throw new IOException("Data for unknown transfer " + id);
+                }
+                file.write(offset, in);
+                break;
+            case ACCEPT:
+            case ACK:
+                Outgoing transfer = outgoing.get(id);
+                if (transfer != null)
+                {
+                    transfer.acknowledge(type, offset);
+                }
+                break;
+            default:
+                throw new IOException("Unknown file record " + type);
+        }
+    }
+
+    /**
+        close()
+        Stop every transfer, partial files are kept for a later resume.
+    */
+    public void close()
+    {
+        synchronized (offers)
+        {
+            offers.clear();
+        }
+        for (Incoming file : incoming.values())
+        {
+            file.close();
+        }
+        incoming.clear();
+        for (Outgoing transfer : outgoing.values())
+        {
+            transfer.acknowledge(ACK, -1);
+        }
+    }
+
+    /**
+        A file offered by the peer, waiting for the user
+    */
+    private static class Offer
+    {
+        private final int id;
+        private final long size;
+        private final byte[] digest;
+        private final String name;
+
+        public Offer(int id, long size, byte[] digest, String name)
+        {
+            this.id = id;
+            this.size = size;
+            this.digest = digest;
+            this.name = name;
+        }
+    }
+
+    /**
+        offer()
+        Check an offered file and ask the user whether to accept it.
+    */
+    private void offer(int id, long size, byte[] digest, String name) throws IOException
+    {
+        // never write outside the download directory
+        Path base = Paths.get(name).getFileName();
+        String fileName = (base == null) ? "" : base.toString();
+        if (size < 0 || fileName.isEmpty() || fileName.equals("..") || fileName.equals("."))
+        {
+            throw new IOException("Invalid file offer " + name);
+        }
+        Path directory = Paths.get(DIRECTORY);
+        Files.createDirectories(directory);
+        if (size > MAX_SIZE || size + TRAILER_SIZE > Files.getFileStore(directory).getUsableSpace())
+        {
+            sendRecord(header(ACCEPT, id, -1, 0));
+            manager.alert("Declined " + fileName + " (" + size + " bytes) from peer " + peer.getId()
+                          + ", it is too large");
+            return;
+        }
+        synchronized (offers)
+        {
+            if (offers.size() >= MAX_OFFERS)
+            {
+                sendRecord(header(ACCEPT, id, -1, 0));
+                return;
+            }
+            offers.put(id, new Offer(id, size, digest, fileName));
+        }
+        manager.alert("Peer " + peer.getId() + " offers " + fileName + " (" + size + " bytes), "
+                      + "/accept or /decline it");
+    }
+
+    /**
+        accept()
+        Accept the oldest offer of the peer, opening or resuming its .part file.
+        @return false if there was no offer
+        @throws IOException if the file can not be written
+    */
+    public boolean accept() throws IOException
+    {
+        Offer offer = nextOffer();
+        if (offer == null)
+        {
+            return false;
+        }
+        Incoming file;
+        try
+        {
+            file = new Incoming(offer.id, offer.size, offer.digest, Paths.get(DIRECTORY).resolve(offer.name));
+        }
+        catch (IOException e)
+        {
+            sendRecord(header(ACCEPT, offer.id, -1, 0));
+            throw e;
+        }
+        incoming.put(offer.id, file);
+        sendRecord(header(ACCEPT, offer.id, file.offset, 0));
+        manager.alert("Receiving " + offer.name + " (" + offer.size + " bytes) from peer " + peer.getId()
+                      + (file.offset > 0 ? ", resuming at " + file.offset : ""));
+        if (file.offset == offer.size)
+        {
+            file.finish();
+        }
+        return true;
+    }
+
+    /**
+        decline()
+        Decline the oldest offer of the peer.
+        @return the name of the declined file, null if there was no offer
+        @throws IOException if the answer can not be sent
+    */
+    public String decline() throws IOException
+    {
+        Offer offer = nextOffer();
+        if (offer == null)
+        {
+            return null;
+        }
+        sendRecord(header(ACCEPT, offer.id, -1, 0));
+        return offer.name;
+    }
+
+    /**
+        @return the oldest offer, removed, or null
+    */
+    private Offer nextOffer()
+    {
+        synchronized (offers)
+        {
+            if (offers.isEmpty())
+            {
+                return null;
+            }
+            Offer offer = offers.values().iterator().next();
+            offers.remove(offer.id);
+            return offer;
+        }
+    }
+
+    /**
+        digest()
+        @return the SHA-256 digest of the whole file
+    */
+    private static byte[] digest(FileChannel channel) throws IOException
+    {
+        MessageDigest sha;
+        try
+        {
+            sha = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        for (long position = 0; channel.read(buffer, position) > 0; buffer.clear())
+        {
+            buffer.flip();
+            position += buffer.remaining();
+            sha.update(buffer);
+        }
+        return sha.digest();
+    }
+
+    /**
+        header()
+        @return a record of the given type with room for length more bytes
+    */
+    private static ByteBuffer header(byte type, int id, long offset, int length)
+    {
+        return ByteBuffer.allocate(HEADER_SIZE + length).put(type).putInt(id).putLong(offset);
+    }
+
+    /**
+        sendRecord()
+        Encrypt and send a control record.
+    */
+    private void sendRecord(ByteBuffer record) throws IOException
+    {
+        try
+        {
+            synchronized (peer.getSendLock())
+            {
+                peer.getNetwork().sendFile(peer.getEncryption().encryptBytes(record.array()));
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Could not encrypt file record", e);
+        }
+    }
+
+    /**
+        A file being sent
+    */
+    private class Outgoing implements Runnable
+    {
+        private final int id;
+        private final Path path;
+        private long acked = -1;      // guarded by this, -1 until accepted
+        private boolean stopped = false;
+        private MappedByteBuffer region;
+        private long regionStart;
+
+        public Outgoing(int id, Path path)
+        {
+            this.id = id;
+            this.path = path;
+        }
+
+        public void run()
+        {
+            String name = path.getFileName().toString();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                long size = channel.size();
+                byte[] offer = name.getBytes(StandardCharsets.UTF_8);
+                sendRecord(header(OFFER, id, size, DIGEST_SIZE + offer.length).put(digest(channel)).put(offer));
+
+                long next = waitFor(0, ACCEPT_TIMEOUT);
+                if (next < 0)
+                {
+                    manager.alert("Peer " + peer.getId() + " did not accept " + name);
+                    return;
+                }
+                long start = next;
+                long began = System.nanoTime();
+
+                while (next < size)
+                {
+                    // flow control, wait until the receiver caught up
+                    if (waitFor(next - WINDOW + CHUNK_SIZE, 0) < 0)
+                    {
+                        throw new IOException("disconnected at " + acked + " of " + size + " bytes");
+                    }
+                    synchronized (peer.getSendLock())
+                    {
+                        int count = (int) Math.min(BATCH, (size - next + CHUNK_SIZE - 1) / CHUNK_SIZE);
+                        long seq = peer.getEncryption().reserveRecords(count);
+                        List<ForkJoinTask<byte[]>> batch = new ArrayList<>();
+                        for (int i = 0; i < count; i++)
+                        {
+                            long offset = next;
+                            long record = seq + i;
+                            int length = (int) Math.min(CHUNK_SIZE, size - offset);
+                            batch.add(pool().submit(() -> encode(channel, size, offset, length, record)));
+                            next += length;
+                        }
+                        // encrypted in parallel, sent in file order
+                        for (ForkJoinTask<byte[]> task : batch)
+                        {
+                            peer.getNetwork().sendFile(task.join());
+                        }
+                    }
+                }
+                if (waitFor(size, 0) < 0)
+                {
+                    throw new IOException("disconnected at " + acked + " of " + size + " bytes");
+                }
+                long millis = Math.max(1, (System.nanoTime() - began) / 1000000);
+                manager.alert("Sent " + name + " to peer " + peer.getId() + " ("
+                              + (size - start) * 1000 / millis / 1024 + " KB/s)");
+            }
+            catch (Exception e)
+            {
+                manager.alert("Sending " + name + " stopped: " + e.getMessage()
+                              + ". /send it again to resume.");
+            }
+            finally
+            {
+                outgoing.remove(id);
+            }
+        }
+
+        /**
+            Encrypt one DATA record under its reserved sequence number, runs on the pool.
+        */
+        private byte[] encode(FileChannel channel, long size, long offset, int length, long seq)
+            throws Exception
+        {
+            ByteBuffer data;
+            if (size >= MAP_THRESHOLD)
+            {
+                data = slice(channel, size, offset, length);
+            }
+            else
+            {
+                data = ByteBuffer.allocate(length);
+                while (data.hasRemaining())
+                {
+                    if (channel.read(data, offset + data.position()) < 0)
+                    {
+                        throw new IOException("File shrank while sending");
+                    }
+                }
+                data.flip();
+            }
+            byte[] prefix = header(DATA, id, offset, 0).array();
+            Encryption encryption = peer.getEncryption();
+            byte[] record = new byte[encryption.encryptedSize(HEADER_SIZE + length)];
+            encryption.encryptRecord(seq, prefix, data, record, 0);
+            return record;
+        }
+
+        /**
+            The mapped bytes of a chunk. Regions of MAP_REGION bytes are mapped
+            as the transfer moves through the file.
+        */
+        private synchronized ByteBuffer slice(FileChannel channel, long size, long offset, int length)
+            throws IOException
+        {
+            if (region == null || offset < regionStart || offset + length > regionStart + region.capacity())
+            {
+                regionStart = offset;
+                region = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                                     Math.min(Math.max(MAP_REGION, length), size - offset));
+            }
+            ByteBuffer data = region.duplicate();
+            data.position((int) (offset - regionStart));
+            data.limit(data.position() + length);
+            return data;
+        }
+
+        /**
+            Wait until the receiver acknowledged at least offset.
+            @return the acknowledged offset, or -1 if stopped or timed out
+        */
+        private synchronized long waitFor(long offset, long timeout) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!stopped && acked < offset && peer.isConnected())
+            {
+                long wait = (timeout > 0) ? deadline - System.currentTimeMillis() : 1000;
+                if (wait <= 0)
+                {
+                    return -1;
+                }
+                wait(Math.min(wait, 1000));
+            }
+            return (stopped || !peer.isConnected()) ? -1 : acked;
+        }
+
+        /**
+            An ACCEPT or ACK arrived, or the transfer is stopped with offset -1.
+        */
+        public synchronized void acknowledge(byte type, long offset)
+        {
+            if (offset < 0)
+            {
+                stopped = true;
+            }
+            else if (type == ACCEPT || offset > acked)
+            {
+                acked = offset;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+        A file being received
+    */
+    private class Incoming
+    {
+        private final int id;
+        private final long size;
+        private final Path target;
+        private final Path part;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        private long offset;
+
+        public Incoming(int id, long size, byte[] digest, Path target) throws IOException
+        {
+            this.id = id;
+            this.size = size;
+            this.target = target;
+            part = target.resolveSibling(target.getFileName() + ".part");
+
+            // resume where a dropped transfer of the same file stopped
+            boolean resume = Files.exists(part) && Files.size(part) == size + TRAILER_SIZE;
+            file = new RandomAccessFile(part.toFile(), "rw");
+            channel = file.getChannel();
+            if (resume)
+            {
+                channel.read(trailer, size);
+                // a different file of the same name and size starts over
+                resume = !trailer.hasRemaining()
+                    && Arrays.equals(Arrays.copyOfRange(trailer.array(), 8, TRAILER_SIZE), digest);
+            }
+            if (resume)
+            {
+                offset = Math.max(0, Math.min(size, trailer.getLong(0)));
+            }
+            else
+            {
+                file.setLength(size + TRAILER_SIZE);
+                offset = 0;
+                trailer.putLong(0, 0);
+                trailer.position(8);
+                trailer.put(digest);
+                trailer.flip();
+                channel.write(trailer, size);
+            }
+        }
+
+        /**
+            Write a chunk in place and acknowledge it.
+        */
+        public void write(long at, ByteBuffer data) throws IOException
+        {
+            if (at != offset || at + data.remaining() > size)
+            {
+                throw new IOException("Unexpected chunk at " + at + " of " + target.getFileName());
+            }
+            while (data.hasRemaining())
+            {
+                offset += channel.write(data, offset);
+            }
+            trailer.clear();
+            trailer.limit(8);
+            trailer.putLong(0, offset);
+            channel.write(trailer, size);
+            sendRecord(header(ACK, id, offset, 0));
+            if (offset == size)
+            {
+                finish();
+            }
+        }
+
+        /**
+            Cut off the trailer and move the file into place.
+        */
+        public void finish() throws IOException
+        {
+            channel.truncate(size);
+            close();
+            Path name = target;
+            for (int i = 1; Files.exists(name); i++)
+            {
+                name = target.resolveSibling(target.getFileName() + "." + i);
+            }
+            Files.move(part, name);
+            incoming.remove(id);
+            manager.alert("Received " + name);
+        }
+
+        public void close()
+        {
+            try
+            {
+                file.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -4,13 +4,26 @@
 
 
 import java.awt.event.*;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.*;
 
-public class GUI extends JFrame {
+public class GUI implements ManagerListener {
+    // -Dlsb.gui.frameMs, how often queued output is drawn
+    public static final int FRAME_MS = Integer.getInteger("lsb.gui.frameMs", 16);
+    // -Dlsb.gui.frameLines, most queued prints drawn per frame
+    public static final int FRAME_LINES = Integer.getInteger("lsb.gui.frameLines", 2000);
+
     private LinkedList<String> buffer;
     private Manager manager;
-    private JTextArea textArea;
+    private JList<String> textList;
+    private Transcript transcript;
+    private JScrollPane scrollPane;
+    private ConcurrentLinkedQueue<String> pending; //output waiting for the next frame
+    private AtomicBoolean frameScheduled;
+    private Timer frameTimer;
 
     /**
      * Constructor for GUI object. Messages are placed in a buffer for the Manager
@@ -19,6 +32,10 @@ public class GUI extends JFrame {
     public GUI() {
         buffer = new LinkedList<>();
         manager = null;
+        pending = new ConcurrentLinkedQueue<>();
+        frameScheduled = new AtomicBoolean();
+        frameTimer = new Timer(FRAME_MS, e -> drawFrame());
+        frameTimer.setRepeats(false);
     }
 
     /**
@@ -38,21 +55,17 @@ public class GUI extends JFrame {
     {
         //Schedule a job for the event dispatch thread:
         //creating and showing this application's GUI.
+        //Output printed before the window is up waits in the frame queue.
         javax.swing.SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 createAndShowGUI();
             }
         });
-        try { //waits one second before returning so swing thread runs
-            Thread.sleep(1000);
-        } catch(InterruptedException ex) {
-            Thread.currentThread().interrupt();
-        }
     }
 
     /**
-     * Prints the given string to the textArea with an appended newline character.
-     * @param output Text to be printed in the textArea
+     * Prints the given string to the transcript with an appended newline character.
+     * @param output Text to be printed in the transcript
      */
     public void println(String output) {
         print("> " + output + "\n");
@@ -77,12 +90,45 @@ public class GUI extends JFrame {
     }
 
     /**
-     * Prints the given string to the textArea.
-     * @param output Text to be printed in the textArea
+     * Prints the given string to the transcript. Safe to call from any thread:
+     * the text is queued and drawn with everything else queued on the next frame.
+     * @param output Text to be printed in the transcript
      */
     public void print(String output) {
-        textArea.append(output);
-        textArea.setCaretPosition(textArea.getDocument().getLength());
+        pending.add(output);
+        if (frameScheduled.compareAndSet(false, true)) {
+            frameTimer.start();
+        }
+    }
+
+    /**
+     * Draws the queued output, runs on the event dispatch thread once per frame.
+     * Everything queued goes into the transcript as one update, and the view only
+     * follows it to the bottom if the user had not scrolled up to read.
+     */
+    private void drawFrame() {
+        if (textList == null) { //window not shown yet, try again next frame
+            frameTimer.restart();
+            return;
+        }
+        frameScheduled.set(false);
+
+        StringBuilder text = new StringBuilder();
+        String output;
+        for (int i = 0; i < FRAME_LINES && (output = pending.poll()) != null; i++) {
+            text.append(output);
+        }
+        if (text.length() > 0) {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            boolean pinned = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+            transcript.append(text.toString());
+            if (pinned) {
+                textList.ensureIndexIsVisible(transcript.getSize() - 1);
+            }
+        }
+        if (!pending.isEmpty() && frameScheduled.compareAndSet(false, true)) {
+            frameTimer.start();
+        }
     }
 
     /**
@@ -122,10 +168,13 @@ public class GUI extends JFrame {
 
         //Add contents to the window
 
-        JTextArea myArea = new JTextArea(msg, 20, 40);
-        myArea.setEditable(false);
-        myArea.setLineWrap(true);
-        myArea.setWrapStyleWord(true);
+        //the list only renders the rows in view, fixed row sizes keep it from measuring the rest
+        transcript = new Transcript();
+        transcript.append(msg);
+        JList<String> myList = new JList<>(transcript);
+        myList.setFont(UIManager.getFont("TextArea.font"));
+        myList.setPrototypeCellValue(String.join("", Collections.nCopies(Transcript.COLUMNS, "m")));
+        myList.setVisibleRowCount(20);
 
         JTextField myField = new JTextField();
         myField.addActionListener(new AbstractAction()
@@ -133,14 +182,13 @@ public class GUI extends JFrame {
             /**
              * Action performed activates when a user presses the "enter" key while
              * the textField is in focus. The textField will be cleared, and the text
-             * appended to the textArea
+             * appended to the transcript
              * @param e
              */
             public void actionPerformed(ActionEvent e)
             {
                 String newMsg = myField.getText();
                 myField.setText("");
-                //myArea.append("> " + newMsg + "\n");
                 println(newMsg);
                 /*
                 If a manager was provided to the constructor, the input will be passed out
@@ -158,7 +206,7 @@ public class GUI extends JFrame {
         });
 
         JSplitPane myPane = new JSplitPane();
-        JScrollPane scrollPane = new JScrollPane(myArea);
+        scrollPane = new JScrollPane(myList);
         scrollPane.setWheelScrollingEnabled(true);
         myPane.setOrientation(JSplitPane.VERTICAL_SPLIT);
         myPane.setTopComponent(scrollPane);
@@ -168,7 +216,7 @@ public class GUI extends JFrame {
         //Display the window
         frame.pack();
         frame.setVisible(true);
-        textArea = myArea; //stores the JTextArea for printing functions
+        textList = myList; //stores the JList for printing functions
     }
 
     /*
@@ -180,7 +228,8 @@ public class GUI extends JFrame {
      */
     /*
     public static void main(String[] args) throws Exception {
-        GUI myGui = new GUI(); //warning, this will sleep for a second when called
+        GUI myGui = new GUI();
+        myGui.start();
         myGui.println("YO WHATS UP???????");
         myGui.print("This is how you print to the user. Easy right?\n");
         Thread.sleep(5000);
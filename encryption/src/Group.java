@@ -0,0 +1,252 @@
+/**
+    Group.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    A group room, the peers in it and the sender keys of everyone in it.
+    We encrypt our messages to the room once with our own SenderKey and
+    send the same record to every member. Every member has sent us their
+    own key, which we decrypt their messages with. Our key is replaced
+    whenever a member is added or removed.
+
+    Records are sealed and queued with the group locked, and sent once
+    the lock is released, in the order they were queued. A member slow
+    to take its records holds up our other sends to the group, but never
+    the keys and messages coming in from it.
+
+    GROUP packets start with a kind byte in the clear:
+        KEY      pairwise encrypted: name length, name, epoch, key length, key
+                 (a key length of 0 means the sender removed us)
+        MESSAGE  name length, name, epoch, then a SenderKey record
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Group
+{
+    public static final byte KEY = 0;
+    public static final byte MESSAGE = 1;
+    public static final int MAX_NAME = 64;   // bytes of a group name
+
+    private final String name;
+    private final byte[] nameBytes;
+    private final Set<Integer> members;          // peer ids
+    private final Map<Integer, SenderKey> keys;  // their keys, by peer id
+    private final Compression compression;       // of our messages and theirs
+    private SenderKey myKey;
+    private byte[] header;                       // of our messages under myKey
+    private final Queue<Runnable> outbox;        // sends queued with the group locked, oldest first
+    private final ReentrantLock sending;         // held while the outbox is sent
+    private volatile HistoryStore.Conversation history;  // null if not kept
+
+    /**
+        Constructor to initialize fields
+        @param name - what the members call the room
+    */
+    public Group(String name) throws Exception
+    {
+        this.name = name;
+        nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length == 0 || nameBytes.length > MAX_NAME)
+        {
+            throw new IllegalArgumentException("Group names are 1 to " + MAX_NAME + " bytes");
+        }
+        members = new LinkedHashSet<>();
+        keys = new HashMap<>();
+        compression = new Compression();
+        outbox = new ConcurrentLinkedQueue<>();
+        sending = new ReentrantLock();
+        rotate();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Compression getCompression()
+    {
+        return compression;
+    }
+
+    public HistoryStore.Conversation getHistory()
+    {
+        return history;
+    }
+
+    public void setHistory(HistoryStore.Conversation h)
+    {
+        history = h;
+    }
+
+    /**
+        queue()
+        Queue a send to members. Call with the group locked, right after
+        sealing what it sends, so records go out in the order they were
+        sealed and a member always has our key before the messages under it.
+        @param send - sends to one or more members, handles its own errors
+    */
+    public synchronized void queue(Runnable send)
+    {
+        outbox.add(send);
+    }
+
+    /**
+        flush()
+        Send everything queued, in order. Call after releasing the group
+        lock, after every queue().
+    */
+    public void flush()
+    {
+        sending.lock();
+        try
+        {
+            Runnable send;
+            while ((send = outbox.poll()) != null)
+            {
+                send.run();
+            }
+        }
+        finally
+        {
+            sending.unlock();
+        }
+    }
+
+    /**
+        @return the ids of the members, a copy
+    */
+    public synchronized List<Integer> getMembers()
+    {
+        return new ArrayList<>(members);
+    }
+
+    public synchronized boolean isMember(int id)
+    {
+        return members.contains(id);
+    }
+
+    /**
+        Add a member. Our key has to be rotated and sent out afterwards.
+        @param id - the peer
+        @return true if it was not a member yet
+    */
+    public synchronized boolean add(int id)
+    {
+        return members.add(id);
+    }
+
+    /**
+        Remove a member and forget its key. Our key has to be rotated and
+        sent to the remaining members afterwards.
+        @param id - the peer
+        @return true if it was a member
+    */
+    public synchronized boolean remove(int id)
+    {
+        keys.remove(id);
+        return members.remove(id);
+    }
+
+    /**
+        rotate()
+        Replace our key with a fresh one of the next epoch.
+    */
+    public synchronized void rotate() throws Exception
+    {
+        myKey = SenderKey.generate(myKey == null ? 0 : myKey.getEpoch() + 1);
+        header = header(MESSAGE, myKey.getEpoch());
+    }
+
+    public synchronized SenderKey getMyKey()
+    {
+        return myKey;
+    }
+
+    /**
+        @return the header of our messages under the current key
+    */
+    public synchronized byte[] getHeader()
+    {
+        return header;
+    }
+
+    public synchronized SenderKey getKey(int id)
+    {
+        return keys.get(id);
+    }
+
+    public synchronized void setKey(int id, SenderKey key)
+    {
+        keys.put(id, key);
+    }
+
+    /**
+        keyMessage()
+        The plaintext of a KEY packet, to be encrypted for one member.
+        @param key - our key, null to tell the member it was removed
+        @return name, epoch and key
+    */
+    public byte[] keyMessage(SenderKey key)
+    {
+        byte[] keyBytes = (key == null) ? new byte[0] : key.getKey();
+        return ByteBuffer.allocate(1 + nameBytes.length + 4 + 1 + keyBytes.length)
+            .put((byte) nameBytes.length).put(nameBytes)
+            .putInt(key == null ? 0 : key.getEpoch())
+            .put((byte) keyBytes.length).put(keyBytes)
+            .array();
+    }
+
+    /**
+        header()
+        @param kind - KEY or MESSAGE
+        @param epoch - epoch of the key
+        @return kind, name and epoch
+    */
+    private byte[] header(byte kind, int epoch)
+    {
+        return ByteBuffer.allocate(headerLength(nameBytes.length))
+            .put(kind).put((byte) nameBytes.length).put(nameBytes).putInt(epoch)
+            .array();
+    }
+
+    /**
+        @param nameLength - bytes of the group name
+        @return bytes of the header of a MESSAGE
+    */
+    public static int headerLength(int nameLength)
+    {
+        return 1 + 1 + nameLength + 4;
+    }
+
+    /**
+        readName()
+        Read the name of a group from a packet.
+        @param packet - positioned at the name length
+        @return the name
+        @throws IOException if the name is cut short or too long
+    */
+    public static String readName(ByteBuffer packet) throws IOException
+    {
+        int length = packet.remaining() > 0 ? packet.get() & 0xff : -1;
+        if (length < 1 || length > MAX_NAME || packet.remaining() < length + 4)
+        {
+            throw new IOException("Invalid group packet");
+        }
+        String name = new String(packet.array(), packet.arrayOffset() + packet.position(),
+            length, StandardCharsets.UTF_8);
+        packet.position(packet.position() + length);
+        return name;
+    }
+}
@@ -0,0 +1,1151 @@
+/**
+    HistoryStore.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    Keeps the messages of every conversation on disk, so closing the window
+    does not lose them. Each conversation is a directory holding
+
+        NNNNNNNN.log   segments of records, a new one is started once the
+                       current one would grow past SEGMENT_SIZE bytes
+        index          sparse index, an entry for every INDEX_INTERVAL'th
+                       record and for the first record of every segment
+        lock           locked while the conversation is open, so two
+                       instances never write the same files
+        search-*.idx   the SearchIndex of the conversation
+
+    A record is
+
+        int     length of the rest of the record
+        long    sequence number, counting from 0
+        long    time in milliseconds
+        byte    1 if we sent it, 0 if we received it
+        12      nonce
+        ...     the text, AES-GCM encrypted with the fields above and the
+                conversation name as associated data
+
+    and an index entry is the sequence number, time, segment and offset of
+    a record. Reads of the last N messages or of a time range seek to the
+    closest entry before what they need and scan forward from there, so
+    they cost the same however long the conversation is.
+
+    Records are written by one background thread; append() only queues
+    them, so storing a message never holds up the receive path. The writer
+    writes whatever is queued for a conversation at once and fsyncs at most
+    every SYNC_MS. The key is kept in DIRECTORY/key, readable only by the
+    user where the file system allows it.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class HistoryStore
+{
+    // -Dlsb.history=off keeps no history
+    public static final boolean ENABLED = !"off".equals(System.getProperty("lsb.history"));
+    // -Dlsb.history.dir, where conversations are stored
+    public static final String DIRECTORY = System.getProperty("lsb.history.dir", "history");
+    // -Dlsb.history.segmentSize, bytes per segment before a new one is started
+    public static final long SEGMENT_SIZE = Long.getLong("lsb.history.segmentSize", 64L << 20);
+    // -Dlsb.history.indexInterval, records per index entry
+    public static final int INDEX_INTERVAL = Math.max(1, Integer.getInteger("lsb.history.indexInterval", 1024));
+    // -Dlsb.history.syncMs, most time written records wait for an fsync
+    public static final long SYNC_MS = Long.getLong("lsb.history.syncMs", 1000);
+    // -Dlsb.history.queue, records waiting for the writer before new ones are dropped
+    public static final int QUEUE_SIZE = Integer.getInteger("lsb.history.queue", 65536);
+
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 1 + 12;
+    private static final int TAG_SIZE = 16;
+    private static final int ENTRY_SIZE = 8 + 8 + 4 + 8;
+    private static final int WRITE_BATCH = 4096;
+
+    private static HistoryStore shared;
+
+    private final Path directory;
+    private final SecretKey key;
+    private final byte[] searchKey;    // words are hashed under this, see SearchIndex
+    private final SecureRandom random;
+    private final Map<String, Conversation> conversations;
+    private final BlockingQueue<Pending> queue;
+    private final LongAdder dropped;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+        A stored message
+    */
+    public static class Entry
+    {
+        private final long seq;
+        private final long time;
+        private final boolean outgoing;
+        private final String text;
+
+        public Entry(long seq, long time, boolean outgoing, String text)
+        {
+            this.seq = seq;
+            this.time = time;
+            this.outgoing = outgoing;
+            this.text = text;
+        }
+
+        /**
+            @return the position of the message in its conversation, counting from 0
+        */
+        public long getSeq()
+        {
+            return seq;
+        }
+
+        public long getTime()
+        {
+            return time;
+        }
+
+        public boolean isOutgoing()
+        {
+            return outgoing;
+        }
+
+        public String getText()
+        {
+            return text;
+        }
+    }
+
+    /**
+        A message waiting for the writer, or with no conversation a marker
+        that is counted down once everything queued before it is written.
+    */
+    private static class Pending
+    {
+        private final Conversation conversation;
+        private final long time;
+        private final boolean outgoing;
+        private final byte[] text;
+        private final CountDownLatch done;
+        private final boolean stop;
+
+        public Pending(Conversation conversation, long time, boolean outgoing, byte[] text)
+        {
+            this.conversation = conversation;
+            this.time = time;
+            this.outgoing = outgoing;
+            this.text = text;
+            this.done = null;
+            this.stop = false;
+        }
+
+        public Pending(boolean stop)
+        {
+            this.conversation = null;
+            this.time = 0;
+            this.outgoing = false;
+            this.text = null;
+            this.done = new CountDownLatch(1);
+            this.stop = stop;
+        }
+    }
+
+    /**
+        shared()
+        The store of this process, opened on first use and closed on exit.
+        @return the store in DIRECTORY
+    */
+    public static synchronized HistoryStore shared() throws IOException
+    {
+        if (shared == null)
+        {
+            HistoryStore store = new HistoryStore(Paths.get(DIRECTORY));
+            Runtime.getRuntime().addShutdownHook(new Thread(store::close, "HistoryClose"));
+            shared = store;
+        }
+        return shared;
+    }
+
+    /**
+        Constructor to initialize fields
+        @param directory - where conversations are stored
+    */
+    public HistoryStore(Path directory) throws IOException
+    {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        random = new SecureRandom();
+        key = loadKey(directory.resolve("key"));
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            searchKey = mac.doFinal("search".getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException(e);
+        }
+        conversations = new ConcurrentHashMap<>();
+        queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+        dropped = new LongAdder();
+        writer = new Thread(this::writeLoop, "HistoryWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private SecretKey loadKey(Path file) throws IOException
+    {
+        if (!Files.exists(file))
+        {
+            byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.deleteIfExists(temporary);
+            try
+            {
+                Files.createFile(temporary, PosixFilePermissions.asFileAttribute(
+                                            PosixFilePermissions.fromString("rw-------")));
+            }
+            catch (UnsupportedOperationException e)
+            {
+                Files.createFile(temporary);
+            }
+            Files.write(temporary, bytes);
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length != 16)
+        {
+            throw new IOException("history key " + file + " is damaged");
+        }
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    /**
+        open()
+        Open a conversation, creating it if it is new. A conversation that
+        is already open is shared.
+        @param name - names the conversation, e.g. by the address of the other side
+        @return the conversation
+        @throws IOException if it can not be read or another instance has it open
+    */
+    public Conversation open(String name) throws IOException
+    {
+        synchronized (conversations)
+        {
+            Conversation conversation = conversations.get(name);
+            if (conversation == null)
+            {
+                String safe = name.replaceAll("[^A-Za-z0-9.-]", "_");
+                conversation = new Conversation(name, directory.resolve(safe));
+                conversations.put(name, conversation);
+            }
+            return conversation;
+        }
+    }
+
+    /**
+        flush()
+        Wait until everything appended so far has been written, not
+        necessarily synced.
+    */
+    public void flush()
+    {
+        Pending marker = new Pending(false);
+        try
+        {
+            if (!closed && queue.offer(marker, 1, TimeUnit.SECONDS))
+            {
+                marker.done.await(5, TimeUnit.SECONDS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+        close()
+        Write and sync everything queued, then close all conversations.
+    */
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        Pending marker = new Pending(true);
+        try
+        {
+            queue.put(marker);
+            closed = true;
+            marker.done.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+        @return number of messages not stored because the writer fell behind
+    */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    private void writeLoop()
+    {
+        List<Pending> batch = new ArrayList<>();
+        Set<Conversation> dirty = new HashSet<>();
+        long lastSync = System.currentTimeMillis();
+        while (true)
+        {
+            Pending first;
+            try
+            {
+                first = queue.poll(SYNC_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            if (first != null)
+            {
+                batch.add(first);
+                queue.drainTo(batch, WRITE_BATCH - 1);
+            }
+
+            // one write per conversation, in the order they were appended
+            Map<Conversation, List<Pending>> groups = new LinkedHashMap<>();
+            List<Pending> markers = new ArrayList<>();
+            for (Pending p : batch)
+            {
+                if (p.conversation == null)
+                {
+                    markers.add(p);
+                }
+                else
+                {
+                    groups.computeIfAbsent(p.conversation, c -> new ArrayList<>()).add(p);
+                }
+            }
+            batch.clear();
+            for (Map.Entry<Conversation, List<Pending>> group : groups.entrySet())
+            {
+                try
+                {
+                    group.getKey().write(group.getValue());
+                    dirty.add(group.getKey());
+                }
+                catch (IOException | GeneralSecurityException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+
+            boolean stop = markers.stream().anyMatch(m -> m.stop);
+            long now = System.currentTimeMillis();
+            if (stop || first == null || now - lastSync >= SYNC_MS)
+            {
+                for (Conversation conversation : dirty)
+                {
+                    conversation.sync();
+                }
+                dirty.clear();
+                lastSync = now;
+            }
+            if (stop)
+            {
+                for (Conversation conversation : conversations.values())
+                {
+                    conversation.close();
+                }
+            }
+            for (Pending marker : markers)
+            {
+                marker.done.countDown();
+            }
+            if (stop)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+        The stored messages with one other side. Appends go through the
+        writer thread; reads may run on any thread.
+    */
+    public class Conversation
+    {
+        private final String name;
+        private final Path directory;
+        private final byte[] associated;
+        private final FileChannel lockFile;
+        private final FileLock lock;
+        private final FileChannel index;
+        private final Cipher cipher;      // writer thread only
+        private final SearchIndex search;
+        private FileChannel segment;      // writer thread only
+        private int segmentNumber;
+        private long segmentEnd;
+
+        // what readers may see, guarded by this
+        private long count;
+        private long lastTime;
+        private long[] entrySeq = new long[16];
+        private long[] entryTime = new long[16];
+        private int[] entrySegment = new int[16];
+        private long[] entryOffset = new long[16];
+        private int entries;
+
+        private Conversation(String name, Path directory) throws IOException
+        {
+            this.name = name;
+            this.directory = directory;
+            associated = name.getBytes(StandardCharsets.UTF_8);
+            Files.createDirectories(directory);
+            lockFile = FileChannel.open(directory.resolve("lock"),
+                                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock locked;
+            try
+            {
+                locked = lockFile.tryLock();
+            }
+            catch (OverlappingFileLockException e)
+            {
+                locked = null;
+            }
+            if (locked == null)
+            {
+                lockFile.close();
+                throw new IOException("history of " + name + " is in use by another instance");
+            }
+            lock = locked;
+            try
+            {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException(e);
+            }
+            index = FileChannel.open(directory.resolve("index"), StandardOpenOption.CREATE,
+                                     StandardOpenOption.READ, StandardOpenOption.WRITE);
+            recover();
+            search = new SearchIndex(directory, searchKey);
+            catchUp();
+        }
+
+        /**
+            Index the messages the search index lost, e.g. in a crash
+            before it wrote them out.
+        */
+        private void catchUp() throws IOException
+        {
+            long from = search.getIndexed();
+            while (from < count)
+            {
+                List<Entry> missed = scan(from, Math.min(count, from + 10000), Long.MIN_VALUE, Long.MAX_VALUE,
+                                          Integer.MAX_VALUE);
+                if (missed.isEmpty())
+                {
+                    break;
+                }
+                for (Entry entry : missed)
+                {
+                    search.add(entry.getSeq(), entry.getText());
+                }
+                from = missed.get(missed.size() - 1).getSeq() + 1;
+            }
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+            @return number of messages stored
+        */
+        public synchronized long size()
+        {
+            return count;
+        }
+
+        /**
+            append()
+            Queue a message to be stored, never blocks. If the writer has
+            fallen QUEUE_SIZE messages behind the message is dropped.
+            @param outgoing - true if we sent it
+            @param text - the message
+        */
+        public void append(boolean outgoing, String text)
+        {
+            Pending p = new Pending(this, System.currentTimeMillis(), outgoing,
+                                    text.getBytes(StandardCharsets.UTF_8));
+            if (closed || !queue.offer(p))
+            {
+                dropped.increment();
+            }
+        }
+
+        /**
+            last()
+            Read the most recent messages.
+            @param n - how many
+            @return up to n messages, oldest first
+        */
+        public List<Entry> last(int n) throws IOException
+        {
+            flush();
+            long end;
+            synchronized (this)
+            {
+                end = count;
+            }
+            return scan(Math.max(0, end - n), end, Long.MIN_VALUE, Long.MAX_VALUE, n);
+        }
+
+        /**
+            range()
+            Read the messages stored between two times.
+            @param from - first time, in milliseconds
+            @param to - last time, in milliseconds
+            @param limit - most messages returned
+            @return the messages, oldest first
+        */
+        public List<Entry> range(long from, long to, int limit) throws IOException
+        {
+            flush();
+            return scan(0, Long.MAX_VALUE, from, to, limit);
+        }
+
+        /**
+            search()
+            Find the messages that hold all words of a query.
+            @param query - the words
+            @param limit - most messages returned
+            @return the matching messages, newest first
+        */
+        public List<Entry> search(String query, int limit) throws IOException
+        {
+            flush();
+            List<Entry> found = fetch(search.search(query, limit));
+            Collections.reverse(found);
+            return found;
+        }
+
+        /**
+            Read the records with the given sequence numbers in one pass,
+            scanning on from the last one found whenever that is closer
+            than the index entry before the next.
+            @param seqs - the sequence numbers
+            @return the records found, oldest first
+        */
+        private List<Entry> fetch(long[] seqs) throws IOException
+        {
+            long[] wanted = seqs.clone();
+            Arrays.sort(wanted);
+            List<Entry> found = new ArrayList<>();
+            Cipher decrypt;
+            try
+            {
+                decrypt = Cipher.getInstance("AES/GCM/NoPadding");
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException(e);
+            }
+            Block block = new Block();
+            int segmentAt = -1;
+            long position = 0;
+            long next = 0;      // sequence number of the record at position
+            try
+            {
+                for (long want : wanted)
+                {
+                    int entrySegmentAt;
+                    long entryPosition;
+                    long entryNext;
+                    synchronized (this)
+                    {
+                        if (want >= count || entries == 0)
+                        {
+                            break;
+                        }
+                        int i = Math.max(0, lastEntryAtOrBefore(entrySeq, want));
+                        entrySegmentAt = entrySegment[i];
+                        entryPosition = entryOffset[i];
+                        entryNext = entrySeq[i];
+                    }
+                    if (segmentAt != entrySegmentAt || next < entryNext || next > want)
+                    {
+                        block.close();
+                        segmentAt = entrySegmentAt;
+                        position = entryPosition;
+                        next = entryNext;
+                    }
+                    while (true)
+                    {
+                        if (block.channel == null && !block.open(segmentPath(segmentAt)))
+                        {
+                            return found;
+                        }
+                        if (!block.load(position, HEADER_SIZE))
+                        {
+                            block.close();
+                            segmentAt++;
+                            position = 0;
+                            continue;
+                        }
+                        int at = (int) (position - block.start);
+                        int length = block.bytes.getInt(at);
+                        long seq = block.bytes.getLong(at + 4);
+                        if (seq > want)
+                        {
+                            break;
+                        }
+                        if (seq == want && block.load(position, 4 + length))
+                        {
+                            try
+                            {
+                                found.add(open(decrypt, block.bytes.array(), (int) (position - block.start),
+                                               4 + length));
+                            }
+                            catch (GeneralSecurityException e)
+                            {
+                                // damaged record, leave it out
+                            }
+                        }
+                        position += 4 + length;
+                        next = seq + 1;
+                        if (seq == want)
+                        {
+                            break;
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                block.close();
+            }
+            return found;
+        }
+
+        /**
+            Read records in [fromSeq, toSeq) that lie in [fromTime, toTime],
+            starting at the last index entry before the first of them.
+        */
+        private List<Entry> scan(long fromSeq, long toSeq, long fromTime, long toTime, int limit)
+            throws IOException
+        {
+            List<Entry> found = new ArrayList<>();
+            int segmentAt;
+            long position;
+            long end;
+            synchronized (this)
+            {
+                end = Math.min(toSeq, count);
+                if (entries == 0 || fromSeq >= end || limit <= 0)
+                {
+                    return found;
+                }
+                int i = fromTime == Long.MIN_VALUE ? lastEntryAtOrBefore(entrySeq, fromSeq)
+                                                   : lastEntryAtOrBefore(entryTime, fromTime - 1);
+                i = Math.max(0, i);
+                segmentAt = entrySegment[i];
+                position = entryOffset[i];
+            }
+
+            Cipher decrypt;
+            try
+            {
+                decrypt = Cipher.getInstance("AES/GCM/NoPadding");
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException(e);
+            }
+            Block block = new Block();
+            try
+            {
+                long seq = -1;
+                while (found.size() < limit && seq + 1 < end)
+                {
+                    if (block.channel == null && !block.open(segmentPath(segmentAt)))
+                    {
+                        break;
+                    }
+                    if (!block.load(position, HEADER_SIZE))
+                    {
+                        // end of this segment, go on with the next
+                        block.close();
+                        segmentAt++;
+                        position = 0;
+                        continue;
+                    }
+                    ByteBuffer bytes = block.bytes;
+                    int at = (int) (position - block.start);
+                    int length = bytes.getInt(at);
+                    seq = bytes.getLong(at + 4);
+                    long time = bytes.getLong(at + 12);
+                    if (seq >= end || time > toTime)
+                    {
+                        break;
+                    }
+                    if (seq >= fromSeq && time >= fromTime)
+                    {
+                        if (!block.load(position, 4 + length))
+                        {
+                            break;
+                        }
+                        try
+                        {
+                            found.add(open(decrypt, block.bytes.array(), (int) (position - block.start), 4 + length));
+                        }
+                        catch (GeneralSecurityException e)
+                        {
+                            // damaged record, leave it out
+                        }
+                    }
+                    position += 4 + length;
+                }
+            }
+            finally
+            {
+                block.close();
+            }
+            return found;
+        }
+
+        private int lastEntryAtOrBefore(long[] keys, long key)
+        {
+            int low = 0;
+            int high = entries - 1;
+            int found = -1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] <= key)
+                {
+                    found = mid;
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        private Entry open(Cipher decrypt, byte[] bytes, int at, int length) throws GeneralSecurityException
+        {
+            decrypt.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, bytes, at + 21, 12));
+            decrypt.updateAAD(bytes, at + 4, 17);
+            decrypt.updateAAD(associated);
+            byte[] text = decrypt.doFinal(bytes, at + HEADER_SIZE, length - HEADER_SIZE);
+            ByteBuffer record = ByteBuffer.wrap(bytes, at, length);
+            return new Entry(record.getLong(at + 4), record.getLong(at + 12), bytes[at + 20] == 1,
+                             new String(text, StandardCharsets.UTF_8));
+        }
+
+        /**
+            Encrypt and write records, called by the writer thread only.
+        */
+        private void write(List<Pending> records) throws IOException, GeneralSecurityException
+        {
+            long seq;
+            long time;
+            synchronized (this)
+            {
+                seq = count;
+                time = lastTime;
+            }
+            List<ByteBuffer> buffers = new ArrayList<>();
+            List<long[]> added = new ArrayList<>();
+            long position = segmentEnd;
+            try
+            {
+                for (Pending p : records)
+                {
+                    int length = HEADER_SIZE + p.text.length + TAG_SIZE;
+                    if (position > 0 && position + length > SEGMENT_SIZE)
+                    {
+                        commit(buffers, added, position, seq, time);
+                        roll();
+                        position = 0;
+                    }
+                    time = Math.max(time, p.time);
+                    if (seq % INDEX_INTERVAL == 0 || position == 0)
+                    {
+                        added.add(new long[] { seq, time, segmentNumber, position });
+                    }
+
+                    byte[] nonce = new byte[12];
+                    random.nextBytes(nonce);
+                    ByteBuffer record = ByteBuffer.allocate(length);
+                    record.putInt(length - 4).putLong(seq).putLong(time).put((byte) (p.outgoing ? 1 : 0)).put(nonce);
+                    cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                    cipher.updateAAD(record.array(), 4, 17);
+                    cipher.updateAAD(associated);
+                    cipher.doFinal(p.text, 0, p.text.length, record.array(), HEADER_SIZE);
+                    record.clear();
+                    buffers.add(record);
+
+                    position += length;
+                    seq++;
+                }
+                commit(buffers, added, position, seq, time);
+
+                long indexed = seq - records.size();
+                for (Pending p : records)
+                {
+                    search.add(indexed++, new String(p.text, StandardCharsets.UTF_8));
+                }
+            }
+            catch (IOException | GeneralSecurityException e)
+            {
+                // cut off whatever part of the batch made it out
+                try
+                {
+                    segment.truncate(segmentEnd);
+                    segment.position(segmentEnd);
+                }
+                catch (IOException ignored)
+                {
+                }
+                throw e;
+            }
+        }
+
+        /**
+            Write out the records of a batch that go into the current
+            segment, then let readers see them.
+        */
+        private void commit(List<ByteBuffer> buffers, List<long[]> added, long position, long seq, long time)
+            throws IOException
+        {
+            ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+            long remaining = position - segmentEnd;
+            while (remaining > 0)
+            {
+                remaining -= segment.write(array);
+            }
+            buffers.clear();
+            segmentEnd = position;
+
+            synchronized (this)
+            {
+                for (long[] e : added)
+                {
+                    addEntry(e[0], e[1], (int) e[2], e[3]);
+                }
+                count = seq;
+                lastTime = time;
+            }
+
+            ByteBuffer entryBytes = ByteBuffer.allocate(added.size() * ENTRY_SIZE);
+            for (long[] e : added)
+            {
+                entryBytes.putLong(e[0]).putLong(e[1]).putInt((int) e[2]).putLong(e[3]);
+            }
+            entryBytes.flip();
+            while (entryBytes.hasRemaining())
+            {
+                index.write(entryBytes, index.size());
+            }
+            added.clear();
+        }
+
+        /**
+            Start a new segment, the old one is synced first so that a
+            segment is never behind the one after it.
+        */
+        private void roll() throws IOException
+        {
+            FileChannel next = FileChannel.open(segmentPath(segmentNumber + 1), StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE);
+            segment.force(false);
+            segment.close();
+            segment = next;
+            segmentNumber++;
+            segmentEnd = 0;
+        }
+
+        private void sync()
+        {
+            try
+            {
+                segment.force(false);
+                index.force(false);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        private void close()
+        {
+            try
+            {
+                search.close();
+                segment.close();
+                index.close();
+                lock.release();
+                lockFile.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        private void addEntry(long seq, long time, int segmentAt, long offset)
+        {
+            if (entries == entrySeq.length)
+            {
+                entrySeq = Arrays.copyOf(entrySeq, entries * 2);
+                entryTime = Arrays.copyOf(entryTime, entries * 2);
+                entrySegment = Arrays.copyOf(entrySegment, entries * 2);
+                entryOffset = Arrays.copyOf(entryOffset, entries * 2);
+            }
+            entrySeq[entries] = seq;
+            entryTime[entries] = time;
+            entrySegment[entries] = segmentAt;
+            entryOffset[entries] = offset;
+            entries++;
+        }
+
+        private Path segmentPath(int number)
+        {
+            return directory.resolve(String.format("%08d.log", number));
+        }
+
+        /**
+            Load the index and find the end of the last segment. A record
+            torn by a crash is cut off, and index entries that were lost
+            are added back.
+        */
+        private void recover() throws IOException
+        {
+            // index entries, a torn last entry is dropped
+            long whole = index.size() / ENTRY_SIZE;
+            ByteBuffer all = ByteBuffer.allocate((int) (whole * ENTRY_SIZE));
+            readFully(index, all, 0);
+            all.flip();
+            for (long i = 0; i < whole; i++)
+            {
+                addEntry(all.getLong(), all.getLong(), all.getInt(), all.getLong());
+            }
+
+            // the last segment that holds anything
+            segmentNumber = 0;
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "*.log"))
+            {
+                for (Path log : logs)
+                {
+                    String file = log.getFileName().toString();
+                    try
+                    {
+                        segmentNumber = Math.max(segmentNumber,
+                                                 Integer.parseInt(file.substring(0, file.length() - 4)));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        // not ours
+                    }
+                }
+            }
+            while (segmentNumber > 0 && Files.size(segmentPath(segmentNumber)) == 0)
+            {
+                Files.delete(segmentPath(segmentNumber));
+                segmentNumber--;
+            }
+
+            // scan the last segment from its last index entry that is still there
+            segment = FileChannel.open(segmentPath(segmentNumber), StandardOpenOption.CREATE,
+                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = segment.size();
+            while (entries > 0 && (entrySegment[entries - 1] > segmentNumber
+                                   || entrySegment[entries - 1] == segmentNumber
+                                      && entryOffset[entries - 1] + HEADER_SIZE > size))
+            {
+                entries--;
+            }
+            long position = 0;
+            count = 0;
+            if (entries > 0)
+            {
+                count = entrySeq[entries - 1];
+                lastTime = entryTime[entries - 1];
+                if (entrySegment[entries - 1] == segmentNumber)
+                {
+                    position = entryOffset[entries - 1];
+                    entries--;  // found again below
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position + HEADER_SIZE <= size)
+            {
+                header.clear();
+                readFully(segment, header, position);
+                int length = header.getInt(0);
+                if (length < HEADER_SIZE - 4 + TAG_SIZE || position + 4 + length > size)
+                {
+                    break;
+                }
+                long seq = header.getLong(4);
+                long time = header.getLong(12);
+                if (seq % INDEX_INTERVAL == 0 || position == 0)
+                {
+                    while (entries > 0 && entrySeq[entries - 1] >= seq)
+                    {
+                        entries--;
+                    }
+                    addEntry(seq, time, segmentNumber, position);
+                }
+                count = seq + 1;
+                lastTime = time;
+                position += 4 + length;
+            }
+            while (entries > 0 && entrySeq[entries - 1] >= count)
+            {
+                entries--;
+            }
+            segment.truncate(position);
+            segment.position(position);
+            segmentEnd = position;
+
+            // write the index back as it is now
+            ByteBuffer entryBytes = ByteBuffer.allocate(entries * ENTRY_SIZE);
+            for (int i = 0; i < entries; i++)
+            {
+                entryBytes.putLong(entrySeq[i]).putLong(entryTime[i]).putInt(entrySegment[i]).putLong(entryOffset[i]);
+            }
+            entryBytes.flip();
+            index.truncate(0);
+            while (entryBytes.hasRemaining())
+            {
+                index.write(entryBytes, index.size());
+            }
+        }
+    }
+
+    /**
+        Reads a segment a block at a time, so scanning record headers does
+        not cost a read each.
+    */
+    private static class Block
+    {
+        private static final int SIZE = 64 * 1024;
+
+        private FileChannel channel;
+        private ByteBuffer bytes = ByteBuffer.allocate(SIZE);
+        private long start;
+        private int length;
+
+        public boolean open(Path path) throws IOException
+        {
+            try
+            {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            catch (NoSuchFileException e)
+            {
+                return false;
+            }
+            length = 0;
+            return true;
+        }
+
+        /**
+            Make the bytes [position, position + n) available in bytes.
+            @return false if the segment ends before them
+        */
+        public boolean load(long position, int n) throws IOException
+        {
+            if (position >= start && position + n <= start + length)
+            {
+                return true;
+            }
+            if (n > bytes.capacity())
+            {
+                bytes = ByteBuffer.allocate(n);
+            }
+            bytes.clear();
+            start = position;
+            length = 0;
+            while (length < n)
+            {
+                int read = channel.read(bytes, position + length);
+                if (read < 0)
+                {
+                    return false;
+                }
+                length += read;
+            }
+            return true;
+        }
+
+        public void close() throws IOException
+        {
+            if (channel != null)
+            {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+            {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+}
@@ -5,13 +5,27 @@
     the lil' bits secure chat application
 */
 
+import java.awt.GraphicsEnvironment;
+
 public class Main
 {
-    public static void main(String[] args)
+    // -Dlsb.ui=console runs in the terminal, also used when there is no display
+    private static final boolean CONSOLE = "console".equals(System.getProperty("lsb.ui"))
+                                           || GraphicsEnvironment.isHeadless();
+
+    public static void main(String[] args) throws Exception
     {
+        RSAKeyPool.shared(); // start generating keys while the window opens
         Manager manager = new Manager();
+        if (CONSOLE)
+        {
+            Terminal terminal = new Terminal(manager);
+            manager.setListener(terminal);
+            terminal.run();
+            return;
+        }
         GUI gui = new GUI(manager);
-        manager.setGUI(gui);
+        manager.setListener(gui);
         gui.start();
     }
 
@@ -14,38 +14,84 @@ import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
 
 public class Manager
 {
 
-    private boolean debug = false;
+    private static final boolean debug = false;  // constant, so print() costs nothing when off
 
-    private Network network;
-    private boolean connected;
-    private boolean waitingForConnect;
-    private Encryption encryption;
-    private GUI gui;
+    // -Dlsb.transport=nio runs connections on the shared SelectorNetwork
+    private static final boolean NIO = "nio".equals(System.getProperty("lsb.transport"));
+
+    // first byte of the X25519 key messages when FEATURE_RESUME is on
+    private static final byte RESUME_NONE = 0;    // full exchange, followed by the X25519 key
+    private static final byte RESUME_TICKET = 1;  // resumption, followed by ticket and nonce
+
+    // -Dlsb.chunk.window, most packets queued on a connection before a long
+    // message waits, so short messages sent meanwhile are not stuck behind it
+    private static final int STREAM_WINDOW = Integer.getInteger("lsb.chunk.window", 8);
+
+    // -Dlsb.history.show, stored messages shown when a conversation is opened
+    private static final int HISTORY_SHOWN = Integer.getInteger("lsb.history.show", 20);
+    // -Dlsb.search.results, most messages /search shows
+    private static final int SEARCH_RESULTS = Integer.getInteger("lsb.search.results", 20);
+
+    // every conversation, keyed by the id the user refers to it by
+    private final Map<Integer, Peer> peers;
+    private final AtomicInteger nextId;
+    private volatile int activeId;  // peer that plain input goes to
+    private final Map<String, Group> groups;  // group rooms, keyed by name
+    private volatile String activeGroup;      // group plain input goes to instead, null if none
+    private final ScheduledExecutorService streamer;  // sends the chunks of long messages
+    private final ExecutorService historyReader;      // runs /history and /search off the input thread
+    private final ReceivePipeline pipeline;           // decrypts and shows what peers send
+    private ManagerListener listener;  // where output for the user goes
 
     /**
         Constructor to initialize fields
     */
     public Manager()
     {
-        network = null;
-        connected = false;
-        waitingForConnect = false;
-        encryption = null;
+        peers = new ConcurrentHashMap<>();
+        nextId = new AtomicInteger(1);
+        activeId = 0;
+        groups = new ConcurrentHashMap<>();
+        activeGroup = null;
+        pipeline = new ReceivePipeline();
+        streamer = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread t = new Thread(r, "ChunkStreamer");
+            t.setDaemon(true);
+            return t;
+        });
+        historyReader = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread t = new Thread(r, "HistoryReader");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     /**
-        Set the GUI that this manager reports to
-        @param g - the GUI
+        Set what this manager reports to, the window or the terminal
+        @param l - the listener
     */
-    public void setGUI(GUI g)
+    public void setListener(ManagerListener l)
     {
-        gui = g;
+        listener = l;
     }
 
     /**
@@ -53,73 +99,457 @@ public class Manager
         This will connect to an IP and establish everything necessary so that
         messages can be sent and received after this is called.
         @param ip - the IP address to connect to
-        @param port - not used
-        @return - true if connection successfully established
+        @param port - the port to connect to
+        @return - the connected peer, null if the connection failed
     */
-    private boolean connectToIP(String ip, int port) throws Exception
+    private Peer connectToIP(String ip, int port) throws Exception
     {
+        Peer peer = new Peer(nextId.getAndIncrement(), port);
+        peer.setFiles(new FileTransfer(peer, this));
         try
         {
             // asd
             // ==========================
             //       CLIENT SIDE
             // ==========================
-            network = new Network(port, this);
-            encryption = new Encryption();
-            network.connect(ip);
-            // i am the client
-            network.setChannelTimeout(2000);
-            network.listen(); // bypass the hello
-            network.setChannelTimeout(0);
-            // RSA exchange
-            print("client side");
-            byte[] myPublicKeyBytes = encryption.getMyPublicKey().getEncoded();
-            print("public key size locally is "+myPublicKeyBytes.length);
-            print("connected...sending size and key");
-            network.sendKeySize(myPublicKeyBytes);
-            print("sent. waiting for their key size");
-
-            network.receiveKeySize(); // listen for key size, vars set internally to network
-            network.sendKey(myPublicKeyBytes);
-            print("got the key size");
-            byte[] theirPublicKeyBytes = network.receiveKey(); // listen for key itself
-
-            print("got the key ");
-            encryption.setTheirPublicKey(theirPublicKeyBytes);
-
-            // AES exchange 
-            byte[] aesKeyBytes = encryption.generateAESKey();
-            network.sendKeySize(aesKeyBytes);
-            network.sendKey(aesKeyBytes);
-
-            // start up listening thread
-            network.startListening();
+            Transport network;
+            peer.setEncryption(new Encryption());
+            long started = Metrics.start();
+            if (NIO)
+            {
+                network = SelectorNetwork.shared().connect(ip, port, this, peer.getId());
+            }
+            else
+            {
+                Network blocking = new Network(port, this, peer.getId());
+                blocking.connect(ip);
+                network = blocking;
+            }
+            peer.setNetwork(network);
+            clientHandshake(peer, network, ip + ":" + port, started);
             //print("Connected to "+ip+":"+port+" and started listening.");
-            connected = true;
 
-            return true;
+            return peer;
         }
         catch (UnknownHostException e)
         {
-            return false;
+            return null;
         }
         catch (ConnectException e)
         {
-            return false;
+            return null;
         }
         catch (IllegalArgumentException e)
         {
-            return false;
+            return null;
         }
         catch (SocketTimeoutException e)
         {
-            return false;
+            return null;
         }
         catch(IOException e)
         {
             e.printStackTrace();
         }
-        return false;
+        return null;
+    }
+
+    /**
+        Client side of a new connection, once it is open: wait for the
+        server's HELLO, exchange keys and start listening.
+        @param peer - the peer, its encryption is set
+        @param network - the connection to the server
+        @param address - where we connected to, resumption tickets are kept per address
+        @param started - Metrics.start() from before the connection was opened
+    */
+    private void clientHandshake(Peer peer, Transport network, String address, long started) throws Exception
+    {
+        Encryption encryption = peer.getEncryption();
+        // i am the client
+        network.setChannelTimeout(2000);
+        network.listen(); // bypass the hello
+        network.setChannelTimeout(0);
+        Metrics.HANDSHAKE_CONNECT.recordSince(started);
+        started = Metrics.start();
+        print("client side");
+        if (network.getVersion() >= Network.VERSION_X25519)
+        {
+            clientECDHExchange(network, encryption, address);
+        }
+        else
+        {
+            clientRSAExchange(network, encryption);
+        }
+        if (network.hasFeature(Network.FEATURE_GCM))
+        {
+            encryption.enableGCM(true);
+        }
+        Metrics.HANDSHAKE_KEYS.recordSince(started);
+
+        // start up listening thread
+        peer.setConnected(true);
+        peer.setWaitingForConnect(false);
+        peers.put(peer.getId(), peer);
+        network.startListening();
+    }
+
+    /**
+        Server side of a new connection, once the client's HELLO arrived:
+        exchange keys and start listening.
+        @param peer - the peer, its encryption is set
+        @param network - the connection to the client
+    */
+    private void serverHandshake(Peer peer, Transport network) throws Exception
+    {
+        Encryption encryption = peer.getEncryption();
+        print("server side");
+        long started = Metrics.start();
+        if (network.getVersion() >= Network.VERSION_X25519)
+        {
+            serverECDHExchange(network, encryption);
+        }
+        else
+        {
+            serverRSAExchange(network, encryption);
+        }
+
+        if (network.hasFeature(Network.FEATURE_GCM))
+        {
+            encryption.enableGCM(false);
+        }
+        Metrics.HANDSHAKE_KEYS.recordSince(started);
+
+        peer.setConnected(true);
+        peer.setWaitingForConnect(false);
+        network.startListening();
+    }
+
+    /**
+        Client side of the X25519 key exchange. Our key goes out right
+        behind our HELLO. If we hold a resumption ticket for this address
+        it is sent along; the server either accepts it and answers with a
+        nonce, or answers with its key and the full exchange completes in
+        the same flights.
+        @param network - the connection to the server
+        @param encryption - encryption state of the peer
+        @param address - where we connected to, tickets are kept per address
+    */
+    private void clientECDHExchange(Transport network, Encryption encryption, String address) throws Exception
+    {
+        byte[] myECDHKey = encryption.generateECDHKey();
+        if (!network.hasFeature(Network.FEATURE_RESUME))
+        {
+            network.sendKeySize(myECDHKey);
+            network.sendKey(myECDHKey);
+            network.receiveKeySize();
+            encryption.agreeECDH(network.receiveKey(), true);
+            return;
+        }
+
+        TicketCache.Ticket cached = TicketCache.client().take(address);
+        byte[] clientNonce = Encryption.randomNonce();
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        if (cached != null)
+        {
+            request.write(RESUME_TICKET);
+            request.write(cached.getTicket());
+            request.write(clientNonce);
+        }
+        else
+        {
+            request.write(RESUME_NONE);
+        }
+        request.write(myECDHKey);
+        network.sendKeySize(request.toByteArray());
+        network.sendKey(request.toByteArray());
+
+        network.receiveKeySize();
+        byte[] reply = network.receiveKey();
+        byte[] rest = Arrays.copyOfRange(reply, 1, reply.length);
+        if (reply[0] == RESUME_TICKET && cached != null)
+        {
+            print("resumed session");
+            Metrics.HANDSHAKE_RESUMED.increment();
+            encryption.resume(cached.getSecret(), clientNonce, rest);
+        }
+        else
+        {
+            encryption.agreeECDH(rest, true);
+        }
+        TicketCache.client().put(address, encryption.getTicket(), encryption.getResumptionSecret());
+    }
+
+    /**
+        Server side of the X25519 key exchange, answers the client's key
+        with ours, or accepts the client's resumption ticket if we issued
+        it and it has not expired.
+        @param network - the connection to the client
+        @param encryption - encryption state of the peer
+    */
+    private void serverECDHExchange(Transport network, Encryption encryption) throws Exception
+    {
+        network.receiveKeySize();
+        byte[] request = network.receiveKey();
+        if (!network.hasFeature(Network.FEATURE_RESUME))
+        {
+            byte[] myECDHKey = encryption.generateECDHKey();
+            network.sendKeySize(myECDHKey);
+            network.sendKey(myECDHKey);
+            encryption.agreeECDH(request, false);
+            return;
+        }
+
+        int offset = 1;
+        TicketCache.Ticket issued = null;
+        byte[] clientNonce = null;
+        if (request[0] == RESUME_TICKET)
+        {
+            byte[] ticket = Arrays.copyOfRange(request, offset, offset + Encryption.TICKET_SIZE);
+            offset += Encryption.TICKET_SIZE;
+            clientNonce = Arrays.copyOfRange(request, offset, offset + Encryption.NONCE_SIZE);
+            offset += Encryption.NONCE_SIZE;
+            issued = TicketCache.server().take(TicketCache.key(ticket));
+        }
+
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        if (issued != null)
+        {
+            print("resumed session");
+            Metrics.HANDSHAKE_RESUMED.increment();
+            byte[] serverNonce = Encryption.randomNonce();
+            reply.write(RESUME_TICKET);
+            reply.write(serverNonce);
+            encryption.resume(issued.getSecret(), clientNonce, serverNonce);
+        }
+        else
+        {
+            // unknown or expired ticket, fall back to the full exchange
+            reply.write(RESUME_NONE);
+            reply.write(encryption.generateECDHKey());
+            encryption.agreeECDH(Arrays.copyOfRange(request, offset, request.length), false);
+        }
+        network.sendKeySize(reply.toByteArray());
+        network.sendKey(reply.toByteArray());
+        TicketCache.server().put(TicketCache.key(encryption.getTicket()), encryption.getTicket(), encryption.getResumptionSecret());
+    }
+
+    /**
+        Client side of the RSA key exchange, used with peers that do not
+        support X25519. Sends our RSA key, gets theirs, and sends them a
+        new AES key wrapped with it.
+        @param network - the connection to the server
+        @param encryption - encryption state of the peer
+    */
+    private void clientRSAExchange(Transport network, Encryption encryption) throws Exception
+    {
+        // RSA exchange
+        byte[] myPublicKeyBytes = encryption.getMyPublicKey().getEncoded();
+        print("public key size locally is "+myPublicKeyBytes.length);
+        print("connected...sending size and key");
+        network.sendKeySize(myPublicKeyBytes);
+        print("sent. waiting for their key size");
+
+        network.receiveKeySize(); // listen for key size, vars set internally to network
+        network.sendKey(myPublicKeyBytes);
+        print("got the key size");
+        byte[] theirPublicKeyBytes = network.receiveKey(); // listen for key itself
+
+        print("got the key ");
+        encryption.setTheirPublicKey(theirPublicKeyBytes);
+
+        // AES exchange 
+        byte[] aesKeyBytes = encryption.generateAESKey();
+        network.sendKeySize(aesKeyBytes);
+        network.sendKey(aesKeyBytes);
+    }
+
+    /**
+        Server side of the RSA key exchange, used with peers that do not
+        support X25519. Mirrors clientRSAExchange.
+        @param network - the connection to the client
+        @param encryption - encryption state of the peer
+    */
+    private void serverRSAExchange(Transport network, Encryption encryption) throws Exception
+    {
+        // RSA exchange 
+        print("waiting for key size");
+        network.receiveKeySize(); // first listen for the key size
+        byte[] myPublicKeyBytes = encryption.getMyPublicKey().getEncoded();
+        network.sendKeySize(myPublicKeyBytes);
+        print("waiting for key");
+        byte[] theirPub = network.receiveKey(); // the clients public key
+
+        encryption.setTheirPublicKey(theirPub);
+
+        print("sending key");
+        network.sendKey(myPublicKeyBytes);
+        print("key sent");
+
+        // AES exchange 
+        network.receiveKeySize();
+        byte[] aesKeyBytes = network.receiveKey();
+        encryption.setAESKey(aesKeyBytes);
+    }
+
+    /**
+        Wait for a friend to connect on a port.
+        Runs the server side of the handshake on its own thread, the peer
+        is usable once someone has connected.
+        @param port - the port to listen on
+        @return - the peer waiting for a connection
+    */
+    private Peer listenOn(int port)
+    {
+        Peer peer = new Peer(nextId.getAndIncrement(), port);
+        peer.setFiles(new FileTransfer(peer, this));
+        peer.setWaitingForConnect(true);
+        if (!NIO)
+        {
+            peer.setNetwork(new Network(port, this, peer.getId()));
+        }
+        peers.put(peer.getId(), peer);
+
+        // start up a thread to initialize a server listening on the port,
+        // a virtual one with -Dlsb.threads=virtual
+        Threads.start("Listen-" + port, false, new Runnable(){
+            public void run()
+            {
+                try
+                {
+                    // sdf
+                    // ==========================
+                    //       SERVER SIDE
+                    // ==========================
+                    Transport network;
+                    peer.setEncryption(new Encryption());
+                    if (NIO)
+                    {
+                        SelectorNetwork.Acceptor waiting = SelectorNetwork.shared().bind(port);
+                        peer.setAcceptor(waiting);
+                        network = waiting.accept(Manager.this, peer.getId());
+                        waiting.close();
+                        peer.setAcceptor(null);
+                        peer.setNetwork(network);
+                    }
+                    else
+                    {
+                        network = peer.getNetwork();
+                        ((Network) network).connect();
+                    }
+                    serverHandshake(peer, network);
+                    if (activeId == 0 || !isConnected(activeId))
+                    {
+                        activeId = peer.getId();
+                    }
+                    listener.printAlert("Someone has connected as peer " + peer.getId() + "! Start chatting...");
+                    openHistory(peer, "in-" + network.getRemoteAddress().getHostAddress() + "-" + port);
+                }
+                catch (BindException e)
+                {
+                    peers.remove(peer.getId());
+                    listener.printAlert("Port unavailable, pick another one.");
+                }
+                catch (IOException e)
+                {
+                    peers.remove(peer.getId());
+                    if (peer.isWaitingForConnect())
+                    {
+                        e.printStackTrace();
+                    }
+                } 
+                catch (Exception e) 
+                {
+                    peers.remove(peer.getId());
+                    e.printStackTrace();
+                }
+            }
+        });
+        return peer;
+    }
+
+    /**
+        Meet a friend through a relay.
+        Both sides name themselves and each other. The relay pairs the two
+        connections and tells one side to run the server side of the
+        handshake and the other the client side, then only passes on what
+        they send. Waits for the friend on its own thread, the peer is
+        usable once the friend has joined.
+        @param ip - the IP address of the relay
+        @param port - the port of the relay
+        @param me - the name we go by on the relay
+        @param them - the name the friend goes by
+        @return - the peer waiting for the friend
+    */
+    private Peer relayTo(String ip, int port, String me, String them) throws IOException
+    {
+        SocketChannel channel = Relay.join(ip, port, me, them);
+        Peer peer = new Peer(nextId.getAndIncrement(), port);
+        peer.setFiles(new FileTransfer(peer, this));
+        peer.setWaitingForConnect(true);
+        peer.setRelay(channel);
+        peers.put(peer.getId(), peer);
+
+        Threads.start("Relay-" + peer.getId(), false, new Runnable(){
+            public void run()
+            {
+                try
+                {
+                    byte role = Relay.awaitPartner(channel);
+                    if (role == Relay.REFUSED)
+                    {
+                        peers.remove(peer.getId());
+                        channel.close();
+                        listener.printAlert("Someone already waits on the relay as " + me + " for " + them + ".");
+                        return;
+                    }
+                    peer.setRelay(null);
+                    peer.setEncryption(new Encryption());
+                    long started = Metrics.start();
+                    boolean server = (role == Relay.LISTEN);
+                    Transport network;
+                    if (NIO)
+                    {
+                        network = SelectorNetwork.shared().adopt(channel, Manager.this, peer.getId(), server);
+                    }
+                    else
+                    {
+                        Network blocking = new Network(port, Manager.this, peer.getId());
+                        blocking.connect(channel.socket(), server);
+                        network = blocking;
+                    }
+                    peer.setNetwork(network);
+                    if (server)
+                    {
+                        serverHandshake(peer, network);
+                    }
+                    else
+                    {
+                        // tickets are kept per friend, everyone on the relay shares its address
+                        clientHandshake(peer, network, ip + ":" + port + "/" + them, started);
+                    }
+                    if (activeId == 0 || !isConnected(activeId))
+                    {
+                        activeId = peer.getId();
+                    }
+                    listener.printAlert(them + " has joined through the relay as peer " + peer.getId() + "! Start chatting...");
+                    openHistory(peer, "relay-" + them);
+                }
+                catch (IOException e)
+                {
+                    peers.remove(peer.getId());
+                    if (peer.isWaitingForConnect())
+                    {
+                        listener.printAlert("Relay connection failed: " + e.getMessage());
+                    }
+                }
+                catch (Exception e)
+                {
+                    peers.remove(peer.getId());
+                    e.printStackTrace();
+                }
+            }
+        });
+        return peer;
     }
 
     /**
@@ -144,270 +574,1330 @@ public class Manager
                         "\tConnect to this IP\n" +
                         "/listen <port>\n" +
                         "\tListen on this port\n" +
-                        "/disconnect\n" +
-                        "\tDisconnect from the other user\n" +
+                        "/relay <IP Address> <port> <your name> <their name>\n" +
+                        "\tMeet someone through the relay at this IP\n" +
+                        "/peers\n" +
+                        "\tList everyone you are talking to\n" +
+                        "/to <id|group>\n" +
+                        "\tSend your messages to this peer or group\n" +
+                        "/group [name <id> ...]\n" +
+                        "\tList groups, or create a group and add peers to it\n" +
+                        "/ungroup <name> [id ...]\n" +
+                        "\tRemove peers from a group, or leave it\n" +
+                        "/send <path>\n" +
+                        "\tSend a file to the current peer\n" +
+                        "/accept [id]\n" +
+                        "\tAccept the file the current (or given) peer offers\n" +
+                        "/decline [id]\n" +
+                        "\tDecline the file the current (or given) peer offers\n" +
+                        "/history [n]\n" +
+                        "\tShow the last n messages with the current peer\n" +
+                        "/search <words>\n" +
+                        "\tFind messages with the current peer holding all the words\n" +
+                        "/stats\n" +
+                        "\tShow traffic, latency and queue statistics\n" +
+                        "/disconnect [id]\n" +
+                        "\tDisconnect from the current (or given) peer\n" +
                         "/exit\n" +
                         "\tDisconnect and quit the application\n" ;
 
-                    gui.print(help);
+                    listener.print(help);
                     return true;
 
                 }
                 else if ("listen".equals(command))
                 {
                     // attempt to start listening on a port
-                    if (connected)
-                    {
-                        gui.printAlert("You are already talking to someone");
-                        return false;
-                    }
                     if (tokens.length < 2)
                     {
-                        gui.printAlert("You must provide a port number to listen on");
+                        listener.printAlert("You must provide a port number to listen on");
                         return false;
                     }
                     int port = Integer.parseInt(tokens[1]);
                     // check for a valid port number
                     if (port < 1024)
                     {
-                        gui.printAlert("Port number too small, pick a bigger one");
+                        listener.printAlert("Port number too small, pick a bigger one");
                         return false;
                     }
                     if (port > 65535)
                     {
-                        gui.printAlert("Port number too big, pick a smaller one");
+                        listener.printAlert("Port number too big, pick a smaller one");
                         return false;
                     }
-                    if (waitingForConnect)
+                    for (Peer peer : peers.values())
                     {
-                        // if user is already listening, clear old stuff
-                        if (network != null)
+                        if (peer.isWaitingForConnect() && peer.getPort() == port && peer.getRelay() == null)
                         {
-                            network.quit();
+                            // if user is already listening on this port, clear old stuff
+                            stopWaiting(peer);
                         }
                     }
-                    network = new Network(port, this);
-                    
-                    // start up a thread to initialize a server listening on the port
-                    new Thread(new Runnable(){
-                        public void run()
-                        {
-                            try
-                            {
-                                // sdf
-                                // ==========================
-                                //       SERVER SIDE
-                                // ==========================
-                                waitingForConnect = true;
-                                encryption = new Encryption();
-                                network.connect();
-                                print("server side");
-                                // RSA exchange 
-                                print("waiting for key size");
-                                network.receiveKeySize(); // first listen for the key size
-                                byte[] myPublicKeyBytes = encryption.getMyPublicKey().getEncoded();
-                                network.sendKeySize(myPublicKeyBytes);
-                                print("waiting for key");
-                                byte[] theirPub = network.receiveKey(); // the clients public key
-
-                                encryption.setTheirPublicKey(theirPub);
-
-                                print("sending key");
-                                network.sendKey(myPublicKeyBytes);
-                                print("key sent");
-
-                                // AES exchange 
-                                network.receiveKeySize();
-                                byte[] aesKeyBytes = network.receiveKey();
-                                encryption.setAESKey(aesKeyBytes);
-
-
-                                network.startListening();
-                                gui.printAlert("Someone has connected! Start chatting...");
-                                connected = true;
-                                waitingForConnect = false;
-                            }
-                            catch (BindException e)
-                            {
-                                gui.printAlert("Port unavailable, pick another one.");
-                            }
-                            catch (IOException e)
-                            {
-                                e.printStackTrace();
-                            
-                            } 
-                            catch (Exception e) 
-                            {
-                                e.printStackTrace();
-                            }
-                        }
-                    }).start();
-                    gui.printAlert("Now listening on port "+port);
+                    listenOn(port);
+                    listener.printAlert("Now listening on port "+port);
                 }
                 else if ("connect".equals(command))
                 {
-                    // try to connect to someone
-                    if (connected)
-                    {
-                        gui.printAlert("You are already connected to someone!");
-                        return false;
-                    }
                     // try to connect to someone
                     if (tokens.length < 3)
                     {
                         // not enough args provided
-                        gui.printAlert("Connect failed, not enough parameters");
+                        listener.printAlert("Connect failed, not enough parameters");
                         return false;
                     }
                     else
                     {
-                        connected = connectToIP(tokens[1], Integer.parseInt(tokens[2]));
-                        if (!connected){
-                            gui.printAlert("Connection failed");
+                        Peer peer = connectToIP(tokens[1], Integer.parseInt(tokens[2]));
+                        if (peer == null){
+                            listener.printAlert("Connection failed");
                             return false;
                         }
-                        gui.printAlert("Connection successful! Start chatting...");
-                        waitingForConnect = false;
+                        activeId = peer.getId();
+                        listener.printAlert("Connection successful as peer " + peer.getId() + "! Start chatting...");
+                        openHistory(peer, "out-" + peer.getNetwork().getRemoteAddress().getHostAddress()
+                                          + "-" + peer.getPort());
                     }
                 }
-                else if ("disconnect".equals(command))
+                else if ("relay".equals(command))
                 {
-                    // try to disconnect from the ohter user
-                    if (!connected)
+                    if (tokens.length < 5)
                     {
-                        gui.printAlert("No one to disconnect from.");
+                        listener.printAlert("Relay failed, not enough parameters");
                         return false;
                     }
-                    // notify of disconnect and close connection
-                    disconnect();
-                    gui.printAlert("Disconnected.");
+                    try
+                    {
+                        relayTo(tokens[1], Integer.parseInt(tokens[2]), tokens[3], tokens[4]);
+                    }
+                    catch (IOException e)
+                    {
+                        listener.printAlert("Relay connection failed: " + e.getMessage());
+                        return false;
+                    }
+                    listener.printAlert("Waiting on the relay for " + tokens[4]);
                 }
-                else if ("exit".equals(command) || "quit".equals(command))
+                else if ("peers".equals(command))
                 {
-                    // disconnect and exit
-                    disconnect();
-                    shutdown();
+                    if (peers.isEmpty())
+                    {
+                        listener.printAlert("You are not talking to anyone.");
+                        return true;
+                    }
+                    for (Peer peer : peers.values())
+                    {
+                        String state = peer.isConnected() ? "connected"
+                            : (peer.getRelay() != null) ? "waiting on a relay"
+                            : "listening on port " + peer.getPort();
+                        boolean current = peer.getId() == activeId && activeGroup == null;
+                        listener.print((current ? "* " : "  ") + peer.getId() + " - " + state + "\n");
+                    }
+                    printGroups();
                 }
-                else
+                else if ("to".equals(command))
                 {
-                    // unrecognized command
-                    gui.printAlert("Unrecognized command... type /help for help");
-                    return false;
+                    if (tokens.length < 2)
+                    {
+                        listener.printAlert("You must provide the id of a peer");
+                        return false;
+                    }
+                    if (groups.containsKey(tokens[1]))
+                    {
+                        activeGroup = tokens[1];
+                        listener.printAlert("Now talking to group " + tokens[1]);
+                        return true;
+                    }
+                    int to = Integer.parseInt(tokens[1]);
+                    if (!isConnected(to))
+                    {
+                        listener.printAlert("No peer " + to + ", use /peers to list them.");
+                        return false;
+                    }
+                    activeId = to;
+                    activeGroup = null;
+                    listener.printAlert("Now talking to peer " + to);
                 }
-                return true;
-            }
-            else
-            {
-                // try to send a message
-                if (connected)
+                else if ("group".equals(command))
                 {
-                    try
+                    if (tokens.length < 2)
                     {
-                        // send a message
-                        byte[] ciphertext;
-                        ciphertext = input.getBytes("UTF8");
-                        ciphertext = encryption.encrypt(input);
-                        if (ciphertext.length > Network.DATA_SIZE)
+                        printGroups();
+                        return true;
+                    }
+                    if (tokens.length < 3)
+                    {
+                        listener.printAlert("You must provide the ids of the peers to add");
+                        return false;
+                    }
+                    List<Peer> added = new ArrayList<>();
+                    for (int i = 2; i < tokens.length; i++)
+                    {
+                        Peer peer = peers.get(Integer.parseInt(tokens[i]));
+                        if (peer == null || !peer.isConnected())
+                        {
+                            listener.printAlert("No peer " + tokens[i] + ", use /peers to list them.");
+                            return false;
+                        }
+                        if (!supportsGroups(peer))
                         {
-                            gui.printAlert("Message too long, message not sent.");
+                            listener.printAlert("Peer " + tokens[i] + " can not join groups.");
                             return false;
                         }
-                        return network.send(ciphertext);
+                        added.add(peer);
                     }
-                    catch (SocketException e)
+                    Group group = groups.get(tokens[1]);
+                    if (group == null)
                     {
-                        gui.printAlert("Error sending message; connection dropped");
-                        network = null;
-                        connected = false;
-                        return false;
+                        try
+                        {
+                            group = new Group(tokens[1]);
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            listener.printAlert(e.getMessage());
+                            return false;
+                        }
+                        Group existing = groups.putIfAbsent(tokens[1], group);
+                        if (existing == null)
+                        {
+                            openHistory(group);
+                        }
+                        group = (existing != null) ? existing : group;
+                    }
+                    synchronized (group)
+                    {
+                        boolean changed = false;
+                        for (Peer peer : added)
+                        {
+                            changed |= group.add(peer.getId());
+                        }
+                        if (changed)
+                        {
+                            rekey(group);
+                        }
                     }
+                    group.flush();
+                    activeGroup = group.getName();
+                    listener.printAlert("Now talking to group " + group.getName() + " with peers " + group.getMembers());
                 }
-                else
+                else if ("ungroup".equals(command))
                 {
-                    //user tried to send a message but hasn't connected to anyone
-                    gui.printAlert("use /connect <IP addr> <port> to connect to someone");
-                    gui.printAlert("use /listen <port> to wait for a connection");
+                    if (tokens.length < 2)
+                    {
+                        listener.printAlert("You must provide the name of a group");
+                        return false;
+                    }
+                    Group group = groups.get(tokens[1]);
+                    if (group == null)
+                    {
+                        listener.printAlert("No group " + tokens[1] + ", use /group to list them.");
+                        return false;
+                    }
+                    if (tokens.length == 2)
+                    {
+                        leave(group);
+                        listener.printAlert("Left group " + group.getName());
+                        return true;
+                    }
+                    synchronized (group)
+                    {
+                        boolean changed = false;
+                        for (int i = 2; i < tokens.length; i++)
+                        {
+                            int member = Integer.parseInt(tokens[i]);
+                            if (group.remove(member))
+                            {
+                                changed = true;
+                                sendKey(peers.get(member), group, null);
+                            }
+                        }
+                        if (changed)
+                        {
+                            rekey(group);
+                        }
+                    }
+                    group.flush();
+                    listener.printAlert("Group " + group.getName() + " now has peers " + group.getMembers());
                 }
-            }
-
-        }
-        catch (NumberFormatException e)
-        {
-            gui.printAlert("Invalid number parameter");
-        }
-        catch (IndexOutOfBoundsException e)
-        {
-            e.printStackTrace();
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
+                else if ("send".equals(command))
+                {
+                    if (tokens.length < 2)
+                    {
+                        listener.printAlert("You must provide the path of a file");
+                        return false;
+                    }
+                    Peer peer = peers.get(id);
+                    if (peer == null || !peer.isConnected())
+                    {
+                        listener.printAlert("No one to send to.");
+                        return false;
+                    }
+                    Transport network = peer.getNetwork();
+                    if (!network.hasFeature(Network.FEATURE_FILES)
+                        || !network.hasFeature(Network.FEATURE_FRAMED)
+                        || !peer.getEncryption().isGCM())
+                    {
+                        listener.printAlert("This peer can not receive files.");
+                        return false;
+                    }
+                    // the path is everything after the command, it may contain spaces
+                    String path = input.substring(tokens[0].length()).trim();
+                    try
+                    {
+                        peer.getFiles().send(Paths.get(path));
+                    }
+                    catch (IOException e)
+                    {
+                        listener.printAlert(e.getMessage());
+                        return false;
+                    }
+                    listener.printAlert("Offering " + path + " to peer " + id);
+                }
+                else if ("accept".equals(command) || "decline".equals(command))
+                {
+                    int from = (tokens.length > 1) ? Integer.parseInt(tokens[1]) : id;
+                    Peer peer = peers.get(from);
+                    if (peer == null || !peer.isConnected())
+                    {
+                        listener.printAlert("No one is offering a file.");
+                        return false;
+                    }
+                    try
+                    {
+                        if ("accept".equals(command) && !peer.getFiles().accept())
+                        {
+                            listener.printAlert("Peer " + from + " is not offering a file.");
+                            return false;
+                        }
+                        if ("decline".equals(command))
+                        {
+                            String name = peer.getFiles().decline();
+                            if (name == null)
+                            {
+                                listener.printAlert("Peer " + from + " is not offering a file.");
+                                return false;
+                            }
+                            listener.printAlert("Declined " + name);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        listener.printAlert(e.getMessage());
+                        return false;
+                    }
+                }
+                else if ("history".equals(command))
+                {
+                    HistoryStore.Conversation history = activeHistory(id);
+                    if (history == null)
+                    {
+                        listener.printAlert("No history kept for this conversation.");
+                        return false;
+                    }
+                    int n = (tokens.length > 1) ? Integer.parseInt(tokens[1]) : HISTORY_SHOWN;
+                    showHistory(history, n);
+                }
+                else if ("search".equals(command))
+                {
+                    String words = input.substring(tokens[0].length()).trim();
+                    if (words.isEmpty())
+                    {
+                        listener.printAlert("You must provide the words to search for");
+                        return false;
+                    }
+                    HistoryStore.Conversation history = activeHistory(id);
+                    if (history == null)
+                    {
+                        listener.printAlert("No history kept for this conversation.");
+                        return false;
+                    }
+                    // waits for the history writer and the index merges, keep the window responsive
+                    historyReader.execute(() ->
+                    {
+                        try
+                        {
+                            List<HistoryStore.Entry> found = history.search(words, SEARCH_RESULTS);
+                            if (found.isEmpty())
+                            {
+                                listener.printAlert("No messages found.");
+                                return;
+                            }
+                            listener.printAlert(found.size() + " most recent matches:");
+                            printEntries(found);
+                        }
+                        catch (IOException e)
+                        {
+                            listener.printAlert("Search failed: " + e.getMessage());
+                        }
+                    });
+                }
+                else if ("stats".equals(command))
+                {
+                    listener.print(stats());
+                }
+                else if ("disconnect".equals(command))
+                {
+                    // try to disconnect from the ohter user
+                    int from = (tokens.length > 1) ? Integer.parseInt(tokens[1]) : id;
+                    if (!isConnected(from))
+                    {
+                        listener.printAlert("No one to disconnect from.");
+                        return false;
+                    }
+                    // notify of disconnect and close connection
+                    disconnect(from);
+                    listener.printAlert("Disconnected.");
+                }
+                else if ("exit".equals(command) || "quit".equals(command))
+                {
+                    // disconnect and exit
+                    disconnect();
+                    shutdown();
+                }
+                else
+                {
+                    // unrecognized command
+                    listener.printAlert("Unrecognized command... type /help for help");
+                    return false;
+                }
+                return true;
+            }
+            else
+            {
+                // try to send a message
+                Peer peer = peers.get(id);
+                if (peer != null && peer.isConnected())
+                {
+                    try
+                    {
+                        // send a message
+                        byte[] plaintext = input.getBytes(StandardCharsets.UTF_8);
+                        int length = plaintext.length;
+                        if (peer.getNetwork().hasFeature(Network.FEATURE_COMPRESSED))
+                        {
+                            plaintext = peer.getCompression().pack(plaintext);
+                        }
+                        if (peer.getEncryption().encryptedSize(plaintext.length) > Network.DATA_SIZE)
+                        {
+                            // too long for one packet, stream it in chunks if the peer can.
+                            // the peer limits the chunks as sent, codec byte included, and
+                            // the message once unpacked
+                            if (!peer.getNetwork().hasFeature(Network.FEATURE_CHUNKED)
+                                || plaintext.length > ChunkAssembler.MAX_MESSAGE_SIZE
+                                || length > ChunkAssembler.MAX_MESSAGE_SIZE)
+                            {
+                                listener.printAlert("Message too long, message not sent.");
+                                return false;
+                            }
+                            streamer.execute(new ChunkSender(peer, plaintext));
+                            record(peer, true, input);
+                            return true;
+                        }
+                        boolean sent;
+                        synchronized (peer.getSendLock())
+                        {
+                            byte[] ciphertext = peer.getEncryption().encryptBytes(plaintext);
+                            sent = peer.getNetwork().send(ciphertext);
+                        }
+                        if (sent)
+                        {
+                            record(peer, true, input);
+                        }
+                        return sent;
+                    }
+                    catch (SocketException e)
+                    {
+                        listener.printAlert("Error sending message; connection dropped");
+                        peer.setConnected(false);
+                        peers.remove(id);
+                        return false;
+                    }
+                }
+                else
+                {
+                    //user tried to send a message but hasn't connected to anyone
+                    listener.printAlert("use /connect <IP addr> <port> to connect to someone");
+                    listener.printAlert("use /listen <port> to wait for a connection");
+                }
+            }
+
+        }
+        catch (NumberFormatException e)
+        {
+            listener.printAlert("Invalid number parameter");
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            e.printStackTrace();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+        Send input from the user to this manager.
+        Messages go to the peer picked with /to, or the most recent one.
+        @param input- the plaintext message you are sending
+        @return true if successful, false if error
+    */
+    public boolean sendInput(String input)
+    {
+        String group = activeGroup;
+        if (group != null && !input.startsWith("/"))
+        {
+            return sendGroup(group, input);
+        }
+        return sendInput(activeId, input);
+    }
+
+    /**
+        sendGroup()
+        Send a message to everyone in a group. It is encrypted once with
+        our sender key, and the same record goes to every member, so the
+        cost of a message does not grow with the size of the group.
+        @param name - the group
+        @param input - the plaintext message
+        @return true if it went out
+    */
+    private boolean sendGroup(String name, String input)
+    {
+        Group group = groups.get(name);
+        if (group == null)
+        {
+            activeGroup = null;
+            listener.printAlert("No group " + name + ", use /group to list them.");
+            return false;
+        }
+        try
+        {
+            byte[] plaintext = input.getBytes(StandardCharsets.UTF_8);
+            if (plaintext.length > ChunkAssembler.MAX_MESSAGE_SIZE
+                || SenderKey.sealedSize(group.getHeader().length, plaintext.length + 1) > Network.MAX_FRAME_SIZE)
+            {
+                listener.printAlert("Message too long, message not sent.");
+                return false;
+            }
+            plaintext = group.getCompression().pack(plaintext);
+            List<Integer> members;
+            synchronized (group)
+            {
+                members = group.getMembers();
+                if (members.isEmpty())
+                {
+                    listener.printAlert("No one in group " + name + ", use /group " + name + " <id> to add peers.");
+                    return false;
+                }
+                // sealed and queued under the lock, so every member gets our key before the messages it encrypts
+                byte[] record = group.getMyKey().seal(group.getHeader(), plaintext);
+                group.queue(() -> fanOut(members, record));
+            }
+            group.flush();
+            Metrics.GROUP_FANOUT.add(members.size());
+            record(group, true, input);
+            return true;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+        fanOut()
+        Send one sealed group record to every member still connected.
+        @param members - the peer ids
+        @param record - the record
+    */
+    private void fanOut(List<Integer> members, byte[] record)
+    {
+        for (int id : members)
+        {
+            Peer peer = peers.get(id);
+            if (peer == null || !peer.isConnected())
+            {
+                continue;
+            }
+            try
+            {
+                peer.getNetwork().sendGroup(record);
+            }
+            catch (SocketException e)
+            {
+                // connection dropped, the listener reports it and removes the member
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+        rekey()
+        Replace our sender key of a group and queue the new one for every
+        member over its own session, after members were added or removed.
+        Call with the group locked, and flush the group afterwards.
+        @param group - the group
+    */
+    private void rekey(Group group) throws Exception
+    {
+        group.rotate();
+        Metrics.GROUP_REKEYS.increment();
+        for (int id : group.getMembers())
+        {
+            sendKey(peers.get(id), group, group.getMyKey());
+        }
+    }
+
+    /**
+        sendKey()
+        Queue our sender key of a group for one member, it is encrypted
+        with the session of that member when the group is flushed. Call
+        with the group locked.
+        @param peer - the member, nothing is sent if it is gone
+        @param group - the group
+        @param key - our key, null to tell the peer it was removed
+    */
+    private void sendKey(Peer peer, Group group, SenderKey key)
+    {
+        if (peer == null || !peer.isConnected())
+        {
+            return;
+        }
+        byte[] message = group.keyMessage(key);
+        group.queue(() -> deliverKey(peer, message));
+    }
+
+    /**
+        deliverKey()
+        Encrypt a KEY message with the session of a member and send it.
+        @param peer - the member
+        @param message - from Group.keyMessage()
+    */
+    private void deliverKey(Peer peer, byte[] message)
+    {
+        if (!peer.isConnected())
+        {
+            return;
+        }
+        Encryption encryption = peer.getEncryption();
+        byte[] record = new byte[1 + encryption.encryptedSize(message.length)];
+        record[0] = Group.KEY;
+        try
+        {
+            synchronized (peer.getSendLock())
+            {
+                encryption.encrypt(message, 0, message.length, record, 1);
+                peer.getNetwork().sendGroup(record);
+            }
+        }
+        catch (SocketException e)
+        {
+            // connection dropped, the listener reports it and removes the member
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+        leave()
+        Tell every member of a group we left and forget the group.
+        @param group - the group
+    */
+    private void leave(Group group) throws Exception
+    {
+        groups.remove(group.getName(), group);
+        if (group.getName().equals(activeGroup))
+        {
+            activeGroup = null;
+        }
+        synchronized (group)
+        {
+            for (int id : group.getMembers())
+            {
+                group.remove(id);
+                sendKey(peers.get(id), group, null);
+            }
+        }
+        group.flush();
+    }
+
+    /**
+        supportsGroups()
+        @param peer - a connected peer
+        @return true if the peer can take part in groups
+    */
+    private boolean supportsGroups(Peer peer)
+    {
+        Transport network = peer.getNetwork();
+        return network.hasFeature(Network.FEATURE_GROUPS)
+            && network.hasFeature(Network.FEATURE_FRAMED)
+            && peer.getEncryption().isGCM();
+    }
+
+    private void printGroups()
+    {
+        if (groups.isEmpty())
+        {
+            listener.printAlert("You are in no groups.");
+            return;
+        }
+        for (Group group : groups.values())
+        {
+            String current = group.getName().equals(activeGroup) ? "* " : "  ";
+            listener.print(current + group.getName() + " - peers " + group.getMembers() + "\n");
+        }
+    }
+
+    /**
+        Never let the reader of a peer wait for the receive pipeline, used by
+        readers that serve many peers on one thread.
+        @param id - the peer
+        @param pause - stops reading from the peer, runs on the reader's thread
+        @param resume - starts reading again, runs on another thread
+    */
+    public void throttle(int id, Runnable pause, Runnable resume)
+    {
+        pipeline.throttle(id, pause, resume);
+    }
+
+    /**
+        Receive a message from the network and give it to the user.
+        Called by the reader of the connection, the message is decrypted
+        and shown on the receive pipeline.
+        @param id - the peer the message came from
+        @param message - the encrypted message received, a BufferPool buffer
+            this manager releases
+    */
+    public void receiveMessage(int id, ByteBuffer message)
+    {
+        pipeline.submit(id, () -> deliverMessage(id, message), () -> BufferPool.release(message));
+    }
+
+    /**
+        Decrypt a received message and give it to the user.
+        @param id - the peer the message came from
+        @param message - the encrypted message received
+    */
+    private void deliverMessage(int id, ByteBuffer message)
+    {
+        ByteBuffer decrypted = null;
+        try
+        {
+            Peer peer = peers.get(id);
+            if (peer == null || !peer.isConnected()) 
+            {
+                alert(peers.size() > 1 ? "Peer " + id + " disconnected." : "Partner disconnected.");
+                disconnect(id);  
+                return;
+            }
+            decrypted = decrypt(peer, message);
+            String plaintext;
+            plaintext = decode(peer, decrypted);
+            printIncoming(id, plaintext);
+            record(peer, false, plaintext);
+        }
+        catch (IOException e)
+        {
+            alert("Message dropped: " + e.getMessage());
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            BufferPool.release(message);
+            BufferPool.release(decrypted);
+        }
+    }
+
+    /**
+        decrypt()
+        Decrypt a received packet into a pooled buffer the size of the
+        ciphertext, which is enough because the plaintext is never longer.
+        @param peer - the peer the packet came from
+        @param ciphertext - the packet, read to its end
+        @return the plaintext, to be given back with BufferPool.release()
+    */
+    private ByteBuffer decrypt(Peer peer, ByteBuffer ciphertext) throws Exception
+    {
+        ByteBuffer plaintext = BufferPool.acquire(ciphertext.remaining());
+        peer.getEncryption().decrypt(ciphertext, plaintext);
+        plaintext.flip();
+        return plaintext;
+    }
+
+    /**
+        decode()
+        Turn a decrypted message back into text, undoing its compression
+        if the peer negotiated it. This is the only copy of the message
+        made after it was decrypted.
+        @param peer - the peer the message came from
+        @param plaintext - the decrypted message, a heap buffer
+        @return the message
+        @throws IOException if the message cannot be decompressed
+    */
+    private String decode(Peer peer, ByteBuffer plaintext) throws IOException
+    {
+        if (peer.getNetwork().hasFeature(Network.FEATURE_COMPRESSED))
+        {
+            plaintext = peer.getCompression().unpack(plaintext, ChunkAssembler.MAX_MESSAGE_SIZE);
+        }
+        return new String(plaintext.array(), plaintext.arrayOffset() + plaintext.position(),
+            plaintext.remaining(), StandardCharsets.UTF_8);
+    }
+
+    /**
+        Receive one chunk of a long message from the network.
+        The chunk is decrypted and added to its message, which is given to
+        the user once its last chunk arrived.
+        @param id - the peer the chunk came from
+        @param chunk - the encrypted chunk received, a BufferPool buffer this
+            manager releases
+    */
+    public void receiveChunk(int id, ByteBuffer chunk)
+    {
+        pipeline.submit(id, () -> deliverChunk(id, chunk), false);
+    }
+
+    private void deliverChunk(int id, ByteBuffer chunk)
+    {
+        Peer peer = peers.get(id);
+        ByteBuffer decrypted = null;
+        try
+        {
+            if (peer == null || !peer.isConnected())
+            {
+                return;
+            }
+            decrypted = decrypt(peer, chunk);
+            byte[] message = peer.getAssembler().add(decrypted);
+            if (message != null)
+            {
+                String plaintext = decode(peer, ByteBuffer.wrap(message));
+                printIncoming(id, plaintext);
+                record(peer, false, plaintext);
+            }
+        }
+        catch (IOException e)
+        {
+            alert("Long message dropped: " + e.getMessage());
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            BufferPool.release(chunk);
+            BufferPool.release(decrypted);
         }
-        return false;
     }
 
     /**
-        Send input from the user to this manager.
-        @param input- the plaintext message you are sending
-        @return true if successful, false if error
+        Receive a file transfer record from the network.
+        @param id - the peer the record came from
+        @param record - the encrypted record received, a BufferPool buffer
+            this manager releases
     */
-    public boolean sendInput(String input)
+    public void receiveFile(int id, ByteBuffer record)
     {
-        return sendInput(0, input);
+        pipeline.submit(id, () -> deliverFile(id, record), false);
+    }
+
+    private void deliverFile(int id, ByteBuffer record)
+    {
+        Peer peer = peers.get(id);
+        ByteBuffer decrypted = null;
+        try
+        {
+            if (peer == null || !peer.isConnected())
+            {
+                return;
+            }
+            decrypted = decrypt(peer, record);
+            peer.getFiles().receive(decrypted);
+        }
+        catch (SocketException e)
+        {
+            // connection dropped, the listener reports it
+        }
+        catch (IOException e)
+        {
+            alert("File transfer failed: " + e.getMessage());
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            BufferPool.release(record);
+            BufferPool.release(decrypted);
+        }
     }
 
     /**
-        Receive a message from the network and give it to the user.
-        This method receives a message from the network, decrypts it,
-        and gives it to the user.
-        @param message - the encrypted message received
+        Receive a GROUP packet from the network, a member's sender key or
+        a message to a group.
+        @param id - the peer the packet came from
+        @param packet - the packet received, a BufferPool buffer this
+            manager releases
     */
-    public void receiveMessage(byte[] message)
+    public void receiveGroup(int id, ByteBuffer packet)
     {
+        pipeline.submit(id, () -> deliverGroup(id, packet), false);
+    }
 
+    private void deliverGroup(int id, ByteBuffer packet)
+    {
+        Peer peer = peers.get(id);
+        ByteBuffer decrypted = null;
         try
         {
-            if (!connected) 
+            if (peer == null || !peer.isConnected() || !packet.hasRemaining())
             {
-                gui.printAlert("Partner disconnected.");
-                disconnect();  
                 return;
             }
-            String plaintext;
-            plaintext = encryption.decrypt(message);
-            gui.printIncoming(plaintext);
+            int start = packet.position();
+            byte kind = packet.get();
+            if (kind == Group.KEY)
+            {
+                decrypted = decrypt(peer, packet);
+                String name = Group.readName(decrypted);
+                int epoch = decrypted.getInt();
+                int length = decrypted.hasRemaining() ? decrypted.get() & 0xff : -1;
+                if (length < 0 || decrypted.remaining() != length)
+                {
+                    throw new IOException("Invalid group key");
+                }
+                byte[] key = new byte[length];
+                decrypted.get(key);
+                receiveKey(peer, name, epoch, key);
+                return;
+            }
+            if (kind != Group.MESSAGE)
+            {
+                throw new IOException("Unknown group packet " + kind);
+            }
+            String name = Group.readName(packet);
+            int epoch = packet.getInt();
+            int headerLength = packet.position() - start;
+            Group group = groups.get(name);
+            SenderKey key = (group == null) ? null : group.getKey(id);
+            if (key == null || !group.isMember(id))
+            {
+                throw new IOException("not in group " + name);
+            }
+            if (key.getEpoch() != epoch)
+            {
+                throw new IOException("unknown key of peer " + id);
+            }
+            packet.position(start);
+            decrypted = BufferPool.acquire(packet.remaining());
+            key.open(packet, headerLength, decrypted);
+            decrypted.flip();
+            ByteBuffer message = group.getCompression().unpack(decrypted, ChunkAssembler.MAX_MESSAGE_SIZE);
+            String text = new String(message.array(), message.arrayOffset() + message.position(),
+                message.remaining(), StandardCharsets.UTF_8);
+            listener.printIncoming("[" + name + "/" + id + "] " + text);
+            record(group, false, "[" + id + "] " + text);
+        }
+        catch (IOException e)
+        {
+            alert("Group message dropped: " + e.getMessage());
         }
         catch (Exception e)
         {
             e.printStackTrace();
         }
+        finally
+        {
+            BufferPool.release(packet);
+            BufferPool.release(decrypted);
+        }
+    }
+
+    /**
+        receiveKey()
+        Take in the sender key a member sent us. A key for a group we do
+        not know means the peer added us to it, so we join and send our
+        own key back. An empty key means the peer removed us.
+        @param peer - the member
+        @param name - the group
+        @param epoch - epoch of the key
+        @param key - the key, empty if we were removed
+    */
+    private void receiveKey(Peer peer, String name, int epoch, byte[] key) throws Exception
+    {
+        int id = peer.getId();
+        Group group = groups.get(name);
+        if (key.length == 0)
+        {
+            if (group == null)
+            {
+                return;
+            }
+            synchronized (group)
+            {
+                if (group.remove(id))
+                {
+                    rekey(group);
+                    alert("Peer " + id + " left group " + name);
+                }
+            }
+            group.flush();
+            return;
+        }
+
+        boolean joined = false;
+        if (group == null)
+        {
+            Group created = new Group(name);
+            group = groups.putIfAbsent(name, created);
+            joined = (group == null);
+            group = joined ? created : group;
+            if (joined)
+            {
+                openHistory(group);
+            }
+        }
+        synchronized (group)
+        {
+            group.setKey(id, new SenderKey(key, epoch));
+            if (group.add(id))
+            {
+                if (joined)
+                {
+                    // our key is brand new, no one else has it
+                    sendKey(peer, group, group.getMyKey());
+                }
+                else
+                {
+                    rekey(group);
+                }
+            }
+        }
+        group.flush();
+        if (joined)
+        {
+            alert("Peer " + id + " added you to group " + name + ", use /to " + name + " to talk to it.");
+        }
+    }
+
+    /**
+        alert()
+        Show a notice to the user, used by work running in the background.
+        @param message - the notice
+    */
+    void alert(String message)
+    {
+        listener.printAlert(message);
+    }
+
+    /**
+        Show a received message, tagged with the peer when there are several.
+        @param id - the peer the message came from
+        @param plaintext - the message
+    */
+    private void printIncoming(int id, String plaintext)
+    {
+        String text = peers.size() > 1 ? "[" + id + "] " + plaintext : plaintext;
+        listener.printIncoming(text);
+    }
+
+    /**
+        Open the stored history of a newly connected peer and show its most
+        recent messages.
+        @param peer - the peer
+        @param name - names the conversation, by the address and port of the connection
+    */
+    private void openHistory(Peer peer, String name)
+    {
+        peer.setHistory(openHistory(name));
+    }
+
+    /**
+        Open the stored history of a group we created or joined, named
+        after the group, and show its most recent messages.
+        @param group - the group
+    */
+    private void openHistory(Group group)
+    {
+        group.setHistory(openHistory("group-" + group.getName()));
+    }
+
+    /**
+        Open a stored conversation and show its most recent messages.
+        @param name - names the conversation
+        @return the conversation, null if history is not kept
+    */
+    private HistoryStore.Conversation openHistory(String name)
+    {
+        if (!HistoryStore.ENABLED)
+        {
+            return null;
+        }
+        try
+        {
+            HistoryStore.Conversation history = HistoryStore.shared().open(name);
+            if (history.size() > 0)
+            {
+                showHistory(history, HISTORY_SHOWN);
+            }
+            return history;
+        }
+        catch (IOException e)
+        {
+            listener.printAlert("History not kept: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+        @param id - the current peer
+        @return the history of the group plain input goes to, or else of
+            the peer, null if not kept
+    */
+    private HistoryStore.Conversation activeHistory(int id)
+    {
+        String name = activeGroup;
+        Group group = (name == null) ? null : groups.get(name);
+        if (group != null)
+        {
+            return group.getHistory();
+        }
+        Peer peer = peers.get(id);
+        return (peer == null) ? null : peer.getHistory();
+    }
+
+    /**
+        Print the last messages of a conversation with the time they were sent.
+        Reading them waits for the history writer, so it runs on the history
+        reader thread instead of the caller's.
+        @param history - the conversation
+        @param n - how many messages
+    */
+    private void showHistory(HistoryStore.Conversation history, int n)
+    {
+        historyReader.execute(() ->
+        {
+            try
+            {
+                printEntries(history.last(n));
+            }
+            catch (IOException e)
+            {
+                listener.printAlert("History not available: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+        stats()
+        Traffic of every open conversation, then everything the metrics
+        registry holds.
+        @return the text for /stats
+    */
+    private String stats()
+    {
+        StringBuilder text = new StringBuilder("Conversations:\n");
+        for (Peer peer : peers.values())
+        {
+            if (peer.getNetwork() != null && peer.isConnected())
+            {
+                text.append("  ").append(peer.getId()).append(" - ")
+                    .append(peer.getNetwork().getStats().describe()).append('\n');
+            }
+        }
+        text.append("Totals:\n").append(Metrics.report());
+        text.append("  recv.dropped ").append(pipeline.getDropped()).append('\n');
+        return text.toString();
+    }
+
+    private void printEntries(List<HistoryStore.Entry> entries)
+    {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm");
+        StringBuilder text = new StringBuilder();
+        for (HistoryStore.Entry entry : entries)
+        {
+            text.append('[').append(format.format(new Date(entry.getTime()))).append("] ")
+                .append(entry.isOutgoing() ? "> " : "< ").append(entry.getText()).append('\n');
+        }
+        listener.print(text.toString());
+    }
+
+    /**
+        Store a message of a peer, if its history is kept.
+        @param peer - the peer
+        @param outgoing - true if we sent it
+        @param text - the message
+    */
+    private void record(Peer peer, boolean outgoing, String text)
+    {
+        HistoryStore.Conversation history = peer.getHistory();
+        if (history != null)
+        {
+            history.append(outgoing, text);
+        }
+    }
+
+    /**
+        Store a message of a group, if its history is kept. Messages of
+        members are prefixed with their id.
+        @param group - the group
+        @param outgoing - true if we sent it
+        @param text - the message
+    */
+    private void record(Group group, boolean outgoing, String text)
+    {
+        HistoryStore.Conversation history = group.getHistory();
+        if (history != null)
+        {
+            history.append(outgoing, text);
+        }
+    }
+
+    /**
+        Sends a long message one chunk per run. After each chunk it queues
+        itself behind whatever else the streamer has to do, so several long
+        messages take turns, and it backs off while the connection already
+        has STREAM_WINDOW packets waiting.
+    */
+    private class ChunkSender implements Runnable
+    {
+        private final Peer peer;
+        private final byte[] message;
+        private final int messageId;
+        private final int chunks;
+        private int index;
+
+        /**
+            Constructor to initialize fields
+            @param peer - the peer to send to
+            @param message - the whole plaintext message
+        */
+        public ChunkSender(Peer peer, byte[] message)
+        {
+            this.peer = peer;
+            this.message = message;
+            messageId = peer.nextMessageId();
+            chunks = ChunkAssembler.chunks(message.length);
+            index = 0;
+        }
+
+        public void run()
+        {
+            if (!peer.isConnected())
+            {
+                return;
+            }
+            try
+            {
+                Transport network = peer.getNetwork();
+                if (network.backlog() >= STREAM_WINDOW)
+                {
+                    streamer.schedule(this, 1, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                byte[] chunk = ChunkAssembler.chunk(messageId, index, message);
+                synchronized (peer.getSendLock())
+                {
+                    network.sendChunk(peer.getEncryption().encryptBytes(chunk));
+                }
+                if (++index < chunks)
+                {
+                    streamer.execute(this);
+                }
+            }
+            catch (SocketException e)
+            {
+                // connection dropped, the listener reports it
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
         partnerDisconnected()
         Notify this manager that the partner has disconnected. This should
         only be called by Network under certain circumstances.
+        @param id - the peer that disconnected
+    */
+    public void partnerDisconnected(int id)
+    {
+        // queued behind the messages that arrived before the QUIT
+        pipeline.submit(id, () ->
+        {
+            Peer peer = peers.get(id);
+            if (peer != null)
+            {
+                peer.setConnected(false);
+                peer.getFiles().close();
+            }
+        }, false);
+    }
+
+    /**
+        connectionClosed()
+        Notify this manager that the connection of a peer is gone. This
+        should only be called by Network once it stops reading.
+        @param id - the peer whose connection closed
     */
-    public void partnerDisconnected()
+    public void connectionClosed(int id)
     {
-        connected = false;
+        pipeline.submit(id, () ->
+        {
+            disconnect(id);
+            pipeline.forget(id);
+        }, false);
     }
 
     /**
         disconnect()
-        Notify this manager to disconnect from the partner and reset state.
+        Notify this manager to disconnect from a peer and reset its state.
+        @param id - the peer to disconnect from
     */
-    public boolean disconnect()
+    public boolean disconnect(int id)
     {
+        Peer peer = peers.remove(id);
         try
         {
-            if (connected) 
+            if (peer == null)
+            {
+                return true;
+            }
+            if (peer.isWaitingForConnect())
+            {
+                stopWaiting(peer);
+            }
+            peer.getFiles().close();
+            peer.getCompression().close();
+            for (Group group : groups.values())
             {
-                network.quit();
-                encryption.reset();
-                network = null;
-                encryption = null;
-                connected = false;
+                synchronized (group)
+                {
+                    if (group.remove(id))
+                    {
+                        rekey(group);
+                    }
+                }
+                group.flush();
+            }
+            if (peer.isConnected()) 
+            {
+                peer.setConnected(false);
+                peer.getNetwork().quit();
+                peer.getEncryption().reset();
             }
         }
         catch (IOException e)
@@ -418,6 +1908,36 @@ public class Manager
         {
             e.printStackTrace();
         }
+        finally
+        {
+            if (activeId == id)
+            {
+                activeId = 0;
+                for (Peer other : peers.values())
+                {
+                    if (other.isConnected())
+                    {
+                        activeId = other.getId();
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+        disconnect()
+        Disconnect from every peer.
+    */
+    public boolean disconnect()
+    {
+        // everyone is leaving, no point in sending new group keys around
+        groups.clear();
+        activeGroup = null;
+        for (Integer id : peers.keySet())
+        {
+            disconnect(id);
+        }
         return true;
     }
 
@@ -431,6 +1951,40 @@ public class Manager
         System.exit(0);
     }
 
+    /**
+        stopWaiting()
+        Stop a peer that is still listening for a connection.
+        @param peer - the waiting peer
+    */
+    private void stopWaiting(Peer peer) throws IOException
+    {
+        peer.setWaitingForConnect(false);
+        peers.remove(peer.getId());
+        if (peer.getRelay() != null)
+        {
+            peer.getRelay().close();
+        }
+        else if (peer.getAcceptor() != null)
+        {
+            peer.getAcceptor().close();
+        }
+        else if (peer.getNetwork() != null)
+        {
+            peer.getNetwork().quit();
+        }
+    }
+
+    /**
+        isConnected()
+        @param id - the peer to check
+        @return true if there is a connected peer with this id
+    */
+    private boolean isConnected(int id)
+    {
+        Peer peer = peers.get(id);
+        return peer != null && peer.isConnected();
+    }
+
     /**
         print()
         Print a debug message to the console
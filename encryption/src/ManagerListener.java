@@ -0,0 +1,32 @@
+/**
+    ManagerListener.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    Everything the Manager shows to the user goes through this interface,
+    so the Manager does not care whether it is shown in a window, written
+    to a terminal, or handled by a program (a bot, a relay, a load test).
+    Methods may be called from any thread, including several at once.
+*/
+
+public interface ManagerListener
+{
+    /**
+        Show output of a command, already formatted and ending with a newline.
+        @param output - the text to show
+    */
+    void print(String output);
+
+    /**
+        Show a notice to the user, such as a connection being made or lost.
+        @param alert - the notice, without a trailing newline
+    */
+    void printAlert(String alert);
+
+    /**
+        Show a message received from a peer. When several conversations
+        are open it is prefixed with "[id] " of the peer that sent it.
+        @param message - the decrypted message
+    */
+    void printIncoming(String message);
+}
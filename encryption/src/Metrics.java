@@ -0,0 +1,593 @@
+/**
+ * Metrics.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * process wide metrics registry. counters are LongAdders and histograms
+ * are arrays of atomic buckets, so recording never takes a lock. histograms
+ * are log-linear like HdrHistogram: 16 buckets per power of two, which keeps
+ * every percentile within about 6% of the real value at any magnitude.
+ * <p>
+ * with -Dlsb.metrics=off ENABLED is a constant false, every record call
+ * returns right away and the JIT removes it along with the timing around it.
+ * otherwise everything is also published over JMX as lsb:type=Metrics.
+ * reading the clock costs about as much as encrypting a short message, so
+ * per message timings are taken for one call in -Dlsb.metrics.sample.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class Metrics
+{
+    public static final boolean ENABLED = !"off".equals ( System.getProperty ( "lsb.metrics" ) );
+    public static final int SAMPLE = Math.max ( 1, Integer.getInteger ( "lsb.metrics.sample", 16 ) );
+
+    private static final Map<String, Object> REGISTRY = new ConcurrentSkipListMap<> ( );
+
+    /* traffic of every connection together, Session has it per connection */
+    public static final Counter BYTES_IN   = counter ( "net.bytesIn" );
+    public static final Counter BYTES_OUT  = counter ( "net.bytesOut" );
+    public static final Counter FRAMES_IN  = counter ( "net.framesIn" );
+    public static final Counter FRAMES_OUT = counter ( "net.framesOut" );
+
+    /* queue depth seen by every packet added */
+    public static final Histogram SEND_QUEUE    = histogram ( "net.sendQueue", "packets", 1 );
+    public static final Histogram RECEIVE_QUEUE = histogram ( "recv.queue", "packets", 1 );
+
+    /* time per AES operation, any size, sampled */
+    public static final Histogram ENCRYPT = histogram ( "crypto.encrypt", "us", 1000 );
+    public static final Histogram DECRYPT = histogram ( "crypto.decrypt", "us", 1000 );
+
+    /* phases of a new connection: TCP and HELLO, then the key exchange */
+    public static final Histogram HANDSHAKE_CONNECT = histogram ( "handshake.connect", "ms", 1000000 );
+    public static final Histogram HANDSHAKE_KEYS    = histogram ( "handshake.keys", "ms", 1000000 );
+    public static final Counter   HANDSHAKE_RESUMED = counter ( "handshake.resumed" );
+
+    /* buffers BufferPool had to allocate because none were free */
+    public static final Counter POOL_ALLOCATED = counter ( "pool.allocated" );
+
+    /* group messages sent, one per member, and sender keys replaced */
+    public static final Counter GROUP_FANOUT = counter ( "group.fanout" );
+    public static final Counter GROUP_REKEYS = counter ( "group.rekeys" );
+
+    /* RSA pairs RSAKeyPool handed out ready, or had to generate on the spot */
+    public static final Counter RSA_POOL_HITS   = counter ( "rsa.pool.hits" );
+    public static final Counter RSA_POOL_MISSES = counter ( "rsa.pool.misses" );
+
+    static {
+        if ( ENABLED ) Threads.start ( "MetricsJMX", true, Metrics::register ); // off the startup path
+    }
+
+    /**
+     * start ( )
+     * <p>
+     * the time to pass to Histogram.recordSince ( ) later
+     * <p>
+     *
+     * @return System.nanoTime ( ), or 0 if metrics are off
+     */
+    public static long start ( )
+    {
+        return ENABLED ? System.nanoTime ( ) : 0;
+    }
+
+    /**
+     * sample ( )
+     * <p>
+     * like start ( ), but only for one call in SAMPLE, for operations too
+     * short to read the clock twice every time
+     * <p>
+     *
+     * @return System.nanoTime ( ), or 0 if this call is not timed
+     */
+    public static long sample ( )
+    {
+        return ( ENABLED && ThreadLocalRandom.current ( ).nextInt ( SAMPLE ) == 0 ) ? System.nanoTime ( ) : 0;
+    }
+
+    /**
+     * counter ( )
+     * <p>
+     * the counter with this name, created on first use
+     * <p>
+     *
+     * @param name dotted name, shown in /stats and JMX
+     * @return the counter
+     */
+    public static Counter counter ( String name )
+    {
+        return ( Counter ) REGISTRY.computeIfAbsent ( name, n -> new Counter ( ) );
+    }
+
+    /**
+     * gauge ( )
+     * <p>
+     * reports what value says at the time of reading, replacing any gauge
+     * of the same name
+     * <p>
+     *
+     * @param name dotted name, shown in /stats and JMX
+     * @param value read on every /stats and JMX query, must not block
+     */
+    public static void gauge ( String       name,
+                               LongSupplier value )
+    {
+        REGISTRY.put ( name, new Gauge ( value ) );
+    }
+
+    /**
+     * histogram ( )
+     * <p>
+     * the histogram with this name, created on first use
+     * <p>
+     *
+     * @param name dotted name, shown in /stats and JMX
+     * @param unit unit values are reported in
+     * @param scale recorded values per reported unit ( 1000 to record ns and report us )
+     * @return the histogram
+     */
+    public static Histogram histogram ( String name,
+                                        String unit,
+                                        long   scale )
+    {
+        return ( Histogram ) REGISTRY.computeIfAbsent ( name, n -> new Histogram ( unit, scale ) );
+    }
+
+    /**
+     * report ( )
+     * <p>
+     * every counter and histogram, one per line, for /stats
+     * <p>
+     *
+     * @return the report, ending with a newline
+     */
+    public static String report ( )
+    {
+        if ( !ENABLED ) return "Metrics are off ( -Dlsb.metrics=off ).\n";
+
+        StringBuilder text = new StringBuilder ( );
+
+        for ( Map.Entry<String, Object> entry : REGISTRY.entrySet ( ) ) {
+            text.append ( "  " ).append ( entry.getKey ( ) ).append ( ' ' );
+
+            if ( entry.getValue ( ) instanceof Counter ) {
+                text.append ( ( ( Counter ) entry.getValue ( ) ).get ( ) );
+            } else if ( entry.getValue ( ) instanceof Gauge ) {
+                text.append ( ( ( Gauge ) entry.getValue ( ) ).get ( ) );
+            } else {
+                Histogram h = ( Histogram ) entry.getValue ( );
+                Histogram.Snapshot s = h.snapshot ( );
+
+                text.append ( String.format ( "n=%d p50=%s p99=%s p99.9=%s max=%s %s",
+                                              s.count,
+                                              h.format ( s.percentile ( 50 ) ),
+                                              h.format ( s.percentile ( 99 ) ),
+                                              h.format ( s.percentile ( 99.9 ) ),
+                                              h.format ( s.max ),
+                                              h.unit ) );
+            }
+            text.append ( '\n' );
+        }
+
+        return text.toString ( );
+    } /* report */
+
+    /**
+     * formatBytes ( )
+     * <p>
+     * a byte count in B, KB, MB or GB
+     * <p>
+     *
+     * @param bytes the count
+     * @return short text
+     */
+    public static String formatBytes ( double bytes )
+    {
+        String[] units = { "B", "KB", "MB", "GB" };
+        int u = 0;
+
+        while ( bytes >= 1024 && u < units.length - 1 ) {
+            bytes /= 1024;
+            u++;
+        }
+
+        return ( u == 0 ) ? String.format ( "%.0f %s", bytes, units [ u ] )
+               : String.format ( "%.1f %s", bytes, units [ u ] );
+    }
+
+    /**
+     * register ( )
+     * <p>
+     * publishes the registry on the platform MBean server
+     * <p>
+     */
+    private static void register ( )
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer ( ).registerMBean ( new MBean ( ),
+                    new ObjectName ( "lsb:type=Metrics" ) );
+        } catch ( Exception e ) {
+            e.printStackTrace ( ); // e.g. a second registry in the same JVM, the first one stays
+        }
+    }
+
+    /**
+     * a lock-free count
+     */
+    public static class Counter
+    {
+        private final LongAdder value = new LongAdder ( );
+
+        public void add ( long n )
+        {
+            if ( ENABLED ) value.add ( n );
+        }
+
+        public void increment ( )
+        {
+            if ( ENABLED ) value.increment ( );
+        }
+
+        public long get ( )
+        {
+            return value.sum ( );
+        }
+    }
+
+    /**
+     * a value read when asked for, such as a pool size
+     */
+    public static class Gauge
+    {
+        private final LongSupplier value;
+
+        Gauge ( LongSupplier value )
+        {
+            this.value = value;
+        }
+
+        public long get ( )
+        {
+            return value.getAsLong ( );
+        }
+    }
+
+    /**
+     * log-linear histogram of non-negative values
+     */
+    public static class Histogram
+    {
+        private static final int SUB_BITS = 4;              // 16 buckets per power of two
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = ( 64 - SUB_BITS ) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray ( BUCKETS );
+        private final LongAdder sum = new LongAdder ( );
+        private final AtomicLong max = new AtomicLong ( );
+        private final String unit;
+        private final long scale;
+
+        Histogram ( String unit,
+                    long   scale )
+        {
+            this.unit = unit;
+            this.scale = scale;
+        }
+
+        /**
+         * record ( )
+         * <p>
+         * adds one value, negative values count as 0
+         * <p>
+         *
+         * @param value the value, in recorded units
+         */
+        public void record ( long value )
+        {
+            if ( !ENABLED ) return;
+            if ( value < 0 ) value = 0;
+
+            counts.incrementAndGet ( bucket ( value ) );
+            sum.add ( value );
+            if ( value > max.get ( ) ) max.accumulateAndGet ( value, Math::max );
+        }
+
+        /**
+         * recordSince ( )
+         * <p>
+         * records the nanoseconds since a Metrics.start ( ) or sample ( )
+         * <p>
+         *
+         * @param start what Metrics.start ( ) or sample ( ) returned, 0 records nothing
+         */
+        public void recordSince ( long start )
+        {
+            if ( ENABLED && start != 0 ) record ( System.nanoTime ( ) - start );
+        }
+
+        /**
+         * values below SUB_COUNT have a bucket each, above that every power of
+         * two is split into SUB_COUNT equal buckets
+         */
+        static int bucket ( long value )
+        {
+            if ( value < SUB_COUNT ) return ( int ) value;
+            int shift = 63 - Long.numberOfLeadingZeros ( value ) - SUB_BITS;
+
+            return ( ( shift + 1 ) << SUB_BITS ) + ( int ) ( ( value >>> shift ) - SUB_COUNT );
+        }
+
+        /**
+         * the middle of a bucket, the value reported for everything in it
+         */
+        static long value ( int bucket )
+        {
+            if ( bucket < SUB_COUNT ) return bucket;
+            int shift = ( bucket >>> SUB_BITS ) - 1;
+            long low = ( long ) ( SUB_COUNT + ( bucket & ( SUB_COUNT - 1 ) ) ) << shift;
+
+            return low + ( ( 1L << shift ) >>> 1 );
+        }
+
+        /**
+         * snapshot ( )
+         * <p>
+         * copies the buckets, recording goes on meanwhile
+         * <p>
+         *
+         * @return the copy
+         */
+        public Snapshot snapshot ( )
+        {
+            long[] copy = new long [ BUCKETS ];
+            long count = 0;
+
+            for ( int i = 0; i < BUCKETS; i++ ) {
+                copy [ i ] = counts.get ( i );
+                count += copy [ i ];
+            }
+
+            return new Snapshot ( copy, count, sum.sum ( ), max.get ( ) );
+        }
+
+        String format ( long value )
+        {
+            return ( scale == 1 ) ? Long.toString ( value )
+                   : String.format ( "%.1f", value / ( double ) scale );
+        }
+
+        /**
+         * the buckets of a histogram at one point in time
+         */
+        public static class Snapshot
+        {
+            private final long[] counts;
+            final long count;
+            final long sum;
+            final long max;
+
+            Snapshot ( long[] counts,
+                       long   count,
+                       long   sum,
+                       long   max )
+            {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            /**
+             * percentile ( )
+             * <p>
+             * the value below which this percentage of the recorded values fall
+             * <p>
+             *
+             * @param percent 0 to 100
+             * @return the value, 0 if nothing was recorded
+             */
+            public long percentile ( double percent )
+            {
+                long rank = ( long ) Math.ceil ( count * percent / 100 );
+                long seen = 0;
+
+                for ( int i = 0; i < counts.length; i++ ) {
+                    seen += counts [ i ];
+                    if ( seen >= rank && seen > 0 ) return Math.min ( value ( i ), max );
+                }
+
+                return 0;
+            }
+
+            public double mean ( )
+            {
+                return ( count == 0 ) ? 0 : sum / ( double ) count;
+            }
+        }
+    }
+
+    /**
+     * traffic of one connection, kept by its Transport. also counts towards
+     * the totals above.
+     */
+    public static class Session
+    {
+        private final LongAdder bytesIn = new LongAdder ( );
+        private final LongAdder bytesOut = new LongAdder ( );
+        private final LongAdder framesIn = new LongAdder ( );
+        private final LongAdder framesOut = new LongAdder ( );
+        private final long started = System.nanoTime ( );
+
+        /**
+         * sent ( )
+         * <p>
+         * counts a packet handed to the socket
+         * <p>
+         *
+         * @param bytes length of the packet, header included
+         */
+        public void sent ( int bytes )
+        {
+            if ( !ENABLED ) return;
+            bytesOut.add ( bytes );
+            framesOut.increment ( );
+            BYTES_OUT.add ( bytes );
+            FRAMES_OUT.increment ( );
+        }
+
+        /**
+         * received ( )
+         * <p>
+         * counts a packet read from the socket
+         * <p>
+         *
+         * @param bytes length of the packet, header included
+         */
+        public void received ( int bytes )
+        {
+            if ( !ENABLED ) return;
+            bytesIn.add ( bytes );
+            framesIn.increment ( );
+            BYTES_IN.add ( bytes );
+            FRAMES_IN.increment ( );
+        }
+
+        /**
+         * describe ( )
+         * <p>
+         * totals and average rates since the connection was made
+         * <p>
+         *
+         * @return one line of text, without a newline
+         */
+        public String describe ( )
+        {
+            double seconds = Math.max ( 1e-3, ( System.nanoTime ( ) - started ) / 1e9 );
+
+            return String.format ( "in %s ( %d frames, %s/s ), out %s ( %d frames, %s/s ), %.0f s",
+                                   formatBytes ( bytesIn.sum ( ) ),
+                                   framesIn.sum ( ),
+                                   formatBytes ( bytesIn.sum ( ) / seconds ),
+                                   formatBytes ( bytesOut.sum ( ) ),
+                                   framesOut.sum ( ),
+                                   formatBytes ( bytesOut.sum ( ) / seconds ),
+                                   seconds );
+        }
+    }
+
+    /**
+     * JMX view of the registry: a counter or gauge is one attribute, a histogram is
+     * NAME.count, NAME.mean, NAME.p50, NAME.p99, NAME.p999 and NAME.max,
+     * all in recorded units ( ns for times ).
+     */
+    private static class MBean implements DynamicMBean
+    {
+        private static final String[] STATS = { "count", "mean", "p50", "p99", "p999", "max" };
+
+        public Object getAttribute ( String attribute ) throws AttributeNotFoundException
+        {
+            Object metric = REGISTRY.get ( attribute );
+
+            if ( metric instanceof Counter ) return ( ( Counter ) metric ).get ( );
+            if ( metric instanceof Gauge ) return ( ( Gauge ) metric ).get ( );
+
+            int dot = attribute.lastIndexOf ( '.' );
+            if ( dot > 0 && REGISTRY.get ( attribute.substring ( 0, dot ) ) instanceof Histogram ) {
+                Histogram.Snapshot s = ( ( Histogram ) REGISTRY.get ( attribute.substring ( 0, dot ) ) ).snapshot ( );
+
+                switch ( attribute.substring ( dot + 1 ) ) {
+                    case "count": return s.count;
+                    case "mean":  return s.mean ( );
+                    case "p50":   return s.percentile ( 50 );
+                    case "p99":   return s.percentile ( 99 );
+                    case "p999":  return s.percentile ( 99.9 );
+                    case "max":   return s.max;
+                    default:      break;
+                }
+            }
+            throw new AttributeNotFoundException ( attribute );
+        }
+
+        public AttributeList getAttributes ( String[] attributes )
+        {
+            AttributeList list = new AttributeList ( );
+
+            for ( String name : attributes ) {
+                try {
+                    list.add ( new Attribute ( name, getAttribute ( name ) ) );
+                } catch ( AttributeNotFoundException e ) {
+                    // left out, as the interface asks
+                }
+            }
+
+            return list;
+        }
+
+        public void setAttribute ( Attribute attribute ) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException ( attribute.getName ( ) + " is read only" );
+        }
+
+        public AttributeList setAttributes ( AttributeList attributes )
+        {
+            return new AttributeList ( );
+        }
+
+        public Object invoke ( String action,
+                               Object[] params,
+                               String[] signature ) throws ReflectionException
+        {
+            throw new ReflectionException ( new NoSuchMethodException ( action ) ); // no operations
+        }
+
+        public MBeanInfo getMBeanInfo ( )
+        {
+            List<MBeanAttributeInfo> attributes = new ArrayList<> ( );
+
+            for ( Map.Entry<String, Object> entry : REGISTRY.entrySet ( ) ) {
+                if ( entry.getValue ( ) instanceof Counter || entry.getValue ( ) instanceof Gauge ) {
+                    attributes.add ( new MBeanAttributeInfo ( entry.getKey ( ), "long", entry.getKey ( ),
+                                                              true, false, false ) );
+                    continue;
+                }
+                for ( String stat : STATS ) {
+                    String name = entry.getKey ( ) + "." + stat;
+
+                    attributes.add ( new MBeanAttributeInfo ( name, stat.equals ( "mean" ) ? "double" : "long",
+                                                              name, true, false, false ) );
+                }
+            }
+
+            return new MBeanInfo ( Metrics.class.getName ( ),
+                                   "Lil' Secure Bits metrics",
+                                   attributes.toArray ( new MBeanAttributeInfo [ 0 ] ),
+                                   null, null, null );
+        }
+    }
+}
+
+// Metrics.java END
@@ -11,7 +11,12 @@ import java.lang.Runnable;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousCloseException;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * handles all network traffic.
@@ -20,7 +25,7 @@ import java.util.Arrays;
  * @version
  * @since
  */
-public class Network
+public class Network implements Transport
 {
     // global statics
     public static final boolean NET_DEBUG	= false;
@@ -28,6 +33,34 @@ public class Network
     public static final int DATA_SIZE = 1024;
     public static final int KEYHEADER_SIZE	= 4;
     public static final int DATAHEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE  = 1 << 20; // largest payload accepted in FRAMED mode
+    public static final int MAX_KEY_SIZE    = 8192;    // largest KEY accepted, keys and tickets are far smaller
+
+    /* Outbound queue, drained by the writer thread once listening */
+    public static final int SEND_QUEUE_SIZE = Integer.getInteger ( "lsb.send.queue", 1024 );      // packets waiting to be written
+    public static final int SEND_BATCH_SIZE = Integer.getInteger ( "lsb.send.batch", 64 * 1024 ); // bytes coalesced into one write
+    public static final int SEND_DELAY      = Integer.getInteger ( "lsb.send.delay", 0 );         // ms the writer waits to fill a batch
+    private static final ByteBuffer END_OF_QUEUE = ByteBuffer.allocate ( 0 );  // tells the writer thread to stop
+
+    /* Protocol negotiation, carried in the data portion of HELLO */
+    public static final byte PROTOCOL_VERSION = 2;
+    public static final byte VERSION_FEATURES = 1;    // HELLO carries feature bits, RSA key exchange
+    public static final byte VERSION_X25519   = 2;    // ephemeral X25519 key agreement instead of RSA
+    public static final int HELLO_SIZE        = 5;    // version byte + feature bits
+    public static final int FEATURE_FRAMED    = 0x01; // length-prefixed packets instead of DATA_SIZE padding
+    public static final int FEATURE_GCM       = 0x02; // AES-GCM records with sequence numbers instead of AES/ECB
+    public static final int FEATURE_RESUME    = 0x04; // X25519 handshake may present a resumption ticket
+    public static final int FEATURE_CHUNKED   = 0x08; // long messages are streamed as CHUNK packets
+    public static final int FEATURE_FILES     = 0x10; // file transfers over FILE packets
+    public static final int FEATURE_COMPRESSED = 0x20; // messages carry a codec byte and may be deflated
+    public static final int FEATURE_GROUPS    = 0x40; // group keys and group messages over GROUP packets
+    public static final int SUPPORTED_FEATURES = FEATURE_FRAMED | FEATURE_GCM | FEATURE_RESUME | FEATURE_CHUNKED |
+                                                 FEATURE_FILES | FEATURE_COMPRESSED | FEATURE_GROUPS;
+    private static final byte[] HELLO_DATA = ByteBuffer.allocate ( HELLO_SIZE )
+                                             .put ( PROTOCOL_VERSION )
+                                             .putInt ( SUPPORTED_FEATURES )
+                                             .array ( );
+    static final byte[] NO_DATA = new byte [ 0 ];  // data of a QUIT
 
     /* Header Constants */
     public static final byte NOOP	 = 0;
@@ -36,6 +69,9 @@ public class Network
     public static final byte QUIT	 = 3;
     public static final byte KEYSIZE = 4;
     public static final byte KEY	 = 5;
+    public static final byte CHUNK	 = 6;
+    public static final byte FILE	 = 7;
+    public static final byte GROUP	 = 8;
 
     /* Network information */
     private boolean isServer;     // is the network instance a server?
@@ -45,12 +81,22 @@ public class Network
     /* I/O operators*/
     private DataInputStream READER;  //
     private DataOutputStream WRITER; //
+    private PushbackInputStream PEEKER; // lets the server look at the first header of a client
     private Manager manager;
+    private int id = 0;           // the peer id the manager knows this connection by
+    private BlockingQueue<ByteBuffer> OUTBOX; // complete packets for the writer thread, from BufferPool
+    private MessageWriter writer;         // null until startListening, packets are written directly
+    private final ReentrantLock SEND_LOCK = new ReentrantLock ( ); // not synchronized, a virtual thread waiting here keeps its carrier free
+    private final Metrics.Session STATS = new Metrics.Session ( );
 
     /* */
     private int PORT = -1;
     private int KEY_SIZE = 0;
 
+    /* negotiated protocol, both stay 0 when talking to an old peer */
+    private byte peerVersion = 0;
+    private int features = 0;
+
     /**
      * PUBLIC FUNCTION PROTOTYPES
      * these are provided for a quick glance
@@ -59,13 +105,21 @@ public class Network
     // public Network ( );                      // only creates network interface
     // public boolean connect ( );              // starts the server, returns true on completion
     // public boolean connect ( String );       // connects to a server, returns true on completion
+    // public boolean connect ( Socket, boolean ); // takes over a connected socket, returns true on completion
     // public boolean quit ( );                 // signals a QUIT, returns true on completion
     // public boolean send ( byte [] );         // sends the provided, returns true on completion
+    // public boolean sendChunk ( byte [] );    // sends one piece of a long message
+    // public boolean sendFile ( byte [] );     // sends one record of a file transfer
+    // public int backlog ( );                  // packets queued but not yet written
     // public boolean sendKeySize ( byte [] );  // sends a size of the key, must be sent first
     // public boolean sendKey ( byte [] );      // sends a key
     // public byte [] receiveKeySize ( );       // receives a key sendKeySize
     // public byte [] receiveKey ( );           // receives a key
     // public byte [] listen ( );               // receives a packet and returns it
+    // public boolean hasFeature ( int );       // checks if a feature was negotiated in HELLO
+    // public int getVersion ( );               // the protocol version both sides speak
+    // public InetAddress getRemoteAddress ( );  // the address of the other end
+    // public Metrics.Session getStats ( );     // traffic counted on this connection
 
     /**
      *   Network
@@ -90,6 +144,21 @@ public class Network
         this.manager = m;
     }
 
+    /**
+     *   Network
+     *   Constructor to initialize this object
+     *   @param port - the port to listen on
+     *   @param m - the manager to report to
+     *   @param id - the peer id to report with
+     */
+    public Network ( int	 port,
+                     Manager m,
+                     int     id )
+    {
+        this( port, m );
+        this.id = id;
+    }
+
     /**
      * Network
      * setChannelTimeout
@@ -121,14 +190,14 @@ public class Network
         CHANNEL = DOORMAN.accept ( );
         printf ( "Established CHANNEL." );
 
-        String s = String.format ( "Connected client %s:%d\n",
-                                   CHANNEL.getInetAddress ( ),
-                                   CHANNEL.getPort ( ) );
-
-        printf ( s );
-        READER = new DataInputStream ( CHANNEL.getInputStream ( ) );
+        if ( NET_DEBUG ) printf ( String.format ( "Connected client %s:%d\n",
+                                                  CHANNEL.getInetAddress ( ),
+                                                  CHANNEL.getPort ( ) ) );
+        PEEKER = new PushbackInputStream ( CHANNEL.getInputStream ( ), HEADER_SIZE );
+        READER = new DataInputStream ( PEEKER );
         WRITER = new DataOutputStream ( CHANNEL.getOutputStream ( ) );
         hello ( );
+        awaitHello ( );
 
         return true;
     } /* connect */
@@ -160,20 +229,54 @@ public class Network
         printf ( "Established CHANNEL" );
 
         // handshake
-        String s = String.format ( "Connected client %s:%d\n",
-                                   CHANNEL.getInetAddress ( ),
-                                   CHANNEL.getPort ( ) );
-
-        printf ( s );
+        if ( NET_DEBUG ) printf ( String.format ( "Connected client %s:%d\n",
+                                                  CHANNEL.getInetAddress ( ),
+                                                  CHANNEL.getPort ( ) ) );
         READER = new DataInputStream ( CHANNEL.getInputStream ( ) );
         WRITER = new DataOutputStream ( CHANNEL.getOutputStream ( ) );
         return true;
     } /* connect */
 
+    /**
+     * connect ( )
+     * <p>
+     * takes over a socket someone else connected, like one paired by a
+     * Relay. The server side sends its HELLO and waits for the client's,
+     * same as connect ( ).
+     * <p>
+     *
+     * @param channel the connected socket
+     * @param server true to act as the server
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    public boolean connect ( Socket  channel,
+                             boolean server ) throws IOException
+    {
+        this.isServer = server;
+        CHANNEL = channel;
+        if ( server ) {
+            PEEKER = new PushbackInputStream ( CHANNEL.getInputStream ( ), HEADER_SIZE );
+            READER = new DataInputStream ( PEEKER );
+        } else {
+            READER = new DataInputStream ( CHANNEL.getInputStream ( ) );
+        }
+        WRITER = new DataOutputStream ( CHANNEL.getOutputStream ( ) );
+
+        if ( server ) {
+            hello ( );
+            awaitHello ( );
+        }
+
+        return true;
+    } /* connect */
+
     /**
      * hello ( )
      * <p>
-     * send a HELLO MESSAGE, to establish second socket connection
+     * send a HELLO MESSAGE, to establish second socket connection.
+     * HELLO is always sent as a full DATA_SIZE packet so old peers can read it,
+     * the data portion advertises our PROTOCOL_VERSION and SUPPORTED_FEATURES.
      * <p>
      *
      * @throws IOException on I/O error
@@ -181,8 +284,166 @@ public class Network
     private void hello ( ) throws IOException
     {
         send ( Network.HELLO,
-               new byte [ DATAHEADER_SIZE ],
-               new byte [ DATA_SIZE ] );
+               helloData ( ) );
+    }
+
+    /**
+     * helloData ( )
+     * <p>
+     * the data portion of our HELLO, frame ( ) pads it to DATA_SIZE
+     * <p>
+     *
+     * @return byte array of the HELLO data, shared, not to be changed
+     */
+    static byte[] helloData ( )
+    {
+        return HELLO_DATA;
+    }
+
+    /**
+     * frame ( )
+     * <p>
+     * builds the complete wire form of a HELLO, MSG, CHUNK, FILE, GROUP,
+     * QUIT or NOOP packet in a pooled buffer, for transports that write whole
+     * packets at once. Whoever writes it out gives it back to BufferPool.
+     * <p>
+     *
+     * @param header single byte header information
+     * @param msg byte array of the data
+     * @param framed true if FEATURE_FRAMED was negotiated
+     * @return buffer holding header, size and data
+     * @throws IOException if msg does not fit the packet, callers chunk or
+     *         reject long messages before they get here
+     */
+    static ByteBuffer frame ( byte    header,
+                              byte[]  msg,
+                              boolean framed ) throws IOException
+    {
+        int data_size = ( framed && header != HELLO ) ? msg.length : DATA_SIZE;
+
+        if ( msg.length > data_size || msg.length > MAX_FRAME_SIZE )
+            throw new IOException ( "Packet of " + msg.length + " bytes does not fit in " +
+                                    Math.min ( data_size, MAX_FRAME_SIZE ) );
+        int length = msg.length;
+        ByteBuffer packet = BufferPool.acquire ( HEADER_SIZE + DATAHEADER_SIZE + data_size );
+
+        packet.put ( header )
+              .putInt ( msg.length )
+              .put ( msg, 0, length );
+
+        if ( length < data_size ) { // padding, a pooled buffer still holds its last packet
+            int start = packet.arrayOffset ( ) + packet.position ( );
+
+            Arrays.fill ( packet.array ( ), start, start + data_size - length, ( byte ) 0 );
+        }
+        packet.position ( 0 );
+        return packet;
+    }
+
+    /**
+     * awaitHello ( )
+     * <p>
+     * server side of the negotiation. A new client answers our HELLO with its own,
+     * an old client goes straight to KEYSIZE, in which case the header is pushed back
+     * for receiveKeySize and the connection stays in the old fixed size mode.
+     * <p>
+     *
+     * @throws IOException on I/O error
+     */
+    private void awaitHello ( ) throws IOException
+    {
+        int header = PEEKER.read ( );
+
+        if ( header < 0 ) throw new EOFException ( );
+        PEEKER.unread ( header );
+
+        if ( header != HELLO ) {
+            printf ( "Peer did not answer HELLO, using fixed packets." );
+            return;
+        }
+        processHello ( receive ( ) );
+    }
+
+    /**
+     * processHello ( )
+     * <p>
+     * reads the version and features out of a HELLO packet and settles on the
+     * features both sides support. A client answers with its own HELLO first.
+     * <p>
+     *
+     * @param packet the full HELLO packet, header included
+     * @throws IOException on I/O error
+     */
+    private void processHello ( byte[] packet ) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.wrap ( packet,
+                                            HEADER_SIZE + DATAHEADER_SIZE,
+                                            HELLO_SIZE );
+
+        peerVersion = data.get ( );
+        int peerFeatures = data.getInt ( );
+
+        // an old peer sends nothing but zeros, and never expects an answer
+        if ( peerVersion < 1 ) return;
+        if ( !isServer ) hello ( );
+        features = SUPPORTED_FEATURES & peerFeatures;
+
+        if ( NET_DEBUG ) printf ( String.format ( "NEGOTIATED VERSION = %d FEATURES = %d",
+                                                  peerVersion,
+                                                  features ) );
+    }
+
+    /**
+     * hasFeature ( )
+     * <p>
+     * checks whether a feature was agreed on by both sides during HELLO
+     * <p>
+     *
+     * @param feature one of the FEATURE_ constants
+     * @return true if both peers support the feature
+     */
+    public boolean hasFeature ( int feature )
+    {
+        return ( features & feature ) == feature;
+    }
+
+    /**
+     * getVersion ( )
+     * <p>
+     * the protocol version both sides speak, 0 for an old peer
+     * <p>
+     *
+     * @return the lower of our and the peer's PROTOCOL_VERSION
+     */
+    public int getVersion ( )
+    {
+        return Math.min ( PROTOCOL_VERSION, peerVersion );
+    }
+
+    /**
+     * getRemoteAddress ( )
+     * <p>
+     * the address of the other end of the connection
+     * <p>
+     *
+     * @return the peer's address, null if not connected
+     */
+    public InetAddress getRemoteAddress ( )
+    {
+        return ( CHANNEL == null ) ? null : CHANNEL.getInetAddress ( );
+    }
+
+    /**
+     * getStats ( )
+     * <p>
+     * the traffic counted on this connection
+     * <p>
+     *
+     * @return bytes and packets in and out
+     */
+    public Metrics.Session getStats ( )
+    {
+        return STATS;
     }
 
     /**
@@ -197,10 +458,14 @@ public class Network
     public boolean quit ( ) throws IOException
     {
         printf ( "QUIT CALLED" );
-        send ( Network.QUIT,
-               new byte [ DATAHEADER_SIZE ],
-               new byte [ DATA_SIZE ] );
-        disconnect ( );
+        try {
+            if ( WRITER != null && !CHANNEL.isClosed ( ) ) // still waiting for a client otherwise
+                send ( Network.QUIT,
+                       NO_DATA );
+        } finally {
+            if ( writer != null ) writer.finish ( ); // QUIT goes out behind everything queued
+            disconnect ( );
+        }
         printf ( "TERMINATED" );
 
         return true;
@@ -243,17 +508,83 @@ public class Network
      */
     public boolean send ( byte[] msg ) throws IOException
     {
-        byte[]  packet = Arrays.copyOf ( msg,
-                                         DATA_SIZE );
-        printf ( String.format ( "SEND SIZE = %d\n",
-                                 msg.length ) );
+        if ( NET_DEBUG ) printf ( String.format ( "SEND SIZE = %d\n",
+                                                  msg.length ) );
         send ( Network.MSG,
-               ByteBuffer.allocate ( 4 ).putInt ( msg.length ).array ( ), // the size
-               packet );
+               msg );
 
         return true;
     } /* send */
 
+    /**
+     * sendChunk ( )
+     * <p>
+     * sends a CHUNK message, one encrypted piece of a long message
+     * <p>
+     *
+     * @param chunk byte array of the encrypted chunk
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    public boolean sendChunk ( byte[] chunk ) throws IOException
+    {
+        send ( Network.CHUNK,
+               chunk );
+
+        return true;
+    } /* sendChunk */
+
+    /**
+     * sendFile ( )
+     * <p>
+     * sends a FILE message, one encrypted record of a file transfer
+     * <p>
+     *
+     * @param record byte array of the encrypted record
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    public boolean sendFile ( byte[] record ) throws IOException
+    {
+        send ( Network.FILE,
+               record );
+
+        return true;
+    } /* sendFile */
+
+    /**
+     * sendGroup ( )
+     * <p>
+     * sends a GROUP message, a group key or a group message
+     * <p>
+     *
+     * @param record byte array of the record, may be shared with other connections
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    public boolean sendGroup ( byte[] record ) throws IOException
+    {
+        send ( Network.GROUP,
+               record );
+
+        return true;
+    } /* sendGroup */
+
+    /**
+     * backlog ( )
+     * <p>
+     * the number of packets waiting for the writer thread
+     * <p>
+     *
+     * @return packets queued but not yet written
+     */
+    public int backlog ( )
+    {
+        BlockingQueue<ByteBuffer> outbox = OUTBOX;
+
+        return ( outbox == null ) ? 0 : outbox.size ( );
+    }
+
     /**
      * sendKeySize ( )
      * <p>
@@ -312,6 +643,13 @@ public class Network
         KEY_SIZE = ByteBuffer.wrap ( output ).order (
             ByteOrder.BIG_ENDIAN ).getInt ( );
 
+        if ( KEY_SIZE < 1 || KEY_SIZE > MAX_KEY_SIZE ) {
+            int size = KEY_SIZE;
+
+            KEY_SIZE = 0;
+            throw new IOException ( "Invalid key size " + size );
+        }
+
         if ( NET_DEBUG ) {
             System.out.printf ( "<--- RECEIVED HEADER: %d\n",
                                 input [ 0 ] );
@@ -396,7 +734,7 @@ public class Network
      * THIS IS A BLOCKING FUNCTION. THIS FUNCTION WILL WAIT UNTIL DATA IS AVAILABLE.
      * <p>
      *
-     * @return byte array of data ( if available )
+     * @return byte array of data ( if available ), null if a CHUNK, FILE or GROUP went to the manager
      * @throws IOException on I/O error
      */
     public byte[] listen ( ) throws IOException
@@ -404,7 +742,21 @@ public class Network
         //connecting to an already connection host hangs in this function
         //TODO
         printf ( "RECEIVING..." );
-        byte[]  input = receive ( );
+        return process ( receive ( ) );
+    } /* listen */
+
+    /**
+     * process ( )
+     * <p>
+     * deals with the header information of a packet read by listen ( )
+     * <p>
+     *
+     * @param input the packet
+     * @return byte array of data ( if available ), null if a CHUNK, FILE or GROUP went to the manager
+     * @throws IOException on I/O error
+     */
+    private byte[] process ( byte[] input ) throws IOException
+    {
         byte[]  output;
 
         switch ( input [ 0 ] ) {
@@ -413,25 +765,41 @@ public class Network
                 break;
             case HELLO: // HELLO
                 printf ( "HEADER RECEIVED HELLO." );
+                processHello ( input );
                 break;
+            case GROUP: // GROUP
+            case FILE: // FILE
+            case CHUNK: // CHUNK
             case MSG: // MSG
                 printf ( "HEADER RECEIVED MSG." );
-                byte[]  d_size = Arrays.copyOfRange ( input,
-                                                      HEADER_SIZE,
-                                                      HEADER_SIZE +
-                                                      DATAHEADER_SIZE );
-
                 int data_size =
-                    ByteBuffer.wrap ( d_size ).order (
-                        ByteOrder.BIG_ENDIAN ).getInt ( );
-
-                printf ( String.format ( "PROCESSED SIZE = %d\n",
-                                         data_size ) );
+                    ByteBuffer.wrap ( input ).order (
+                        ByteOrder.BIG_ENDIAN ).getInt ( HEADER_SIZE );
+
+                if ( NET_DEBUG ) printf ( String.format ( "PROCESSED SIZE = %d\n",
+                                                          data_size ) );
+                if ( input [ 0 ] == CHUNK ) {
+                    manager.receiveChunk ( id, BufferPool.copyOf ( input,
+                                                                   HEADER_SIZE + DATAHEADER_SIZE,
+                                                                   data_size ) );
+                    return null;
+                }
+                if ( input [ 0 ] == FILE ) {
+                    manager.receiveFile ( id, BufferPool.copyOf ( input,
+                                                                  HEADER_SIZE + DATAHEADER_SIZE,
+                                                                  data_size ) );
+                    return null;
+                }
+                if ( input [ 0 ] == GROUP ) {
+                    manager.receiveGroup ( id, BufferPool.copyOf ( input,
+                                                                   HEADER_SIZE + DATAHEADER_SIZE,
+                                                                   data_size ) );
+                    return null;
+                }
                 output = Arrays.copyOfRange ( input,
                                               HEADER_SIZE + DATAHEADER_SIZE,
                                               HEADER_SIZE + DATAHEADER_SIZE +
                                               data_size );
-
                 return output;
 
             case QUIT: // QUIT
@@ -439,13 +807,13 @@ public class Network
 
                 if ( NET_DEBUG ) printf ( "QUIT PROCESSED\nTERMINATING..." );
                 disconnect ( );
-                manager.partnerDisconnected ( );
+                manager.partnerDisconnected ( id );
                 break;
             default:
                 printf ( "Invalid HEADER received" );
         } /* switch */
         return input;
-    } /* listen */
+    } /* process */
 
     /**
      *   startListening()
@@ -460,7 +828,7 @@ public class Network
          * @version
          * @since
          */
-        class MessageListener extends Thread implements Runnable
+        class MessageListener implements Runnable
         {
             private Manager manager;
 
@@ -479,11 +847,13 @@ public class Network
             public void run ( )
             {
                 try {
-                    while ( true ) {
-                        this.manager.receiveMessage ( listen ( ) );
+                    while ( !CHANNEL.isClosed ( ) ) { // closed once a QUIT is processed
+                        dispatch ( );
                     }
                 } catch ( SocketException e ) {
                     return;
+                } catch ( AsynchronousCloseException e ) {
+                    return;     // a relayed channel closed by quit ( )
                 } catch ( NullPointerException e ) {
                     return;
                 } catch ( EOFException e ) {
@@ -491,22 +861,84 @@ public class Network
                 } catch ( IOException e ) {
                     e.printStackTrace ( );
                 } finally{
-                    this.manager.disconnect ( );
+                    this.manager.connectionClosed ( id );
                 }
 
             } /* run */
 
         }
 
-        MessageListener listener = new MessageListener ( manager );
-        listener.start ( );
+        Threads.start ( "MessageListener-" + id, false, new MessageListener ( manager ) );
+
+        SEND_LOCK.lock ( );
+        try { // from here on send ( ) only queues
+            OUTBOX = new ArrayBlockingQueue<ByteBuffer> ( SEND_QUEUE_SIZE );
+            writer = new MessageWriter ( );
+            writer.thread = Threads.start ( "MessageWriter-" + id, true, writer );
+        } finally {
+            SEND_LOCK.unlock ( );
+        }
 
         if ( NET_DEBUG ) printf ( "now listening for messages" ); } /* startListening */
 
+    /**
+     * dispatch ( )
+     * <p>
+     * reads one packet on the listener thread. The payload of a MSG, CHUNK,
+     * FILE or GROUP is read straight into a pooled buffer, which the manager
+     * decrypts from and releases. Any other packet goes through process ( ).
+     * <p>
+     *
+     * @throws IOException on I/O error
+     */
+    private void dispatch ( ) throws IOException
+    {
+        byte header = READER.readByte ( );
+
+        if ( header != MSG && header != CHUNK && header != FILE && header != GROUP ) {
+            byte[] input = process ( receive ( header ) );
+
+            // a QUIT is passed on too, the manager then finds the peer gone and says so
+            if ( input != null ) manager.receiveMessage ( id, BufferPool.copyOf ( input, 0, input.length ) );
+            return;
+        }
+
+        ByteBuffer payload;
+        int data_size;
+
+        if ( hasFeature ( FEATURE_FRAMED ) ) {
+            data_size = READER.readInt ( );
+
+            if ( data_size < 0 || data_size > MAX_FRAME_SIZE )
+                throw new IOException ( "Invalid frame size " + data_size );
+            payload = BufferPool.acquire ( data_size );
+            READER.readFully ( payload.array ( ), payload.arrayOffset ( ), data_size );
+        } else {
+            payload = BufferPool.acquire ( DATAHEADER_SIZE + DATA_SIZE );
+            READER.readFully ( payload.array ( ), payload.arrayOffset ( ), DATAHEADER_SIZE + DATA_SIZE );
+            data_size = payload.getInt ( 0 );
+
+            if ( data_size < 0 || data_size > DATA_SIZE )
+                throw new IOException ( "Invalid data size " + data_size );
+            payload.position ( DATAHEADER_SIZE ).limit ( DATAHEADER_SIZE + data_size );
+        }
+        STATS.received ( HEADER_SIZE + DATAHEADER_SIZE +
+                         ( hasFeature ( FEATURE_FRAMED ) ? data_size : DATA_SIZE ) );
+
+        if ( NET_DEBUG ) printf ( String.format ( "<--- RECEIVED HEADER: %d SIZE: %d", header, data_size ) );
+
+        if ( header == CHUNK ) manager.receiveChunk ( id, payload );
+        else if ( header == FILE ) manager.receiveFile ( id, payload );
+        else if ( header == GROUP ) manager.receiveGroup ( id, payload );
+        else manager.receiveMessage ( id, payload );
+    } /* dispatch */
+
     /**
      * receive ( )
      * <p>
      * receives data from the socket output stream.
+     * HELLO and every packet of an old peer are DATA_SIZE long,
+     * in FRAMED mode only the announced size is read.
      * <p>
      *
      * @return received byte array from socket stream.
@@ -514,17 +946,52 @@ public class Network
      */
     private byte[] receive ( ) throws IOException
     {
+        return receive ( READER.readByte ( ) );
+    }
+
+    /**
+     * receive ( )
+     * <p>
+     * receives the rest of a packet whose header was already read
+     * <p>
+     *
+     * @param header the header byte
+     * @return received byte array from socket stream.
+     * @throws IOException on I/O error
+     */
+    private byte[] receive ( byte header ) throws IOException
+    {
+        boolean framed = hasFeature ( FEATURE_FRAMED ) && header != HELLO;
+        int data_size = DATA_SIZE;
+
+        if ( framed ) {
+            data_size = READER.readInt ( );
+
+            if ( data_size < 0 || data_size > MAX_FRAME_SIZE )
+                throw new IOException ( "Invalid frame size " + data_size );
+        }
+
         byte[]  packet = new byte [ HEADER_SIZE + DATAHEADER_SIZE +
-                                    DATA_SIZE ];
-        READER.readFully ( packet,
-                           0,
-                           HEADER_SIZE + DATAHEADER_SIZE + DATA_SIZE );
-        byte[]  data_p = Arrays.copyOfRange ( packet,
-                                              HEADER_SIZE + DATAHEADER_SIZE,
-                                              HEADER_SIZE + DATAHEADER_SIZE +
-                                              DATA_SIZE );
+                                    data_size ];
+        packet [ 0 ] = header;
+
+        if ( framed ) {
+            ByteBuffer.wrap ( packet ).putInt ( HEADER_SIZE, data_size );
+            READER.readFully ( packet,
+                               HEADER_SIZE + DATAHEADER_SIZE,
+                               data_size );
+        } else {
+            READER.readFully ( packet,
+                               HEADER_SIZE,
+                               DATAHEADER_SIZE + DATA_SIZE );
+        }
+        STATS.received ( packet.length );
 
         if ( NET_DEBUG ) {
+            byte[]  data_p = Arrays.copyOfRange ( packet,
+                                                  HEADER_SIZE + DATAHEADER_SIZE,
+                                                  packet.length );
+
             System.out.printf ( "<--- RECEIVED HEADER: %d\n",
                                 packet [ 0 ] );
 
@@ -539,37 +1006,188 @@ public class Network
     /**
      * send ( )
      * <p>
-     * internal functions, unprovided to the others
+     * internal functions, unprovided to the others.
+     * Once listening the packet is handed to the writer thread, blocking
+     * while its queue is full, before that it is written right away.
      * <p>
      *
      * @param header single byte header information
-     * @param size the byte array converted value of the size of the data
      * @param msg  byte array of message to send.
      * @throws IOException on I/O error
      */
     private void send ( byte   header,
-                        byte[] size,
                         byte[] msg ) throws IOException
     {
-        WRITER.write ( header );
-        WRITER.write ( size,
-                       0,
-                       DATAHEADER_SIZE );
-        WRITER.write ( msg,
-                       0,
-                       msg.length );
+        SEND_LOCK.lock ( );
+        try {
+            ByteBuffer packet = frame ( header, msg, hasFeature ( FEATURE_FRAMED ) );
+            int length = packet.remaining ( );
+
+            if ( writer != null ) {
+                enqueue ( packet );
+                STATS.sent ( length );
+                return;
+            }
 
-        if ( NET_DEBUG ) {
-            System.out.printf ( "---> SENT HEADER: %d\n",
-                                header );
+            try {
+                WRITER.write ( packet.array ( ),
+                               packet.arrayOffset ( ),
+                               length );
+            } finally {
+                BufferPool.release ( packet );
+            }
+            STATS.sent ( length );
 
-            for ( byte d : msg ) System.out.printf ( String.format ( "%d ",
-                                                                     d ) );
-            printf ( "\n" );
+            if ( NET_DEBUG ) {
+                System.out.printf ( "---> SENT HEADER: %d\n",
+                                    header );
+
+                for ( byte d : msg ) System.out.printf ( String.format ( "%d ",
+                                                                         d ) );
+                printf ( "\n" );
+            }
+            WRITER.flush ( );
+        } finally {
+            SEND_LOCK.unlock ( );
         }
-        WRITER.flush ( );
     } /* send */
 
+    /**
+     * enqueue ( )
+     * <p>
+     * hands a complete packet to the writer thread. This is the backpressure:
+     * a sender waits here while SEND_QUEUE_SIZE packets are still unwritten.
+     * <p>
+     *
+     * @param packet header, size and data of the packet, from frame ( )
+     * @throws IOException if the connection closed before the packet was queued
+     */
+    private void enqueue ( ByteBuffer packet ) throws IOException
+    {
+        Metrics.SEND_QUEUE.record ( OUTBOX.size ( ) );
+        try {
+            while ( !OUTBOX.offer ( packet, 100, TimeUnit.MILLISECONDS ) ) {
+                if ( CHANNEL.isClosed ( ) ) {
+                    BufferPool.release ( packet );
+                    throw new SocketException ( "Socket is closed" );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            BufferPool.release ( packet );
+            Thread.currentThread ( ).interrupt ( );
+            throw new InterruptedIOException ( "Interrupted while sending" );
+        }
+        if ( CHANNEL.isClosed ( ) ) throw new SocketException ( "Socket is closed" );
+    }
+
+    /**
+     * drains OUTBOX onto the socket. Whatever is queued when the writer wakes up,
+     * up to SEND_BATCH_SIZE bytes, is copied into one buffer and written with a
+     * single write and flush, so a burst of messages costs one syscall instead
+     * of several per message.
+     *
+     * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+     * @version
+     * @since
+     */
+    private class MessageWriter implements Runnable
+    {
+        private final byte[] batch = new byte [ SEND_BATCH_SIZE ];
+        private int length = 0;
+        private Thread thread;
+
+        /**
+         * run ( )
+         * <p>
+         * waits for a packet, collects the ones behind it and writes them out
+         * <p>
+         *
+         */
+        public void run ( )
+        {
+            try {
+                boolean done = false;
+
+                while ( !done ) {
+                    ByteBuffer packet = OUTBOX.take ( );
+                    long deadline = System.currentTimeMillis ( ) + SEND_DELAY;
+
+                    while ( packet != null && packet != END_OF_QUEUE ) {
+                        add ( packet );
+                        if ( length >= batch.length ) break;
+
+                        packet = OUTBOX.poll ( );
+                        long wait = deadline - System.currentTimeMillis ( );
+                        if ( packet == null && wait > 0 )
+                            packet = OUTBOX.poll ( wait, TimeUnit.MILLISECONDS );
+                    }
+                    done = ( packet == END_OF_QUEUE );
+                    flush ( );
+                }
+            } catch ( InterruptedException e ) {
+                return;
+            } catch ( IOException e ) {
+                try {
+                    CHANNEL.close ( ); // the listener notices and reports the disconnect
+                } catch ( IOException ignored ) { }
+            } finally {
+                ByteBuffer packet;
+
+                while ( ( packet = OUTBOX.poll ( ) ) != null ) BufferPool.release ( packet );
+            }
+        } /* run */
+
+        /**
+         * appends a packet to the batch, writing the batch out first if it would overflow,
+         * and gives the packet back to BufferPool
+         */
+        private void add ( ByteBuffer packet ) throws IOException
+        {
+            try {
+                int size = packet.remaining ( );
+
+                if ( length + size > batch.length ) flush ( );
+                if ( size > batch.length ) { // too big to coalesce
+                    WRITER.write ( packet.array ( ), packet.arrayOffset ( ), size );
+                    return;
+                }
+                packet.get ( batch, length, size );
+                length += size;
+            } finally {
+                BufferPool.release ( packet );
+            }
+        }
+
+        /**
+         * writes out the batch
+         */
+        private void flush ( ) throws IOException
+        {
+            if ( length > 0 ) {
+                WRITER.write ( batch, 0, length );
+                length = 0;
+            }
+            WRITER.flush ( );
+        }
+
+        /**
+         * finish ( )
+         * <p>
+         * lets the writer write out everything queued so far, then stops it
+         * <p>
+         *
+         */
+        public void finish ( )
+        {
+            try {
+                if ( OUTBOX.offer ( END_OF_QUEUE, 1, TimeUnit.SECONDS ) )
+                    thread.join ( 1000 );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread ( ).interrupt ( );
+            }
+        }
+    }
+
     /**
      * printf ( )
      * <p>
@@ -0,0 +1,167 @@
+/**
+    Peer.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    One conversation of the Manager. Every peer has its own connection and
+    its own encryption state, so peers never wait on each other.
+*/
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Peer
+{
+    private final int id;
+    private final int port;
+    private volatile Transport network;
+    private volatile Encryption encryption;
+    private volatile boolean connected;
+    private volatile boolean waitingForConnect;
+    private volatile SelectorNetwork.Acceptor acceptor;
+    private volatile SocketChannel relay;  // while a relay finds the partner
+    private final ChunkAssembler assembler;   // long messages coming in
+    private final AtomicInteger messageIds;   // ids of long messages going out
+    private volatile FileTransfer files;
+    private volatile HistoryStore.Conversation history;  // null if not kept
+    private final Compression compression;    // messages both ways, if negotiated
+    private final Object sendLock;            // held from encrypting a record until it is sent
+
+    /**
+        Constructor to initialize fields
+        @param id - the id the user refers to this peer by
+        @param port - the port of the connection
+    */
+    public Peer(int id, int port)
+    {
+        this.id = id;
+        this.port = port;
+        network = null;
+        encryption = null;
+        connected = false;
+        waitingForConnect = false;
+        assembler = new ChunkAssembler();
+        messageIds = new AtomicInteger();
+        compression = new Compression();
+        sendLock = new Object();
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public Transport getNetwork()
+    {
+        return network;
+    }
+
+    public void setNetwork(Transport n)
+    {
+        network = n;
+    }
+
+    public Encryption getEncryption()
+    {
+        return encryption;
+    }
+
+    public void setEncryption(Encryption e)
+    {
+        encryption = e;
+    }
+
+    public boolean isConnected()
+    {
+        return connected;
+    }
+
+    public void setConnected(boolean c)
+    {
+        connected = c;
+    }
+
+    public boolean isWaitingForConnect()
+    {
+        return waitingForConnect;
+    }
+
+    public void setWaitingForConnect(boolean w)
+    {
+        waitingForConnect = w;
+    }
+
+    public SelectorNetwork.Acceptor getAcceptor()
+    {
+        return acceptor;
+    }
+
+    public void setAcceptor(SelectorNetwork.Acceptor a)
+    {
+        acceptor = a;
+    }
+
+    public SocketChannel getRelay()
+    {
+        return relay;
+    }
+
+    public void setRelay(SocketChannel r)
+    {
+        relay = r;
+    }
+
+    public ChunkAssembler getAssembler()
+    {
+        return assembler;
+    }
+
+    /**
+        @return a fresh id for a long message sent to this peer
+    */
+    public int nextMessageId()
+    {
+        return messageIds.getAndIncrement();
+    }
+
+    /**
+        Hold this from encrypting a record until the network has it, so
+        records go out in the order of their sequence numbers and never
+        fall behind the receiver's replay window.
+        @return the lock
+    */
+    public Object getSendLock()
+    {
+        return sendLock;
+    }
+
+    public Compression getCompression()
+    {
+        return compression;
+    }
+
+    public FileTransfer getFiles()
+    {
+        return files;
+    }
+
+    public void setFiles(FileTransfer f)
+    {
+        files = f;
+    }
+
+    public HistoryStore.Conversation getHistory()
+    {
+        return history;
+    }
+
+    public void setHistory(HistoryStore.Conversation h)
+    {
+        history = h;
+    }
+}
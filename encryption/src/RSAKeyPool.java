@@ -0,0 +1,115 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a few RSA key pairs generated ahead of time, so a new session or a reset
+ * does not stall on 2048-bit key generation. Pairs are generated on low priority
+ * background threads and handed out instantly; when the pool is empty the caller
+ * generates one itself (a miss). Hits and misses are counted in Metrics as
+ * rsa.pool.hits and rsa.pool.misses, the shared pool's ready pairs as rsa.pool.ready.
+ * The depth is set with -Dlsb.rsa.poolDepth (0 turns the pool off)
+ * @author Samuel Lewis (srl8336)
+ */
+public class RSAKeyPool {
+    public static final int KEY_SIZE = 2048;
+    public static final int DEPTH = Integer.getInteger("lsb.rsa.poolDepth", 2);
+    public static final int THREADS = Integer.getInteger("lsb.rsa.poolThreads", 1);
+
+    private static RSAKeyPool shared;
+
+    private final int depth;
+    private final BlockingQueue<KeyPair> pool;
+    private final ExecutorService generators;
+    private final AtomicInteger pending = new AtomicInteger(); //refills queued or running
+
+    /**
+     * Constructor, starts filling the pool right away
+     * @param depth number of pairs to keep ready
+     * @param threads number of background generator threads
+     */
+    public RSAKeyPool(int depth, int threads) {
+        this.depth = Math.max(0, depth);
+        pool = new LinkedBlockingQueue<>();
+        generators = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "RSAKeyPool");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY); //only use otherwise idle cores
+            return t;
+        });
+        refill();
+    }
+
+    /**
+     * shared returns the pool used by every Encryption, created on first use
+     * @return the shared pool
+     */
+    public static synchronized RSAKeyPool shared() {
+        if (shared == null) {
+            shared = new RSAKeyPool(DEPTH, THREADS);
+            Metrics.gauge("rsa.pool.ready", shared::available);
+        }
+        return shared;
+    }
+
+    /**
+     * take hands out a pair that has never been handed out before
+     * @return a fresh RSA key pair
+     * @throws Exception When RSA is not available
+     */
+    public KeyPair take() throws Exception {
+        KeyPair keys = pool.poll();
+        if (keys != null) {
+            Metrics.RSA_POOL_HITS.increment();
+        } else {
+            Metrics.RSA_POOL_MISSES.increment();
+            keys = generate();
+        }
+        refill();
+        return keys;
+    }
+
+    /**
+     * Queues background generation until ready and pending pairs reach the depth
+     */
+    private void refill() {
+        while (true) {
+            int inFlight = pending.get();
+            if (pool.size() + inFlight >= depth) {
+                return;
+            }
+            if (pending.compareAndSet(inFlight, inFlight + 1)) {
+                generators.execute(() -> {
+                    try {
+                        pool.offer(generate());
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    private static KeyPair generate() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(KEY_SIZE);
+        return keyGen.generateKeyPair();
+    }
+
+    /**
+     * @return number of pairs ready right now
+     */
+    public int available() {
+        return pool.size();
+    }
+
+    /**
+     * @return the configured depth of the pool
+     */
+    public int getDepth() {
+        return depth;
+    }
+}
@@ -0,0 +1,282 @@
+/**
+    ReceivePipeline.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    Takes received packets off the socket reader threads. The reader only
+    queues the work for a packet; decryption, reassembly and file writes run
+    on a small worker pool, and what is shown to the user goes to the GUI's
+    render queue.
+
+    Every peer has its own strand: a bounded queue whose work runs one item
+    at a time, in the order it was received, so a peer's messages are never
+    reordered while different peers are handled in parallel. When a strand
+    is full the reader waits (POLICY block, which pushes back on the sender
+    through TCP) or, for plain messages only, the newest or oldest waiting
+    message is dropped. Chunks, file records and disconnects are never dropped.
+
+    A reader that must never wait, like an event loop serving many peers,
+    registers a throttle for its peer instead. Its strand then takes every
+    item, pauses the reader once it is full and resumes it when the workers
+    have drained it to half.
+*/
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ReceivePipeline
+{
+    // -Dlsb.recv.queue, packets waiting per peer
+    public static final int QUEUE_SIZE = Integer.getInteger("lsb.recv.queue", 1024);
+    // -Dlsb.recv.workers, threads decrypting received packets
+    public static final int WORKERS = Integer.getInteger("lsb.recv.workers",
+                                                         Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // -Dlsb.recv.policy, what a full queue does to a new message: block, drop-newest or drop-oldest
+    public static final String POLICY = System.getProperty("lsb.recv.policy", "block");
+
+    private static final int STRAND_BATCH = 64;  // items a strand runs before letting other peers in
+
+    private final Map<Integer, Strand> strands;
+    private final ExecutorService workers;
+    private final LongAdder dropped;
+
+    /**
+        One unit of work for a peer
+    */
+    private static class Item
+    {
+        private final Runnable task;
+        private final boolean droppable;
+        private final Runnable onDrop;   // cleanup if the drop policy discards it, may be null
+
+        public Item(Runnable task, boolean droppable, Runnable onDrop)
+        {
+            this.task = task;
+            this.droppable = droppable;
+            this.onDrop = onDrop;
+        }
+    }
+
+    /**
+        Constructor to initialize fields
+    */
+    public ReceivePipeline()
+    {
+        strands = new ConcurrentHashMap<>();
+        AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, WORKERS), r ->
+        {
+            Thread t = new Thread(r, "Receiver-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        dropped = new LongAdder();
+    }
+
+    /**
+        submit()
+        Queue work for a peer, called by the reader of the peer's connection.
+        @param id - the peer the work belongs to
+        @param task - the work
+        @param droppable - true if the drop policy may discard it
+    */
+    public void submit(int id, Runnable task, boolean droppable)
+    {
+        strands.computeIfAbsent(id, key -> new Strand()).offer(new Item(task, droppable, null));
+    }
+
+    /**
+        submit()
+        Queue work the drop policy may discard, with what to do if it does.
+        @param id - the peer the work belongs to
+        @param task - the work
+        @param onDrop - runs instead of task if the work is discarded
+    */
+    public void submit(int id, Runnable task, Runnable onDrop)
+    {
+        strands.computeIfAbsent(id, key -> new Strand()).offer(new Item(task, true, onDrop));
+    }
+
+    /**
+        throttle()
+        Never make the reader of a peer wait, pause and resume it instead.
+        @param id - the peer
+        @param pause - stops reading from the peer, runs on the reader's thread
+        @param resume - starts reading again, runs on a worker
+    */
+    public void throttle(int id, Runnable pause, Runnable resume)
+    {
+        Strand strand = strands.computeIfAbsent(id, key -> new Strand());
+        strand.lock.lock();
+        try
+        {
+            strand.pause = pause;
+            strand.resume = resume;
+        }
+        finally
+        {
+            strand.lock.unlock();
+        }
+    }
+
+    /**
+        forget()
+        Drop the strand of a peer that is gone, work already queued still runs.
+        @param id - the peer
+    */
+    public void forget(int id)
+    {
+        strands.remove(id);
+    }
+
+    /**
+        @return number of messages discarded by the drop policy
+    */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+        The queue of one peer, run by at most one worker at a time.
+        Guarded by a lock rather than synchronized, so a reader on a virtual
+        thread that waits for room does not pin its carrier thread.
+    */
+    private class Strand implements Runnable
+    {
+        private final ArrayDeque<Item> queue = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private boolean scheduled = false;
+        private Runnable pause;          // set by throttle(), the reader never waits
+        private Runnable resume;
+        private boolean paused = false;
+
+        /**
+            Add an item, applying the drop policy while the queue is full.
+        */
+        public void offer(Item item)
+        {
+            lock.lock();
+            try
+            {
+                while (queue.size() >= QUEUE_SIZE)
+                {
+                    if (item.droppable && "drop-newest".equals(POLICY))
+                    {
+                        drop(item);
+                        return;
+                    }
+                    if (item.droppable && "drop-oldest".equals(POLICY) && dropOldest())
+                    {
+                        break;
+                    }
+                    if (pause != null)
+                    {
+                        break;
+                    }
+                    notFull.await();
+                }
+                Metrics.RECEIVE_QUEUE.record(queue.size());
+                queue.add(item);
+                if (pause != null && !paused && queue.size() >= QUEUE_SIZE)
+                {
+                    paused = true;
+                    pause.run();
+                }
+                if (!scheduled)
+                {
+                    scheduled = true;
+                    workers.execute(this);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private boolean dropOldest()
+        {
+            Iterator<Item> it = queue.iterator();
+            while (it.hasNext())
+            {
+                Item item = it.next();
+                if (item.droppable)
+                {
+                    it.remove();
+                    drop(item);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void drop(Item item)
+        {
+            dropped.increment();
+            if (item.onDrop != null)
+            {
+                item.onDrop.run();
+            }
+        }
+
+        public void run()
+        {
+            for (int i = 0; i < STRAND_BATCH; i++)
+            {
+                Item item;
+                Runnable resumed = null;
+                lock.lock();
+                try
+                {
+                    item = queue.poll();
+                    if (item == null)
+                    {
+                        scheduled = false;
+                    }
+                    if (paused && queue.size() <= QUEUE_SIZE / 2)
+                    {
+                        paused = false;
+                        resumed = resume;
+                    }
+                    notFull.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                if (resumed != null)
+                {
+                    resumed.run();
+                }
+                if (item == null)
+                {
+                    return;
+                }
+                try
+                {
+                    item.task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            // more to do, queue up behind the other peers
+            workers.execute(this);
+        }
+    }
+}
@@ -0,0 +1,697 @@
+/**
+ * Relay.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a hub for peers that can not reach each other directly. Both peers
+ * connect to the relay and name themselves and the peer they want, the
+ * relay pairs the two connections naming each other and tells one to
+ * run the listening side of the handshake and the other the connecting
+ * side. From then on it copies bytes between them without looking at
+ * them, so it never sees a key or a plaintext, only the same ciphertext
+ * an eavesdropper would.
+ * <p>
+ * Connections are spread over LOOPS event loops and both ends of a route
+ * are moved to the same loop when they are paired, so a route is only
+ * ever touched by one thread. Every turn of a loop reads at most
+ * BUFFER_SIZE bytes from each ready connection, so a busy route can not
+ * starve the quiet ones, and a route holds at most ROUTE_QUEUE bytes of
+ * read buffers for a slow reader before the relay stops reading from the
+ * writer.
+ * <p>
+ * A connection has REGISTER_SECONDS to send its registration and then
+ * WAIT_SECONDS for its partner to show up, otherwise it is closed. Idle or
+ * half registered connections can not hold a descriptor for good, and a
+ * name pair taken by someone who never gets paired is freed again.
+ * <p>
+ * Run with "java -cp bin Relay &lt;port&gt;".
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class Relay
+{
+    // global statics
+    public static final int LOOPS       = Integer.getInteger ( "lsb.relay.loops",
+                                                               Runtime.getRuntime ( ).availableProcessors ( ) );
+    public static final int ROUTE_QUEUE = Integer.getInteger ( "lsb.relay.queue", 256 * 1024 ); // buffer bytes held per direction of a route
+    public static final int REGISTER_SECONDS = Integer.getInteger ( "lsb.relay.registerSeconds", 10 );  // to send the registration
+    public static final int WAIT_SECONDS = Integer.getInteger ( "lsb.relay.waitSeconds", 300 );         // to wait for the partner
+    public static final int BUFFER_SIZE = 16 * 1024;  // most bytes read from one connection per turn
+    private static final long TICK = 1000;            // ms between checks for expired connections
+    private static final int FREE_BUFFERS = 1024;     // read buffers kept per loop
+
+    /* registration, sent by a peer right after connecting */
+    static final byte[] MAGIC = { 'L', 'S', 'B', 'R' };
+    static final int MAX_NAME = 255;                  // bytes of a peer name
+    private static final int REGISTRATION_SIZE = MAGIC.length + 2 + 2 * MAX_NAME;
+
+    /* the relay's single byte answer, once the partner is there */
+    public static final byte REFUSED = 0;             // someone already waits under these names
+    public static final byte LISTEN  = 1;             // run the listening side of the handshake
+    public static final byte CONNECT = 2;             // run the connecting side of the handshake
+
+    private static final Metrics.Counter CONNECTIONS = Metrics.counter ( "relay.connections" );
+    private static final Metrics.Counter ROUTES      = Metrics.counter ( "relay.routes" );
+    private static final Metrics.Counter FORWARDED   = Metrics.counter ( "relay.forwarded" );
+    private static final Metrics.Counter EXPIRED     = Metrics.counter ( "relay.expired" );
+
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger ( );
+    private final ConcurrentHashMap<String, Endpoint> waiting = new ConcurrentHashMap<> ( ); // by "me\0peer"
+    private final AtomicInteger open = new AtomicInteger ( );
+
+    /**
+     * PUBLIC FUNCTION PROTOTYPES
+     * these are provided for a quick glance
+     */
+
+    // public Relay ( int );                                     // starts the event loops
+    // public void bind ( int );                                 // accepts peers on a port
+    // public int connections ( );                               // connections open right now
+    // public static SocketChannel join ( String, int, String, String ); // registers with a relay
+    // public static byte awaitPartner ( SocketChannel );        // waits for the relay to pair us
+
+    /**
+     *   Relay
+     *   Constructor to start the event loops
+     *   @param loopCount - number of event loop threads
+     */
+    public Relay ( int loopCount ) throws IOException
+    {
+        loops = new Loop [ loopCount ];
+
+        for ( int i = 0; i < loopCount; i++ ) {
+            loops [ i ] = new Loop ( i );
+            loops [ i ].start ( );
+        }
+    }
+
+    /**
+     * bind ( )
+     * <p>
+     * starts accepting peers on the given port
+     * <p>
+     *
+     * @param port the port to listen on
+     * @throws IOException on I/O error
+     */
+    public void bind ( int port ) throws IOException
+    {
+        ServerSocketChannel server = ServerSocketChannel.open ( );
+
+        server.bind ( new InetSocketAddress ( port ), 1024 );
+        server.configureBlocking ( false );
+        loops [ 0 ].execute ( ( ) -> {
+            try {
+                server.register ( loops [ 0 ].selector, SelectionKey.OP_ACCEPT, server );
+            } catch ( ClosedChannelException e ) {
+                printf ( "Server closed before registration" );
+            }
+        } );
+    } /* bind */
+
+    /**
+     * connections ( )
+     * <p>
+     * @return connections open right now, paired or not
+     */
+    public int connections ( )
+    {
+        return open.get ( );
+    }
+
+    /**
+     * join ( )
+     * <p>
+     * client side, connects to a relay and registers under our name and
+     * the name of the peer we want. The channel is left in blocking mode.
+     * <p>
+     *
+     * @param address the address of the relay
+     * @param port the port of the relay
+     * @param me the name we go by
+     * @param peer the name of the peer we want
+     * @return the connection to the relay
+     * @throws IOException on I/O error, or if a name is empty or too long
+     */
+    public static SocketChannel join ( String address,
+                                       int    port,
+                                       String me,
+                                       String peer ) throws IOException
+    {
+        byte[] mine = me.getBytes ( StandardCharsets.UTF_8 );
+        byte[] theirs = peer.getBytes ( StandardCharsets.UTF_8 );
+
+        if ( mine.length == 0 || mine.length > MAX_NAME || theirs.length == 0 || theirs.length > MAX_NAME )
+            throw new IOException ( "Relay names are 1 to " + MAX_NAME + " bytes" );
+        ByteBuffer registration = ByteBuffer.allocate ( MAGIC.length + 2 + mine.length + theirs.length )
+            .put ( MAGIC )
+            .put ( ( byte ) mine.length ).put ( mine )
+            .put ( ( byte ) theirs.length ).put ( theirs )
+            .flip ( );
+        SocketChannel channel = SocketChannel.open ( new InetSocketAddress ( address, port ) );
+
+        channel.setOption ( StandardSocketOptions.TCP_NODELAY, true );
+        while ( registration.hasRemaining ( ) ) channel.write ( registration );
+
+        return channel;
+    } /* join */
+
+    /**
+     * awaitPartner ( )
+     * <p>
+     * client side, waits until the relay paired us.
+     * THIS IS A BLOCKING FUNCTION.
+     * <p>
+     *
+     * @param channel the connection from join ( )
+     * @return LISTEN, CONNECT or REFUSED
+     * @throws IOException on I/O error, or if the relay hung up
+     */
+    public static byte awaitPartner ( SocketChannel channel ) throws IOException
+    {
+        ByteBuffer role = ByteBuffer.allocate ( 1 );
+
+        while ( role.hasRemaining ( ) )
+            if ( channel.read ( role ) < 0 ) throw new EOFException ( "Relay closed the connection" );
+
+        return role.get ( 0 );
+    } /* awaitPartner */
+
+    /**
+     * nextLoop ( )
+     *
+     * @return the event loop for the next connection
+     */
+    private Loop nextLoop ( )
+    {
+        return loops [ Math.floorMod ( next.getAndIncrement ( ), loops.length ) ];
+    }
+
+    /**
+     * printf ( )
+     * <p>
+     * performs a System.out.printf with a newline
+     * <p>
+     *
+     * @param msg string to print out
+     */
+    private static void printf ( String msg )
+    {
+        if ( Network.NET_DEBUG ) System.out.printf ( "%s\n",
+                                                     msg );
+    }
+
+    /**
+     * one selector and the thread that runs it, with the read buffers of
+     * its routes. Everything about a connection happens on its loop, other
+     * threads hand work over with execute ( ).
+     *
+     * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+     * @version
+     * @since
+     */
+    private class Loop extends Thread
+    {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<> ( );
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<> ( ); // read buffers, direct so reads and writes skip a copy
+        private final ArrayDeque<Endpoint> registering = new ArrayDeque<> ( ); // accepted here, by registerBy
+        private final ArrayDeque<Endpoint> unpaired = new ArrayDeque<> ( );    // waiting here, by pairBy
+
+        Loop ( int i ) throws IOException
+        {
+            super ( "Relay-" + i );
+            selector = Selector.open ( );
+        }
+
+        void execute ( Runnable task )
+        {
+            tasks.add ( task );
+            selector.wakeup ( );
+        }
+
+        ByteBuffer take ( )
+        {
+            ByteBuffer buffer = free.poll ( );
+
+            return ( buffer != null ) ? buffer : ByteBuffer.allocateDirect ( BUFFER_SIZE );
+        }
+
+        void give ( ByteBuffer buffer )
+        {
+            if ( free.size ( ) < FREE_BUFFERS ) free.push ( buffer.clear ( ) );
+        }
+
+        /**
+         * add ( )
+         * <p>
+         * registers a connection with this loop, on this loop
+         * <p>
+         *
+         * @param endpoint the connection
+         * @throws ClosedChannelException if it was closed meanwhile
+         */
+        void add ( Endpoint endpoint ) throws ClosedChannelException
+        {
+            endpoint.loop = this;
+            endpoint.key = endpoint.channel.register ( selector, SelectionKey.OP_READ, endpoint );
+        }
+
+        /**
+         * expire ( )
+         * <p>
+         * closes connections that did not register or were not paired in
+         * time. Both queues are in deadline order, as the timeouts are fixed;
+         * connections that moved on are dropped from them when they reach
+         * the head.
+         * <p>
+         */
+        private void expire ( )
+        {
+            long now = System.nanoTime ( );
+            Endpoint endpoint;
+
+            while ( ( endpoint = registering.peek ( ) ) != null && now - endpoint.registerBy >= 0 ) {
+                registering.poll ( );
+                // once registered it may live on another loop, only registration is ours to read
+                if ( endpoint.registration != null && !endpoint.closed ) {
+                    EXPIRED.increment ( );
+                    endpoint.close ( );
+                }
+            }
+            while ( ( endpoint = unpaired.peek ( ) ) != null && now - endpoint.pairBy >= 0 ) {
+                unpaired.poll ( );
+                if ( endpoint.route != null && !endpoint.closed ) {
+                    EXPIRED.increment ( );
+                    endpoint.close ( );
+                }
+            }
+        } /* expire */
+
+        /**
+         * run ( )
+         * <p>
+         * selects, runs handed over tasks and serves every ready connection
+         * once, and at least every TICK closes expired connections
+         * <p>
+         *
+         */
+        public void run ( )
+        {
+            while ( true ) {
+                try {
+                    if ( registering.isEmpty ( ) && unpaired.isEmpty ( ) ) selector.select ( );
+                    else selector.select ( TICK );
+                } catch ( IOException e ) {
+                    e.printStackTrace ( );
+                    return;
+                }
+                Runnable task;
+
+                while ( ( task = tasks.poll ( ) ) != null ) task.run ( );
+
+                Iterator<SelectionKey> keys = selector.selectedKeys ( ).iterator ( );
+
+                while ( keys.hasNext ( ) ) {
+                    SelectionKey key = keys.next ( );
+                    keys.remove ( );
+                    dispatch ( key );
+                }
+                expire ( );
+            }
+        } /* run */
+
+        /**
+         * dispatch ( )
+         * <p>
+         * handles one ready key, an error only closes that key's connection
+         * <p>
+         *
+         * @param key the ready key
+         */
+        private void dispatch ( SelectionKey key )
+        {
+            Object attachment = key.attachment ( );
+
+            try {
+                if ( !key.isValid ( ) ) return;
+
+                if ( key.isAcceptable ( ) ) {
+                    onAccept ( ( ServerSocketChannel ) attachment );
+                    return;
+                }
+                Endpoint endpoint = ( Endpoint ) attachment;
+
+                if ( key.isReadable ( ) ) endpoint.onRead ( );
+
+                if ( key.isValid ( ) && key.isWritable ( ) ) endpoint.onWrite ( );
+            } catch ( IOException | CancelledKeyException e ) {
+                if ( attachment instanceof Endpoint ) ( ( Endpoint ) attachment ).close ( );
+                else key.cancel ( );
+            }
+        } /* dispatch */
+
+        private void onAccept ( ServerSocketChannel server ) throws IOException
+        {
+            SocketChannel channel;
+
+            while ( ( channel = server.accept ( ) ) != null ) {
+                channel.configureBlocking ( false );
+                channel.setOption ( StandardSocketOptions.TCP_NODELAY, true );
+                Endpoint endpoint = new Endpoint ( channel );
+                Loop loop = nextLoop ( );
+
+                open.incrementAndGet ( );
+                CONNECTIONS.increment ( );
+                loop.execute ( ( ) -> {
+                    try {
+                        loop.add ( endpoint );
+                        endpoint.registerBy = System.nanoTime ( ) + TimeUnit.SECONDS.toNanos ( REGISTER_SECONDS );
+                        loop.registering.add ( endpoint );
+                    } catch ( ClosedChannelException e ) {
+                        endpoint.close ( );
+                    }
+                } );
+            }
+        }
+    }
+
+    /**
+     * one peer's connection to the relay. Until it is paired it is read for
+     * its registration, afterwards whatever it sends is queued for its partner.
+     *
+     * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+     * @version
+     * @since
+     */
+    private class Endpoint
+    {
+        private final SocketChannel channel;
+        private Loop loop;
+        private SelectionKey key;
+        private ByteBuffer registration = ByteBuffer.allocate ( REGISTRATION_SIZE ); // null once registered
+        private String route;                // our key in waiting, null unless waiting
+        private Endpoint partner;            // null until paired
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<> ( ); // from the partner, not yet written
+        private int queued = 0;              // bytes of the buffers in queue, counted whole
+        private boolean paused = false;      // not read while the partner's queue is full
+        private boolean closing = false;     // closed once queue is written
+        private boolean closed = false;
+        private long registerBy;             // System.nanoTime ( ) deadlines
+        private long pairBy;
+
+        Endpoint ( SocketChannel channel )
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * onRead ( )
+         * <p>
+         * reads once: the registration, or up to BUFFER_SIZE bytes for the partner
+         * <p>
+         *
+         * @throws IOException on I/O error or an invalid registration
+         */
+        void onRead ( ) throws IOException
+        {
+            if ( partner == null ) {
+                if ( registration == null ) throw new IOException ( "Data before pairing" );
+
+                if ( channel.read ( registration ) < 0 ) throw new EOFException ( );
+                register ( );
+                return;
+            }
+            ByteBuffer buffer = loop.take ( );
+            int n;
+
+            try {
+                n = channel.read ( buffer );
+            } catch ( IOException e ) {
+                loop.give ( buffer );
+                throw e;
+            }
+            if ( n <= 0 ) {
+                loop.give ( buffer );
+                if ( n < 0 ) throw new EOFException ( );
+                return;
+            }
+            FORWARDED.add ( n );
+            partner.enqueue ( buffer.flip ( ) );
+
+            if ( partner.queued >= ROUTE_QUEUE ) {
+                paused = true;
+                key.interestOps ( key.interestOps ( ) & ~SelectionKey.OP_READ );
+            }
+        } /* onRead */
+
+        /**
+         * register ( )
+         * <p>
+         * parses the registration once it is complete, then waits for the
+         * partner or pairs with it
+         * <p>
+         *
+         * @throws IOException on an invalid registration
+         */
+        private void register ( ) throws IOException
+        {
+            ByteBuffer in = registration.duplicate ( ).flip ( );
+
+            if ( in.remaining ( ) < MAGIC.length ) return;
+            for ( byte b : MAGIC )
+                if ( in.get ( ) != b ) throw new IOException ( "Not a relay registration" );
+            String me = name ( in );
+            String peer = ( me == null ) ? null : name ( in );
+
+            if ( peer == null ) return;
+            if ( in.hasRemaining ( ) ) throw new IOException ( "Data before pairing" );
+            registration = null;
+
+            String mine = me + '\0' + peer;
+            String theirs = peer + '\0' + me;
+
+            while ( true ) {
+                Endpoint other = waiting.get ( theirs );
+
+                if ( other != null ) {
+                    if ( waiting.remove ( theirs, other ) ) {
+                        join ( other );
+                        return;
+                    }
+                    continue;
+                }
+                if ( waiting.putIfAbsent ( mine, this ) != null ) {
+                    refuse ( );
+                    return;
+                }
+                route = mine;
+                // the partner may have registered in between
+                if ( waiting.get ( theirs ) == null || !waiting.remove ( mine, this ) ) {
+                    pairBy = System.nanoTime ( ) + TimeUnit.SECONDS.toNanos ( WAIT_SECONDS );
+                    loop.unpaired.add ( this );
+                    return;
+                }
+                route = null;
+            }
+        } /* register */
+
+        /**
+         * name ( )
+         * <p>
+         * @param in the registration read so far, at a name length
+         * @return the name, null if it has not been read completely yet
+         * @throws IOException if the name is empty
+         */
+        private String name ( ByteBuffer in ) throws IOException
+        {
+            if ( !in.hasRemaining ( ) ) return null;
+            int length = in.get ( ) & 0xff;
+
+            if ( length == 0 ) throw new IOException ( "Empty relay name" );
+            if ( in.remaining ( ) < length ) return null;
+            String name = new String ( in.array ( ), in.position ( ), length, StandardCharsets.UTF_8 );
+
+            in.position ( in.position ( ) + length );
+            return name;
+        }
+
+        /**
+         * join ( )
+         * <p>
+         * moves this connection to the loop of the waiting partner and pairs
+         * them there, the one who waited listens
+         * <p>
+         *
+         * @param other the waiting partner, no longer in waiting
+         */
+        private void join ( Endpoint other )
+        {
+            key.cancel ( );
+            other.loop.execute ( ( ) -> {
+                try {
+                    if ( other.closed ) throw new ClosedChannelException ( );
+                    other.loop.add ( this );
+                } catch ( IOException e ) {
+                    close ( );
+                    return;
+                }
+                other.route = null;
+                other.partner = this;
+                partner = other;
+                ROUTES.increment ( );
+                other.reply ( LISTEN );
+                reply ( CONNECT );
+            } );
+        }
+
+        /**
+         * refuse ( )
+         * <p>
+         * someone already waits under the same names, tell the peer and hang up
+         * <p>
+         */
+        private void refuse ( )
+        {
+            closing = true;
+            reply ( REFUSED );
+        }
+
+        private void reply ( byte role )
+        {
+            ByteBuffer buffer = loop.take ( );
+
+            enqueue ( buffer.put ( role ).flip ( ) );
+        }
+
+        /**
+         * enqueue ( )
+         * <p>
+         * queues bytes for this connection and writes as much as the socket takes
+         * <p>
+         *
+         * @param buffer the bytes, one of the loop's read buffers
+         */
+        void enqueue ( ByteBuffer buffer )
+        {
+            if ( closed ) {
+                loop.give ( buffer );
+                return;
+            }
+            queue.add ( buffer );
+            queued += buffer.capacity ( );
+            if ( ( key.interestOps ( ) & SelectionKey.OP_WRITE ) != 0 ) return; // waiting for the socket anyway
+
+            try {
+                onWrite ( );
+            } catch ( IOException e ) {
+                close ( );
+            }
+        }
+
+        /**
+         * onWrite ( )
+         * <p>
+         * writes the queue until the socket is full, resumes reading the
+         * partner once the queue is down to half
+         * <p>
+         *
+         * @throws IOException on I/O error
+         */
+        void onWrite ( ) throws IOException
+        {
+            while ( !queue.isEmpty ( ) ) {
+                ByteBuffer head = queue.peek ( );
+                channel.write ( head );
+                if ( head.hasRemaining ( ) ) break;
+                queued -= head.capacity ( );
+                loop.give ( queue.poll ( ) );
+            }
+            if ( queue.isEmpty ( ) ) {
+                if ( closing ) {
+                    close ( );
+                    return;
+                }
+                key.interestOps ( key.interestOps ( ) & ~SelectionKey.OP_WRITE );
+            } else {
+                key.interestOps ( key.interestOps ( ) | SelectionKey.OP_WRITE );
+            }
+
+            if ( partner != null && partner.paused && queued < ROUTE_QUEUE / 2 && !partner.closed ) {
+                partner.paused = false;
+                partner.key.interestOps ( partner.key.interestOps ( ) | SelectionKey.OP_READ );
+            }
+        } /* onWrite */
+
+        /**
+         * close ( )
+         * <p>
+         * closes this connection, the partner is closed once it has been sent
+         * what is queued for it
+         * <p>
+         */
+        void close ( )
+        {
+            if ( closed ) return;
+            closed = true;
+            open.decrementAndGet ( );
+            if ( route != null ) waiting.remove ( route, this );
+            if ( key != null ) key.cancel ( );
+            try {
+                channel.close ( );
+            } catch ( IOException e ) {
+                // closing anyway
+            }
+            ByteBuffer buffer;
+
+            while ( ( buffer = queue.poll ( ) ) != null ) loop.give ( buffer );
+            if ( partner != null && !partner.closed ) {
+                partner.closing = true;
+                if ( partner.queue.isEmpty ( ) ) partner.close ( );
+            }
+        } /* close */
+    }
+
+    /**
+     * main ( )
+     * <p>
+     * runs a relay until the process is killed
+     * <p>
+     *
+     * @param args the port to listen on
+     */
+    public static void main ( String[] args ) throws IOException
+    {
+        if ( args.length < 1 ) {
+            System.err.println ( "usage: java -cp bin Relay <port>" );
+            System.exit ( 1 );
+        }
+        int port = Integer.parseInt ( args [ 0 ] );
+        Relay relay = new Relay ( Math.max ( 1, LOOPS ) );
+
+        relay.bind ( port );
+        System.out.printf ( "Relay listening on port %d with %d loops\n", port, Math.max ( 1, LOOPS ) );
+    } /* main */
+}
+
+// Relay.java END
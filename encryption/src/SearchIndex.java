@@ -0,0 +1,593 @@
+/**
+    SearchIndex.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    Inverted index over the stored messages of one conversation, used by
+    /search. For every word it keeps the sequence numbers of the messages
+    holding it, so a search reads a few short lists instead of decrypting
+    the whole history.
+
+    Words are never written down: a word is stored as a keyed hash of it
+    (HMAC-SHA256 under the history key, cut to 8 bytes), so the index on
+    disk says no more about what was said than the encrypted records do.
+
+    New postings collect in memory and are written out as an immutable
+    file once there are FLUSH_POSTINGS of them, or when the history is
+    closed. A file is
+
+        long    sequence number of the first message it covers
+        long    sequence number of the last message it covers
+        int     number of words
+        words   sorted by hash: long hash, int messages, int offset, int length
+        ...     postings, per word the sequence numbers as varints, each
+                one the difference to the one before
+
+    Files cover the messages in order without overlapping. While there are
+    more than MAX_FILES of them the two neighbours that are smallest
+    together are merged, so old postings are not rewritten over and over.
+    A search looks at the newest postings first and stops once it has
+    enough results, so common words cost no more than rare ones.
+    Everything runs on the history writer thread, except search().
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SearchIndex
+{
+    // -Dlsb.search.flush, postings kept in memory before they are written out
+    public static final int FLUSH_POSTINGS = Integer.getInteger("lsb.search.flush", 65536);
+
+    private static final int MAX_FILES = 8;
+    private static final int MAX_WORD = 64;
+    private static final int HEADER_SIZE = 8 + 8 + 4;
+    private static final int WORD_SIZE = 8 + 4 + 4 + 4;
+    private static final int CACHED_WORDS = 8192;
+
+    private final Path directory;
+    private final Mac mac;
+    private final List<IndexFile> files;
+    private final Map<Long, Postings> memory;
+    private final Map<String, Long> cache;   // hashes of recent words
+    private int memoryPostings;
+    private long memoryFirst;  // first message with postings in memory
+    private long indexed;   // every message before this one is indexed
+    private int nextFile;
+
+    /**
+        Postings of one word, delta and varint encoded
+    */
+    private static class Postings
+    {
+        private byte[] bytes = new byte[8];
+        private int length;
+        private int count;
+        private long last = -1;
+
+        public void add(long seq)
+        {
+            if (length + 10 > bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            length = putVarint(bytes, length, seq - last);
+            last = seq;
+            count++;
+        }
+    }
+
+    /**
+        One written index file, its word table is kept in memory
+    */
+    private static class IndexFile
+    {
+        private final Path path;
+        private final FileChannel channel;
+        private final long firstSeq;
+        private final long lastSeq;
+        private final long[] hashes;
+        private final int[] counts;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final long base;   // where the postings start
+
+        public IndexFile(Path path) throws IOException
+        {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            ByteBuffer head = read(0, HEADER_SIZE);
+            firstSeq = head.getLong();
+            lastSeq = head.getLong();
+            int words = head.getInt();
+            ByteBuffer table = read(HEADER_SIZE, words * WORD_SIZE);
+            hashes = new long[words];
+            counts = new int[words];
+            offsets = new int[words];
+            lengths = new int[words];
+            for (int i = 0; i < words; i++)
+            {
+                hashes[i] = table.getLong();
+                counts[i] = table.getInt();
+                offsets[i] = table.getInt();
+                lengths[i] = table.getInt();
+            }
+            base = HEADER_SIZE + (long) words * WORD_SIZE;
+        }
+
+        public ByteBuffer read(long position, int n) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(n);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                {
+                    throw new IOException(path + " is cut short");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+            @return the sequence numbers of the messages holding a word
+        */
+        public long[] postings(long hash) throws IOException
+        {
+            int i = Arrays.binarySearch(hashes, hash);
+            if (i < 0)
+            {
+                return new long[0];
+            }
+            return decode(read(base + offsets[i], lengths[i]).array(), 0, lengths[i]);
+        }
+
+        public long size() throws IOException
+        {
+            return channel.size();
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /**
+        Constructor to initialize fields, loads the index files there are
+        @param directory - the directory of the conversation
+        @param key - the history key, words are hashed under it
+    */
+    public SearchIndex(Path directory, byte[] key) throws IOException
+    {
+        this.directory = directory;
+        try
+        {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException(e);
+        }
+        files = new ArrayList<>();
+        memory = new HashMap<>();
+        cache = new HashMap<>();
+
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "search-*.idx"))
+        {
+            stream.forEach(found::add);
+        }
+        for (Path path : found)
+        {
+            files.add(new IndexFile(path));
+            String name = path.getFileName().toString();
+            nextFile = Math.max(nextFile, Integer.parseInt(name.substring(7, name.length() - 4)) + 1);
+        }
+        // in order; a merge cut short by a crash leaves files the merged one covers
+        files.sort((a, b) -> a.firstSeq != b.firstSeq ? Long.compare(a.firstSeq, b.firstSeq)
+                                                      : Long.compare(b.lastSeq, a.lastSeq));
+        for (int i = 1; i < files.size(); i++)
+        {
+            if (files.get(i).lastSeq <= files.get(i - 1).lastSeq)
+            {
+                IndexFile covered = files.remove(i--);
+                covered.close();
+                Files.delete(covered.path);
+            }
+        }
+        if (!files.isEmpty())
+        {
+            indexed = files.get(files.size() - 1).lastSeq + 1;
+        }
+    }
+
+    /**
+        @return the sequence number of the first message not indexed yet
+    */
+    public synchronized long getIndexed()
+    {
+        return indexed;
+    }
+
+    /**
+        add()
+        Index a message, messages must be added in order.
+        @param seq - its sequence number
+        @param text - the message
+    */
+    public synchronized void add(long seq, String text) throws IOException
+    {
+        if (seq < indexed)
+        {
+            return;
+        }
+        if (memory.isEmpty())
+        {
+            memoryFirst = seq;
+        }
+        for (long hash : hashes(text))
+        {
+            memory.computeIfAbsent(hash, h -> new Postings()).add(seq);
+            memoryPostings++;
+        }
+        indexed = seq + 1;
+        if (memoryPostings >= FLUSH_POSTINGS)
+        {
+            flush();
+        }
+    }
+
+    /**
+        flush()
+        Write the postings held in memory to a new file.
+    */
+    public synchronized void flush() throws IOException
+    {
+        if (memory.isEmpty())
+        {
+            return;
+        }
+        long[] hashes = new long[memory.size()];
+        int i = 0;
+        for (long hash : memory.keySet())
+        {
+            hashes[i++] = hash;
+        }
+        Arrays.sort(hashes);
+        List<byte[]> postings = new ArrayList<>();
+        int[] counts = new int[hashes.length];
+        for (i = 0; i < hashes.length; i++)
+        {
+            Postings p = memory.get(hashes[i]);
+            postings.add(Arrays.copyOf(p.bytes, p.length));
+            counts[i] = p.count;
+        }
+        files.add(write(memoryFirst, indexed - 1, hashes, counts, postings));
+        memory.clear();
+        memoryPostings = 0;
+
+        while (files.size() > MAX_FILES)
+        {
+            int smallest = 0;
+            long smallestSize = Long.MAX_VALUE;
+            for (int j = 0; j + 1 < files.size(); j++)
+            {
+                long size = files.get(j).size() + files.get(j + 1).size();
+                if (size < smallestSize)
+                {
+                    smallest = j;
+                    smallestSize = size;
+                }
+            }
+            merge(smallest);
+        }
+    }
+
+    /**
+        search()
+        Find the messages holding all words of a query.
+        @param query - the words to look for
+        @param limit - most results
+        @return sequence numbers of the matching messages, newest first
+    */
+    public synchronized long[] search(String query, int limit) throws IOException
+    {
+        Set<Long> words = hashes(query);
+        long[] found = new long[Math.max(0, limit)];
+        int n = 0;
+        if (words.isEmpty())
+        {
+            return found;
+        }
+        // memory, then the files from the newest back
+        for (int slice = files.size(); slice >= 0 && n < limit; slice--)
+        {
+            long[] result = null;
+            for (long hash : words)
+            {
+                long[] seqs;
+                if (slice == files.size())
+                {
+                    Postings p = memory.get(hash);
+                    seqs = (p == null) ? new long[0] : decode(p.bytes, 0, p.length);
+                }
+                else
+                {
+                    seqs = files.get(slice).postings(hash);
+                }
+                result = (result == null) ? seqs : intersect(result, seqs);
+                if (result.length == 0)
+                {
+                    break;
+                }
+            }
+            for (int i = result.length - 1; i >= 0 && n < limit; i--)
+            {
+                found[n++] = result[i];
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+        close()
+        Write what is in memory and close the files.
+    */
+    public synchronized void close() throws IOException
+    {
+        flush();
+        for (IndexFile file : files)
+        {
+            file.close();
+        }
+        files.clear();
+    }
+
+    /**
+        Append encoded postings that start over at -1 to postings ending at
+        last, rewriting the first delta.
+        @return the last sequence number now in out
+    */
+    private static long append(ByteArrayOutputStream out, byte[] bytes, int offset, int length, long last)
+    {
+        long[] position = { offset };
+        long seq = -1 + getVarint(bytes, position);
+        byte[] first = new byte[10];
+        out.write(first, 0, putVarint(first, 0, seq - last));
+        out.write(bytes, (int) position[0], offset + length - (int) position[0]);
+        // find the last one
+        while (position[0] < offset + length)
+        {
+            seq += getVarint(bytes, position);
+        }
+        return seq;
+    }
+
+    private static long[] decode(byte[] bytes, int offset, int length)
+    {
+        long[] seqs = new long[16];
+        int n = 0;
+        long[] position = { offset };
+        long seq = -1;
+        while (position[0] < offset + length)
+        {
+            seq += getVarint(bytes, position);
+            if (n == seqs.length)
+            {
+                seqs = Arrays.copyOf(seqs, n * 2);
+            }
+            seqs[n++] = seq;
+        }
+        return Arrays.copyOf(seqs, n);
+    }
+
+    private static long[] intersect(long[] a, long[] b)
+    {
+        long[] both = new long[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length)
+        {
+            if (a[i] < b[j])
+            {
+                i++;
+            }
+            else if (a[i] > b[j])
+            {
+                j++;
+            }
+            else
+            {
+                both[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, n);
+    }
+
+    /**
+        Merge a file with the one after it. The older one covers the earlier
+        messages, so the postings of a word shared by both are joined one
+        after the other.
+        @param i - the older of the two files
+    */
+    private void merge(int i) throws IOException
+    {
+        IndexFile older = files.get(i);
+        IndexFile newer = files.get(i + 1);
+        byte[] a = older.read(older.base, (int) (older.size() - older.base)).array();
+        byte[] b = newer.read(newer.base, (int) (newer.size() - newer.base)).array();
+
+        int words = older.hashes.length + newer.hashes.length;
+        long[] hashes = new long[words];
+        int[] counts = new int[words];
+        List<byte[]> postings = new ArrayList<>();
+        int n = 0;
+        int x = 0;
+        int y = 0;
+        while (x < older.hashes.length || y < newer.hashes.length)
+        {
+            long hashA = x < older.hashes.length ? older.hashes[x] : Long.MAX_VALUE;
+            long hashB = y < newer.hashes.length ? newer.hashes[y] : Long.MAX_VALUE;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long last = -1;
+            int count = 0;
+            boolean takeA = x < older.hashes.length && (y >= newer.hashes.length || hashA <= hashB);
+            boolean takeB = y < newer.hashes.length && (x >= older.hashes.length || hashB <= hashA);
+            if (takeA)
+            {
+                hashes[n] = hashA;
+                last = append(out, a, older.offsets[x], older.lengths[x], last);
+                count += older.counts[x++];
+            }
+            if (takeB)
+            {
+                hashes[n] = hashB;
+                append(out, b, newer.offsets[y], newer.lengths[y], last);
+                count += newer.counts[y++];
+            }
+            counts[n++] = count;
+            postings.add(out.toByteArray());
+        }
+        IndexFile merged = write(older.firstSeq, newer.lastSeq, Arrays.copyOf(hashes, n),
+                                 Arrays.copyOf(counts, n), postings);
+
+        // the merged file is complete on disk, the old ones can go
+        for (IndexFile file : new IndexFile[] { older, newer })
+        {
+            file.close();
+            Files.delete(file.path);
+        }
+        files.set(i, merged);
+        files.remove(i + 1);
+    }
+
+    private IndexFile write(long firstSeq, long lastSeq, long[] hashes, int[] counts, List<byte[]> postings)
+        throws IOException
+    {
+        int total = 0;
+        for (byte[] p : postings)
+        {
+            total += p.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + hashes.length * WORD_SIZE + total);
+        out.putLong(firstSeq).putLong(lastSeq).putInt(hashes.length);
+        int offset = 0;
+        for (int i = 0; i < hashes.length; i++)
+        {
+            out.putLong(hashes[i]).putInt(counts[i]).putInt(offset).putInt(postings.get(i).length);
+            offset += postings.get(i).length;
+        }
+        for (byte[] p : postings)
+        {
+            out.put(p);
+        }
+        out.flip();
+
+        Path path = directory.resolve(String.format("search-%08d.idx", nextFile++));
+        Path temporary = directory.resolve(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE))
+        {
+            while (out.hasRemaining())
+            {
+                channel.write(out);
+            }
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        return new IndexFile(path);
+    }
+
+    /**
+        The keyed hashes of the distinct words of a text
+    */
+    private Set<Long> hashes(String text)
+    {
+        Set<Long> hashes = new LinkedHashSet<>();
+        String lower = text.toLowerCase();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++)
+        {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (word && start < 0)
+            {
+                start = i;
+            }
+            else if (!word && start >= 0)
+            {
+                if (i - start <= MAX_WORD)
+                {
+                    hashes.add(hash(lower.substring(start, i)));
+                }
+                start = -1;
+            }
+        }
+        return hashes;
+    }
+
+    private long hash(String word)
+    {
+        Long hash = cache.get(word);
+        if (hash == null)
+        {
+            if (cache.size() >= CACHED_WORDS)
+            {
+                cache.clear();
+            }
+            hash = ByteBuffer.wrap(mac.doFinal(word.getBytes(StandardCharsets.UTF_8))).getLong();
+            cache.put(word, hash);
+        }
+        return hash;
+    }
+
+    private static int putVarint(byte[] bytes, int at, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            bytes[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[at++] = (byte) value;
+        return at;
+    }
+
+    private static long getVarint(byte[] bytes, long[] position)
+    {
+        long value = 0;
+        int shift = 0;
+        while (true)
+        {
+            byte b = bytes[(int) position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,1174 @@
+/**
+ * SelectorNetwork.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * non-blocking network engine. Multiplexes many SocketChannels over a small,
+ * fixed set of event loop threads instead of one blocking Socket and one
+ * listener thread per connection. Every connection is a Session that speaks
+ * the same protocol as Network and offers the same Transport contract.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public class SelectorNetwork
+{
+    // global statics
+    public static final int LOOPS = Integer.getInteger ( "lsb.nio.loops",
+                                                         Math.min ( 4,
+                                                                    Runtime.getRuntime ( ).availableProcessors ( ) ) );
+    public static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static SelectorNetwork shared; // engine used by the Manager
+
+    /* event loops, sessions are spread over them round robin */
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger ( );
+
+    /**
+     * PUBLIC FUNCTION PROTOTYPES
+     * these are provided for a quick glance
+     */
+
+    // public SelectorNetwork ( int );                        // starts the event loops
+    // public static SelectorNetwork shared ( );              // the engine shared by the whole process
+    // public Acceptor bind ( int );                          // listens on a port
+    // public Session connect ( String, int, Manager, int );  // connects to a server
+    // public Session adopt ( SocketChannel, Manager, int, boolean ); // takes over a connected channel
+    // public void shutdown ( );                              // stops all event loops
+
+    /**
+     *   SelectorNetwork
+     *   Constructor to start the event loops
+     *   @param loopCount - number of event loop threads
+     */
+    public SelectorNetwork ( int loopCount ) throws IOException
+    {
+        loops = new EventLoop [ loopCount ];
+
+        for ( int i = 0; i < loopCount; i++ ) {
+            loops [ i ] = new EventLoop ( i );
+            loops [ i ].start ( );
+        }
+    }
+
+    /**
+     * shared ( )
+     * <p>
+     * lazily starts the engine used by the Manager, LOOPS threads for every session.
+     * <p>
+     *
+     * @return the shared engine
+     * @throws IOException on I/O error
+     */
+    public static synchronized SelectorNetwork shared ( ) throws IOException
+    {
+        if ( shared == null ) shared = new SelectorNetwork ( Math.max ( 1, LOOPS ) );
+
+        return shared;
+    }
+
+    /**
+     * bind ( )
+     * <p>
+     * starts accepting connections on the given port
+     * <p>
+     *
+     * @param port the port to listen on
+     * @return the Acceptor handing out connected sessions
+     * @throws IOException on I/O error
+     */
+    public Acceptor bind ( int port ) throws IOException
+    {
+        ServerSocketChannel server = ServerSocketChannel.open ( );
+
+        server.bind ( new InetSocketAddress ( port ) );
+        server.configureBlocking ( false );
+        Acceptor acceptor = new Acceptor ( server );
+        nextLoop ( ).register ( server, SelectionKey.OP_ACCEPT, acceptor );
+
+        return acceptor;
+    } /* bind */
+
+    /**
+     * connect ( )
+     * <p>
+     * connects to a server, the connect itself blocks, everything after is
+     * handled by an event loop.
+     * <p>
+     *
+     * @param address the string address to connect to
+     * @param port the port to connect to
+     * @param m the manager to report to
+     * @param id the peer id to report with
+     * @return the connected session
+     * @throws IOException on I/O error
+     */
+    public Session connect ( String  address,
+                             int     port,
+                             Manager m,
+                             int     id ) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open ( new InetSocketAddress ( address,
+                                                                             port ) );
+
+        if ( Network.NET_DEBUG ) printf ( String.format ( "Connected client %s\n",
+                                                          channel.getRemoteAddress ( ) ) );
+
+        return open ( channel, m, id, false );
+    } /* connect */
+
+    /**
+     * adopt ( )
+     * <p>
+     * takes over a channel someone else connected, like one paired by a
+     * Relay. As the server it sends our HELLO and waits for the client's.
+     * THIS IS A BLOCKING FUNCTION for the server.
+     * <p>
+     *
+     * @param channel the connected channel
+     * @param m the manager to report to
+     * @param id the peer id to report with
+     * @param isServer true to act as the server
+     * @return the connected session
+     * @throws IOException on I/O error
+     */
+    public Session adopt ( SocketChannel channel,
+                           Manager       m,
+                           int           id,
+                           boolean       isServer ) throws IOException
+    {
+        Session session = open ( channel, m, id, isServer );
+
+        if ( isServer ) session.awaitHello ( );
+
+        return session;
+    } /* adopt */
+
+    /**
+     * shutdown ( )
+     * <p>
+     * stops all event loops, open channels are closed with their selectors
+     * <p>
+     */
+    public void shutdown ( )
+    {
+        for ( EventLoop loop : loops ) loop.shutdown ( );
+    }
+
+    /**
+     * open ( )
+     * <p>
+     * wraps a connected channel in a Session and hands it to an event loop
+     * <p>
+     *
+     * @param channel the connected channel
+     * @param m the manager to report to
+     * @param id the peer id to report with
+     * @param isServer true if we accepted the channel
+     * @return the new session
+     * @throws IOException on I/O error
+     */
+    private Session open ( SocketChannel channel,
+                           Manager       m,
+                           int           id,
+                           boolean       isServer ) throws IOException
+    {
+        channel.configureBlocking ( false );
+        channel.setOption ( StandardSocketOptions.TCP_NODELAY, true );
+        Session session = new Session ( channel, nextLoop ( ), m, id, isServer );
+        session.loop.register ( channel, SelectionKey.OP_READ, session );
+
+        if ( isServer ) session.write ( Network.frame ( Network.HELLO,
+                                                        Network.helloData ( ),
+                                                        false ) );
+
+        return session;
+    } /* open */
+
+    /**
+     * nextLoop ( )
+     *
+     * @return the event loop for the next channel
+     */
+    private EventLoop nextLoop ( )
+    {
+        return loops [ Math.floorMod ( next.getAndIncrement ( ), loops.length ) ];
+    }
+
+    /**
+     * printf ( )
+     * <p>
+     * performs a System.out.printf with a newline
+     * <p>
+     *
+     * @param msg string to print out
+     */
+    private static void printf ( String msg )
+    {
+        if ( Network.NET_DEBUG ) System.out.printf ( "%s\n",
+                                                     msg );
+    }
+
+    /**
+     * one selector and the thread that runs it. All channel operations of a
+     * session happen on its loop, other threads hand work over with execute ( ).
+     *
+     * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+     * @version
+     * @since
+     */
+    private static class EventLoop extends Thread
+    {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<> ( );
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect ( READ_BUFFER_SIZE ); // shared by all sessions of the loop
+        private volatile boolean running = true;
+
+        EventLoop ( int i ) throws IOException
+        {
+            super ( "SelectorNetwork-" + i );
+            setDaemon ( true );
+            selector = Selector.open ( );
+        }
+
+        /**
+         * execute ( )
+         * <p>
+         * runs the task on this loop
+         * <p>
+         *
+         * @param task the task to run
+         */
+        void execute ( Runnable task )
+        {
+            tasks.add ( task );
+            selector.wakeup ( );
+        }
+
+        /**
+         * register ( )
+         * <p>
+         * registers a channel with this loop's selector
+         * <p>
+         *
+         * @param channel the channel
+         * @param ops the interest set
+         * @param attachment the Acceptor or Session of the channel
+         */
+        void register ( SelectableChannel channel,
+                        int               ops,
+                        Object            attachment )
+        {
+            execute ( ( ) -> {
+                try {
+                    SelectionKey key = channel.register ( selector, ops, attachment );
+
+                    if ( attachment instanceof Session ) ( ( Session ) attachment ).key = key;
+                } catch ( ClosedChannelException e ) {
+                    printf ( "Channel closed before registration" );
+                }
+            } );
+        }
+
+        void shutdown ( )
+        {
+            running = false;
+            selector.wakeup ( );
+        }
+
+        /**
+         * run ( )
+         * <p>
+         * selects, runs handed over tasks and dispatches ready channels
+         * <p>
+         *
+         */
+        public void run ( )
+        {
+            try {
+                while ( running ) {
+                    selector.select ( );
+
+                    Runnable task;
+
+                    while ( ( task = tasks.poll ( ) ) != null ) {
+                        try {
+                            task.run ( );
+                        } catch ( RuntimeException e ) {
+                            e.printStackTrace ( ); // keep serving the other sessions
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys ( ).iterator ( );
+
+                    while ( keys.hasNext ( ) ) {
+                        SelectionKey key = keys.next ( );
+                        keys.remove ( );
+                        dispatch ( key );
+                    }
+                }
+            } catch ( IOException e ) {
+                e.printStackTrace ( );
+            } finally{
+                for ( SelectionKey key : selector.keys ( ) ) {
+                    try {
+                        key.channel ( ).close ( );
+                    } catch ( IOException e ) {
+                        // closing anyway
+                    }
+                }
+                try {
+                    selector.close ( );
+                } catch ( IOException e ) {
+                    // closing anyway
+                }
+            }
+        } /* run */
+
+        /**
+         * dispatch ( )
+         * <p>
+         * handles one ready key, an error only closes that key's session
+         * <p>
+         *
+         * @param key the ready key
+         */
+        private void dispatch ( SelectionKey key )
+        {
+            Object attachment = key.attachment ( );
+
+            try {
+                if ( !key.isValid ( ) ) return;
+
+                if ( key.isAcceptable ( ) ) {
+                    ( ( Acceptor ) attachment ).onAccept ( );
+                    return;
+                }
+                Session session = ( Session ) attachment;
+
+                if ( key.isReadable ( ) ) session.onRead ( readBuffer );
+
+                if ( key.isValid ( ) && key.isWritable ( ) ) session.onWrite ( );
+            } catch ( IOException | RuntimeException e ) {
+                // a bad session only closes itself, never the loop and its other sessions
+                if ( !( e instanceof IOException || e instanceof CancelledKeyException ) ) e.printStackTrace ( );
+                if ( attachment instanceof Session ) ( ( Session ) attachment ).onClose ( );
+                else key.cancel ( );
+            }
+        } /* dispatch */
+    }
+
+    /**
+     * accepts connections on a port and hands them out one at a time
+     *
+     * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+     * @version
+     * @since
+     */
+    public class Acceptor
+    {
+        private final Object CLOSED = new Object ( );
+        private final ServerSocketChannel server;
+        private final BlockingQueue<Object> pending = new LinkedBlockingQueue<> ( );
+
+        Acceptor ( ServerSocketChannel server )
+        {
+            this.server = server;
+        }
+
+        /**
+         * accept ( )
+         * <p>
+         * waits for the next client and sends it our HELLO.
+         * THIS IS A BLOCKING FUNCTION.
+         * <p>
+         *
+         * @param m the manager to report to
+         * @param id the peer id to report with
+         * @return the connected session
+         * @throws IOException on I/O error, or if the acceptor was closed
+         */
+        public Session accept ( Manager m,
+                                int     id ) throws IOException
+        {
+            Object next;
+
+            try {
+                next = pending.take ( );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread ( ).interrupt ( );
+                throw new InterruptedIOException ( );
+            }
+
+            if ( next == CLOSED ) {
+                pending.add ( CLOSED );
+                throw new SocketException ( "Acceptor closed" );
+            }
+            SocketChannel channel = ( SocketChannel ) next;
+            if ( Network.NET_DEBUG ) printf ( String.format ( "Connected client %s\n",
+                                                              channel.getRemoteAddress ( ) ) );
+
+            Session session = open ( channel, m, id, true );
+            session.awaitHello ( );
+
+            return session;
+        } /* accept */
+
+        /**
+         * close ( )
+         * <p>
+         * stops accepting, wakes up anyone waiting in accept ( )
+         * <p>
+         *
+         * @throws IOException on I/O error
+         */
+        public void close ( ) throws IOException
+        {
+            server.close ( );
+            pending.add ( CLOSED );
+        }
+
+        void onAccept ( ) throws IOException
+        {
+            SocketChannel channel;
+
+            while ( ( channel = server.accept ( ) ) != null ) pending.add ( channel );
+        }
+    }
+
+    /**
+     * one connection of the engine. Packets are decoded on the event loop;
+     * before startListening ( ) they queue up for the blocking handshake calls,
+     * afterwards they go straight to the manager.
+     *
+     * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+     * @version
+     * @since
+     */
+    public static class Session implements Transport
+    {
+        private static final byte[] EOF = new byte [ 0 ];
+
+        /* Network information */
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final Manager manager;
+        private final int id;
+        private final boolean isServer;
+        private volatile SelectionKey key;
+
+        /* negotiated protocol */
+        private volatile byte peerVersion = 0;
+        private volatile int features = 0;
+        private volatile int KEY_SIZE = 0;
+        private final CountDownLatch negotiated = new CountDownLatch ( 1 ); // first packet of the peer arrived
+
+        /* incoming side, decoder state is confined to the loop */
+        private final BlockingQueue<byte[]> inbox = new LinkedBlockingQueue<> ( );
+        private final ByteBuffer prefix = ByteBuffer.allocate ( Network.DATAHEADER_SIZE );
+        private boolean inPacket = false;
+        private byte header;
+        private byte[] packet;
+        private ByteBuffer payload;      // pooled, instead of packet for MSG, CHUNK, FILE and GROUP once listening
+        private int position;
+        private boolean listening = false;
+        private boolean readPaused = false;  // the manager's receive queue of this peer is full
+        private boolean reported = false;    // connectionClosed ( ) was called
+        private int timeout = 0;
+
+        /* outgoing side */
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<> ( );
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<> ( );
+        private ByteBuffer[] gather = new ByteBuffer [ 16 ];     // reused for the gathering write
+        private final AtomicBoolean flushScheduled = new AtomicBoolean ( );
+        private final AtomicInteger unwritten = new AtomicInteger ( ); // packets queued or partly written
+        private final Object space = new Object ( );                  // senders wait here while unwritten is full
+        private final Metrics.Session stats = new Metrics.Session ( );
+        private volatile boolean closeAfterFlush = false;
+        private volatile boolean closed = false;
+
+        Session ( SocketChannel channel,
+                  EventLoop     loop,
+                  Manager       m,
+                  int           id,
+                  boolean       isServer )
+        {
+            this.channel = channel;
+            this.loop = loop;
+            this.manager = m;
+            this.id = id;
+            this.isServer = isServer;
+        }
+
+        public void setChannelTimeout ( int t )
+        {
+            timeout = t;
+        }
+
+        public boolean hasFeature ( int feature )
+        {
+            return ( features & feature ) == feature;
+        }
+
+        public int getVersion ( )
+        {
+            return Math.min ( Network.PROTOCOL_VERSION, peerVersion );
+        }
+
+        public InetAddress getRemoteAddress ( )
+        {
+            return channel.socket ( ).getInetAddress ( );
+        }
+
+        public Metrics.Session getStats ( )
+        {
+            return stats;
+        }
+
+        public boolean quit ( ) throws IOException
+        {
+            printf ( "QUIT CALLED" );
+
+            if ( closed ) return true;
+            closeAfterFlush = true;
+            write ( Network.frame ( Network.QUIT,
+                                    Network.NO_DATA,
+                                    hasFeature ( Network.FEATURE_FRAMED ) ) );
+            printf ( "TERMINATED" );
+
+            return true;
+        }
+
+        public boolean send ( byte[] msg ) throws IOException
+        {
+            write ( Network.frame ( Network.MSG,
+                                    msg,
+                                    hasFeature ( Network.FEATURE_FRAMED ) ) );
+
+            return true;
+        }
+
+        public boolean sendChunk ( byte[] chunk ) throws IOException
+        {
+            write ( Network.frame ( Network.CHUNK,
+                                    chunk,
+                                    hasFeature ( Network.FEATURE_FRAMED ) ) );
+
+            return true;
+        }
+
+        public boolean sendFile ( byte[] record ) throws IOException
+        {
+            write ( Network.frame ( Network.FILE,
+                                    record,
+                                    hasFeature ( Network.FEATURE_FRAMED ) ) );
+
+            return true;
+        }
+
+        public boolean sendGroup ( byte[] record ) throws IOException
+        {
+            write ( Network.frame ( Network.GROUP,
+                                    record,
+                                    hasFeature ( Network.FEATURE_FRAMED ) ) );
+
+            return true;
+        }
+
+        public int backlog ( )
+        {
+            return unwritten.get ( );
+        }
+
+        public boolean sendKeySize ( byte[] key ) throws IOException
+        {
+            write ( BufferPool.acquire ( Network.HEADER_SIZE + Network.KEYHEADER_SIZE )
+                    .put ( Network.KEYSIZE )
+                    .putInt ( key.length )
+                    .flip ( ) );
+
+            return true;
+        }
+
+        public boolean receiveKeySize ( ) throws IOException
+        {
+            if ( take ( ) [ 0 ] == Network.KEYSIZE ) printf ( "HEADER RECEIVED KEYSIZE." );
+
+            return true;
+        }
+
+        public boolean sendKey ( byte[] key ) throws IOException
+        {
+            write ( BufferPool.acquire ( Network.HEADER_SIZE + key.length )
+                    .put ( Network.KEY )
+                    .put ( key )
+                    .flip ( ) );
+
+            return true;
+        }
+
+        public byte[] receiveKey ( ) throws IOException
+        {
+            byte[]  input = take ( );
+
+            printf ( "HEADER RECEIVED KEY." );
+
+            return Arrays.copyOfRange ( input,
+                                        Network.HEADER_SIZE,
+                                        input.length );
+        }
+
+        public byte[] listen ( ) throws IOException
+        {
+            return process ( take ( ) );
+        }
+
+        /**
+         * startListening()
+         * pipe queued and future packets to the manager, on the event loop
+         */
+        public void startListening ( )
+        {
+            // the loop must never wait for the manager, pause reading instead
+            manager.throttle ( id, this::pauseReading, this::resumeReading );
+            loop.execute ( ( ) -> {
+                byte[] input;
+
+                listening = true;
+
+                while ( ( input = inbox.poll ( ) ) != null ) dispatch ( input );
+                if ( closed ) reportClosed ( ); // closed before anyone listened
+            } );
+        }
+
+        /**
+         * pauseReading ( )
+         * <p>
+         * stops reading until resumeReading ( ), called while the event loop
+         * hands a packet to the manager
+         * <p>
+         */
+        private void pauseReading ( )
+        {
+            if ( Thread.currentThread ( ) != loop ) {
+                loop.execute ( this::pauseReading );
+                return;
+            }
+            readPaused = true;
+            interest ( !writing.isEmpty ( ) );
+        }
+
+        /**
+         * resumeReading ( )
+         * <p>
+         * reads again once the manager caught up, from any thread
+         * <p>
+         */
+        private void resumeReading ( )
+        {
+            loop.execute ( ( ) -> {
+                readPaused = false;
+                interest ( !writing.isEmpty ( ) );
+            } );
+        }
+
+        /**
+         * interest ( )
+         * <p>
+         * sets the interest set of the key, reading unless paused
+         * <p>
+         *
+         * @param write true to wait for OP_WRITE too
+         */
+        private void interest ( boolean write )
+        {
+            if ( closed || key == null || !key.isValid ( ) ) return;
+
+            key.interestOps ( ( readPaused ? 0 : SelectionKey.OP_READ ) |
+                              ( write ? SelectionKey.OP_WRITE : 0 ) );
+        }
+
+        /**
+         * awaitHello ( )
+         * <p>
+         * server side of the negotiation, like Network.connect ( ) waits until the
+         * client either answered HELLO or started the key exchange.
+         * <p>
+         *
+         * @throws IOException if interrupted
+         */
+        void awaitHello ( ) throws IOException
+        {
+            try {
+                negotiated.await ( );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread ( ).interrupt ( );
+                throw new InterruptedIOException ( );
+            }
+        }
+
+        /**
+         * take ( )
+         * <p>
+         * waits for the next packet, honoring the channel timeout
+         * <p>
+         *
+         * @return the packet, header included
+         * @throws IOException on timeout or if the channel closed
+         */
+        private byte[] take ( ) throws IOException
+        {
+            byte[]  input;
+
+            try {
+                input = ( timeout > 0 ) ? inbox.poll ( timeout, TimeUnit.MILLISECONDS ) : inbox.take ( );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread ( ).interrupt ( );
+                throw new InterruptedIOException ( );
+            }
+
+            if ( input == null ) throw new SocketTimeoutException ( );
+
+            if ( input == EOF ) {
+                inbox.add ( EOF );
+                throw new EOFException ( );
+            }
+
+            return input;
+        } /* take */
+
+        /**
+         * process ( )
+         * <p>
+         * deals with the header of a packet, same as Network.listen ( )
+         * <p>
+         *
+         * @param input the packet
+         * @return byte array of data ( if available ), null if a CHUNK, FILE or GROUP went to the manager
+         */
+        private byte[] process ( byte[] input )
+        {
+            switch ( input [ 0 ] ) {
+                case Network.GROUP:
+                case Network.FILE:
+                case Network.CHUNK:
+                case Network.MSG:
+                    int data_size = ByteBuffer.wrap ( input ).getInt ( Network.HEADER_SIZE );
+
+                    if ( input [ 0 ] != Network.MSG ) {
+                        deliver ( input [ 0 ], BufferPool.copyOf ( input,
+                                                                   Network.HEADER_SIZE + Network.DATAHEADER_SIZE,
+                                                                   data_size ) );
+                        return null;
+                    }
+                    return Arrays.copyOfRange ( input,
+                                                Network.HEADER_SIZE + Network.DATAHEADER_SIZE,
+                                                Network.HEADER_SIZE + Network.DATAHEADER_SIZE + data_size );
+                case Network.QUIT:
+                    printf ( "HEADER RECEIVED QUIT." );
+                    close ( );
+                    manager.partnerDisconnected ( id );
+                    break;
+                default:
+                    break;
+            }
+
+            return input;
+        } /* process */
+
+        /**
+         * dispatch ( )
+         * <p>
+         * hands a packet to the manager, like Network's MessageListener
+         * <p>
+         *
+         * @param input the packet
+         */
+        private void dispatch ( byte[] input )
+        {
+            if ( input == EOF ) {
+                reportClosed ( );
+                return;
+            }
+            byte[] data = process ( input );
+
+            if ( data != null ) manager.receiveMessage ( id, BufferPool.copyOf ( data, 0, data.length ) );
+        }
+
+        /**
+         * reportClosed ( )
+         * <p>
+         * tells the manager the connection is gone, once, whether the peer
+         * quit, we quit or the socket failed, like the finally block of
+         * Network's MessageListener. runs on the event loop.
+         * <p>
+         */
+        private void reportClosed ( )
+        {
+            if ( reported ) return;
+            reported = true;
+            manager.connectionClosed ( id );
+        }
+
+        /**
+         * deliver ( )
+         * <p>
+         * hands the payload of a MSG, CHUNK, FILE or GROUP to the manager, which
+         * decrypts from and releases the pooled buffer
+         * <p>
+         *
+         * @param type the header of the packet
+         * @param data the payload
+         */
+        private void deliver ( byte type, ByteBuffer data )
+        {
+            if ( type == Network.CHUNK ) manager.receiveChunk ( id, data );
+            else if ( type == Network.FILE ) manager.receiveFile ( id, data );
+            else if ( type == Network.GROUP ) manager.receiveGroup ( id, data );
+            else manager.receiveMessage ( id, data );
+        }
+
+        /**
+         * isData ( )
+         * <p>
+         * @param type the header of a packet
+         * @return true for MSG, CHUNK, FILE and GROUP
+         */
+        private boolean isData ( byte type )
+        {
+            return type == Network.MSG || type == Network.CHUNK || type == Network.FILE ||
+                   type == Network.GROUP;
+        }
+
+        /**
+         * write ( )
+         * <p>
+         * queues a packet for the event loop to write, which gives it back
+         * to BufferPool once written
+         * <p>
+         *
+         * @param packet the complete packet, from BufferPool
+         * @throws IOException if the session is closed
+         */
+        private void write ( ByteBuffer packet ) throws IOException
+        {
+            int length = packet.remaining ( );
+
+            try {
+                Metrics.SEND_QUEUE.record ( reserve ( ) );
+            } catch ( IOException e ) {
+                BufferPool.release ( packet );
+                throw e;
+            }
+            outbound.add ( packet );
+            stats.sent ( length );
+
+            if ( flushScheduled.compareAndSet ( false, true ) ) loop.execute ( ( ) -> {
+                    flushScheduled.set ( false );
+                    try {
+                        onWrite ( );
+                    } catch ( IOException e ) {
+                        onClose ( );
+                    }
+                } );
+        }
+
+        /**
+         * reserve ( )
+         * <p>
+         * counts one more unwritten packet. This is the backpressure, as in
+         * Network.enqueue ( ): a sender waits here while SEND_QUEUE_SIZE packets
+         * are still unwritten. The event loop itself never waits, nothing
+         * would be written while it did.
+         * <p>
+         *
+         * @return number of packets unwritten before this one
+         * @throws IOException if the session closed or the sender was interrupted
+         */
+        private int reserve ( ) throws IOException
+        {
+            if ( closed ) throw new SocketException ( "Socket closed" );
+            if ( Thread.currentThread ( ) == loop ) return unwritten.getAndIncrement ( );
+
+            synchronized ( space ) {
+                try {
+                    while ( unwritten.get ( ) >= Network.SEND_QUEUE_SIZE && !closed ) space.wait ( 100 );
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread ( ).interrupt ( );
+                    throw new InterruptedIOException ( "Interrupted while sending" );
+                }
+                if ( closed ) throw new SocketException ( "Socket closed" );
+
+                return unwritten.getAndIncrement ( );
+            }
+        } /* reserve */
+
+        /**
+         * onWrite ( )
+         * <p>
+         * writes everything queued with one gathering write, waits for
+         * OP_WRITE if the socket buffer is full
+         * <p>
+         *
+         * @throws IOException on I/O error
+         */
+        void onWrite ( ) throws IOException
+        {
+            ByteBuffer buffer;
+
+            while ( ( buffer = outbound.poll ( ) ) != null ) writing.add ( buffer );
+
+            if ( closed || key == null ) return;
+
+            if ( !writing.isEmpty ( ) ) {
+                gather = writing.toArray ( gather );
+                channel.write ( gather, 0, writing.size ( ) );
+            }
+
+            boolean full = unwritten.get ( ) >= Network.SEND_QUEUE_SIZE;
+
+            while ( !writing.isEmpty ( ) && !writing.peek ( ).hasRemaining ( ) ) {
+                BufferPool.release ( writing.poll ( ) );
+                unwritten.decrementAndGet ( );
+            }
+            if ( full && unwritten.get ( ) < Network.SEND_QUEUE_SIZE ) {
+                synchronized ( space ) {
+                    space.notifyAll ( );
+                }
+            }
+
+            if ( writing.isEmpty ( ) ) {
+                interest ( false );
+
+                if ( closeAfterFlush ) close ( );
+            } else {
+                interest ( true );
+            }
+        } /* onWrite */
+
+        /**
+         * onRead ( )
+         * <p>
+         * reads what is available and decodes as many packets as possible
+         * <p>
+         *
+         * @param buffer the loop's read buffer
+         * @throws IOException on I/O error
+         */
+        void onRead ( ByteBuffer buffer ) throws IOException
+        {
+            buffer.clear ( );
+
+            if ( channel.read ( buffer ) < 0 ) throw new EOFException ( );
+            buffer.flip ( );
+            decode ( buffer );
+        }
+
+        /**
+         * decode ( )
+         * <p>
+         * decoder state machine. KEYSIZE and KEY have their own sizes,
+         * HELLO and packets of old peers are DATA_SIZE long, FRAMED packets
+         * announce their size. Once listening, the payload of a FRAMED MSG,
+         * CHUNK, FILE or GROUP is copied straight into a pooled buffer for the manager.
+         * <p>
+         *
+         * @param in bytes read from the channel
+         * @throws IOException on an invalid packet
+         */
+        private void decode ( ByteBuffer in ) throws IOException
+        {
+            while ( in.hasRemaining ( ) ) {
+                if ( !inPacket ) {
+                    header = in.get ( );
+                    inPacket = true;
+                    prefix.clear ( );
+                    packet = null;
+                    payload = null;
+                }
+
+                if ( packet == null && payload == null ) {
+                    int body;
+
+                    if ( header == Network.KEYSIZE ) {
+                        body = Network.KEYHEADER_SIZE;
+                    } else if ( header == Network.KEY ) {
+                        body = KEY_SIZE;
+                    } else if ( header == Network.HELLO || !hasFeature ( Network.FEATURE_FRAMED ) ) {
+                        body = Network.DATAHEADER_SIZE + Network.DATA_SIZE;
+                    } else {
+                        while ( prefix.hasRemaining ( ) && in.hasRemaining ( ) ) prefix.put ( in.get ( ) );
+
+                        if ( prefix.hasRemaining ( ) ) return;
+                        int data_size = prefix.getInt ( 0 );
+
+                        if ( data_size < 0 || data_size > Network.MAX_FRAME_SIZE )
+                            throw new IOException ( "Invalid frame size " + data_size );
+                        body = Network.DATAHEADER_SIZE + data_size;
+                    }
+
+                    if ( listening && isData ( header ) && prefix.position ( ) == Network.DATAHEADER_SIZE ) {
+                        payload = BufferPool.acquire ( body - Network.DATAHEADER_SIZE );
+                    } else {
+                        packet = new byte [ Network.HEADER_SIZE + body ];
+                        packet [ 0 ] = header;
+                        position = Network.HEADER_SIZE;
+
+                        if ( prefix.position ( ) == Network.DATAHEADER_SIZE ) {
+                            System.arraycopy ( prefix.array ( ), 0, packet, position, Network.DATAHEADER_SIZE );
+                            position += Network.DATAHEADER_SIZE;
+                        }
+                    }
+                }
+
+                if ( payload != null ) {
+                    int n = Math.min ( in.remaining ( ), payload.remaining ( ) );
+                    int limit = in.limit ( );
+
+                    in.limit ( in.position ( ) + n );
+                    payload.put ( in );
+                    in.limit ( limit );
+
+                    if ( !payload.hasRemaining ( ) ) {
+                        inPacket = false;
+                        stats.received ( Network.HEADER_SIZE + Network.DATAHEADER_SIZE + payload.limit ( ) );
+                        payload.flip ( );
+                        deliver ( header, payload );
+                        payload = null;
+                    }
+                    continue;
+                }
+                int n = Math.min ( in.remaining ( ), packet.length - position );
+                in.get ( packet, position, n );
+                position += n;
+
+                if ( position == packet.length ) {
+                    inPacket = false;
+                    stats.received ( packet.length );
+                    received ( packet );
+                }
+            }
+        } /* decode */
+
+        /**
+         * received ( )
+         * <p>
+         * handles the protocol on the loop and passes the packet on
+         * <p>
+         *
+         * @param input the complete packet
+         * @throws IOException on I/O error
+         */
+        private void received ( byte[] input ) throws IOException
+        {
+            if ( input [ 0 ] == Network.KEYSIZE ) {
+                int size = ByteBuffer.wrap ( input ).getInt ( Network.HEADER_SIZE );
+
+                if ( size < 1 || size > Network.MAX_KEY_SIZE )
+                    throw new IOException ( "Invalid key size " + size );
+                KEY_SIZE = size;
+            } else if ( input [ 0 ] == Network.HELLO ) {
+                ByteBuffer data = ByteBuffer.wrap ( input,
+                                                    Network.HEADER_SIZE + Network.DATAHEADER_SIZE,
+                                                    Network.HELLO_SIZE );
+                peerVersion = data.get ( );
+                int peerFeatures = data.getInt ( );
+
+                if ( peerVersion >= 1 ) {
+                    if ( !isServer ) write ( Network.frame ( Network.HELLO,
+                                                             Network.helloData ( ),
+                                                             false ) );
+                    features = Network.SUPPORTED_FEATURES & peerFeatures;
+                }
+
+                // the server settles HELLO here, the client still bypasses it with listen ( )
+                if ( isServer ) {
+                    negotiated.countDown ( );
+                    return;
+                }
+            }
+            negotiated.countDown ( );
+
+            if ( listening ) dispatch ( input );
+            else inbox.add ( input );
+        } /* received */
+
+        /**
+         * onClose ( )
+         * <p>
+         * the other side went away, tell whoever is waiting
+         * <p>
+         */
+        void onClose ( )
+        {
+            boolean wasClosed = closed;
+
+            close ( );
+
+            negotiated.countDown ( );
+
+            if ( wasClosed ) return;
+
+            if ( listening ) dispatch ( EOF );
+            else inbox.add ( EOF );
+        }
+
+        /**
+         * close ( )
+         * <p>
+         * closes the channel, runs on the event loop
+         * <p>
+         */
+        private void close ( )
+        {
+            closed = true;
+
+            if ( key != null ) key.cancel ( );
+            try {
+                channel.close ( );
+            } catch ( IOException e ) {
+                // closing anyway
+            }
+            loop.execute ( this::discard ); // a QUIT read by listen ( ) closes off the loop
+        }
+
+        /**
+         * discard ( )
+         * <p>
+         * gives the buffers of a closed session back to BufferPool and tells the
+         * manager, on the event loop
+         * <p>
+         */
+        private void discard ( )
+        {
+            ByteBuffer buffer;
+
+            if ( listening ) reportClosed ( );
+
+            while ( ( buffer = writing.poll ( ) ) != null ) BufferPool.release ( buffer );
+            while ( ( buffer = outbound.poll ( ) ) != null ) BufferPool.release ( buffer );
+            BufferPool.release ( payload );
+            payload = null;
+        }
+    }
+}
+
+// SelectorNetwork.java END
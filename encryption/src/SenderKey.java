@@ -0,0 +1,163 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+
+/**
+ * The AES-GCM key one member encrypts its group messages with. The key is handed to
+ * every member over their pairwise session once, after that a message is encrypted
+ * once however many members it goes to. A new key with the next epoch replaces it
+ * whenever the members change, so nobody reads messages sent while they were not a member.
+ * Records are header (the AAD, names group and epoch) + sequence number (8 bytes, also
+ * AAD) + ciphertext + tag, the nonce is the epoch (4 bytes) + sequence number
+ * @author Samuel Lewis (srl8336)
+ */
+public class SenderKey {
+    public static final int KEY_SIZE = 16;
+    private static final int REPLAY_WINDOW = 64;
+
+    private final SecretKey key;
+    private final int epoch;
+    //one cipher for our own key, one for a member's, each only used while holding its lock
+    private final Cipher cipher;
+    private long sendSeq;          //guarded by cipher
+    private long highestSeq = -1;  //guarded by cipher
+    private long replayWindow;     //bit i set means highestSeq - i was received
+
+    /**
+     * Wraps a key received from a member
+     * @param keyBytes the raw AES key, KEY_SIZE bytes
+     * @param epoch the epoch the member sent with the key
+     * @throws Exception When the key is not KEY_SIZE bytes
+     */
+    public SenderKey(byte[] keyBytes, int epoch) throws Exception {
+        if (keyBytes.length != KEY_SIZE) {
+            throw new Exception("Sender key must be " + KEY_SIZE + " bytes");
+        }
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        this.epoch = epoch;
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * generate creates a fresh key of our own
+     * @param epoch the epoch of the key, one more than the key it replaces
+     * @return the new key
+     * @throws Exception
+     */
+    public static SenderKey generate(int epoch) throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(KEY_SIZE * 8);
+        return new SenderKey(keyGen.generateKey().getEncoded(), epoch);
+    }
+
+    /**
+     * getKey
+     * @return the raw AES key, to send to members over their pairwise session
+     */
+    public byte[] getKey() {
+        return key.getEncoded();
+    }
+
+    /**
+     * getEpoch
+     * @return the epoch of this key
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    private GCMParameterSpec recordSpec(long seq) {
+        byte[] nonce = ByteBuffer.allocate(12).putInt(epoch).putLong(seq).array();
+        return new GCMParameterSpec(Encryption.GCM_TAG_SIZE * 8, nonce);
+    }
+
+    /**
+     * sealedSize returns how long the record of a plaintext will be
+     * @param headerLength length of the record header
+     * @param length length of the plaintext
+     * @return length of the record
+     */
+    public static int sealedSize(int headerLength, int length) {
+        return headerLength + Encryption.RECORD_SEQ_SIZE + length + Encryption.GCM_TAG_SIZE;
+    }
+
+    /**
+     * Encrypts a message into one record that every member can decrypt
+     * @param header bytes put in front of the record in the clear, authenticated
+     * @param plainText the message
+     * @return the record
+     * @throws Exception
+     */
+    public byte[] seal(byte[] header, byte[] plainText) throws Exception {
+        long start = Metrics.sample();
+        try {
+            byte[] out = new byte[sealedSize(header.length, plainText.length)];
+            System.arraycopy(header, 0, out, 0, header.length);
+            synchronized (cipher) {
+                long seq = sendSeq++;
+                ByteBuffer.wrap(out, header.length, Encryption.RECORD_SEQ_SIZE).putLong(seq);
+                cipher.init(Cipher.ENCRYPT_MODE, key, recordSpec(seq));
+                cipher.updateAAD(out, 0, header.length + Encryption.RECORD_SEQ_SIZE);
+                cipher.doFinal(plainText, 0, plainText.length, out, header.length + Encryption.RECORD_SEQ_SIZE);
+            }
+            return out;
+        } finally {
+            Metrics.ENCRYPT.recordSince(start);
+        }
+    }
+
+    /**
+     * Decrypts a record of a member, advancing both buffers. Records may arrive
+     * a little out of order, but never twice
+     * @param in heap buffer holding the record from the start of its header
+     * @param headerLength length of the record header
+     * @param out buffer with room for in.remaining() bytes
+     * @return number of bytes written to out
+     * @throws Exception When the record is too short, replayed or was tampered with
+     */
+    public int open(ByteBuffer in, int headerLength, ByteBuffer out) throws Exception {
+        long start = Metrics.sample();
+        try {
+            int aadLength = headerLength + Encryption.RECORD_SEQ_SIZE;
+            if (in.remaining() < aadLength + Encryption.GCM_TAG_SIZE) {
+                throw new AEADBadTagException("Record too short");
+            }
+            long seq = in.getLong(in.position() + headerLength);
+            synchronized (cipher) {
+                if (!isFresh(seq)) {
+                    throw new AEADBadTagException("Replayed record " + seq);
+                }
+                cipher.init(Cipher.DECRYPT_MODE, key, recordSpec(seq));
+                cipher.updateAAD(in.array(), in.arrayOffset() + in.position(), aadLength);
+                in.position(in.position() + aadLength);
+                int plainLength = cipher.doFinal(in, out);
+                markSeen(seq);
+                return plainLength;
+            }
+        } finally {
+            Metrics.DECRYPT.recordSince(start);
+        }
+    }
+
+    private boolean isFresh(long seq) {
+        if (seq > highestSeq) {
+            return true;
+        }
+        long age = highestSeq - seq;
+        return age < REPLAY_WINDOW && (replayWindow >>> age & 1) == 0;
+    }
+
+    private void markSeen(long seq) {
+        if (seq > highestSeq) {
+            long shift = seq - highestSeq;
+            replayWindow = shift >= REPLAY_WINDOW ? 1 : (replayWindow << shift) | 1;
+            highestSeq = seq;
+        } else {
+            replayWindow |= 1L << (highestSeq - seq);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+    Terminal.java
+
+    @author Jason Tu jwt8264@rit.edu
+
+    Text front end of the application, for machines without a display.
+    Every line read from standard input is handed to the Manager, and
+    whatever the Manager reports is written to standard output with the
+    same markers the window uses.
+*/
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+public class Terminal implements ManagerListener
+{
+    private final Manager manager;
+    private final PrintStream out;
+
+    /**
+        Constructor
+        @param m - the manager to pass input to
+    */
+    public Terminal(Manager m)
+    {
+        manager = m;
+        out = System.out;
+    }
+
+    /**
+        Read input until standard input is closed, then disconnect
+        from everyone and exit, like /exit. Blocks the calling thread.
+    */
+    public void run() throws IOException
+    {
+        out.println("<Welcome to the Little Secure Bits Messaging Application>");
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null)
+        {
+            manager.sendInput(line);
+        }
+        manager.shutdown();
+    }
+
+    @Override
+    public void print(String output)
+    {
+        out.print(output);
+        out.flush();
+    }
+
+    @Override
+    public void printAlert(String alert)
+    {
+        print("!!! " + alert + "\n");
+    }
+
+    @Override
+    public void printIncoming(String message)
+    {
+        print("< " + message + "\n");
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Threads.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.lang.reflect.Method;
+
+/**
+ * starts the threads that accept, handshake and read connections.
+ * With -Dlsb.threads=virtual they are virtual threads ( Java 21 and later ),
+ * so thousands of idle connections do not hold a platform thread each while
+ * the blocking stream code stays as it is. Older runtimes fall back to
+ * platform threads.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public final class Threads
+{
+    public static final boolean VIRTUAL_REQUESTED = "virtual".equals ( System.getProperty ( "lsb.threads" ) );
+
+    /* Thread.ofVirtual ( ) and the Thread.Builder methods, null before Java 21 */
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static
+    {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+
+        if ( VIRTUAL_REQUESTED ) {
+            try {
+                Class<?> builder = Class.forName ( "java.lang.Thread$Builder" );
+                ofVirtual = Thread.class.getMethod ( "ofVirtual" );
+                name = builder.getMethod ( "name", String.class );
+                unstarted = builder.getMethod ( "unstarted", Runnable.class );
+            } catch ( ReflectiveOperationException e ) {
+                System.err.println ( "lsb.threads=virtual needs Java 21 or later, using platform threads" );
+                ofVirtual = null;
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private Threads ( )
+    {
+    }
+
+    /**
+     * isVirtual ( )
+     * <p>
+     * checks whether connection threads are virtual threads
+     * <p>
+     *
+     * @return true if virtual threads were asked for and are available
+     */
+    public static boolean isVirtual ( )
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * create ( )
+     * <p>
+     * creates, but does not start, a thread for a connection.
+     * Virtual threads are always daemon threads.
+     * <p>
+     *
+     * @param name the name of the thread
+     * @param daemon whether a platform thread should be a daemon
+     * @param task what the thread runs
+     * @return the unstarted thread
+     */
+    public static Thread create ( String   name,
+                                  boolean  daemon,
+                                  Runnable task )
+    {
+        if ( OF_VIRTUAL != null ) {
+            try {
+                Object builder = NAME.invoke ( OF_VIRTUAL.invoke ( null ), name );
+
+                return ( Thread ) UNSTARTED.invoke ( builder, task );
+            } catch ( ReflectiveOperationException e ) {
+                throw new IllegalStateException ( e );
+            }
+        }
+
+        Thread t = new Thread ( task, name );
+
+        t.setDaemon ( daemon );
+
+        return t;
+    } /* create */
+
+    /**
+     * start ( )
+     * <p>
+     * creates and starts a thread for a connection
+     * <p>
+     *
+     * @param name the name of the thread
+     * @param daemon whether a platform thread should be a daemon
+     * @param task what the thread runs
+     * @return the started thread
+     */
+    public static Thread start ( String   name,
+                                 boolean  daemon,
+                                 Runnable task )
+    {
+        Thread t = create ( name, daemon, task );
+
+        t.start ( );
+
+        return t;
+    } /* start */
+}
+
+// Threads.java END
@@ -0,0 +1,129 @@
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, expiring store of session resumption tickets.
+ * The server side keys tickets by the ticket itself, the client side by the
+ * address it connected to. Tickets are single use: take() removes them, and a
+ * resumed session stores the new ticket it derived.
+ * Size and lifetime are set with -Dlsb.resume.capacity and -Dlsb.resume.lifetime (seconds)
+ * @author Samuel Lewis (srl8336)
+ */
+public class TicketCache {
+    public static final int CAPACITY = Integer.getInteger("lsb.resume.capacity", 1024);
+    public static final long LIFETIME = Long.getLong("lsb.resume.lifetime", 3600) * 1000;
+
+    private static final TicketCache server = new TicketCache(CAPACITY, LIFETIME);
+    private static final TicketCache client = new TicketCache(CAPACITY, LIFETIME);
+
+    private final int capacity;
+    private final long lifetime;
+    private final LinkedHashMap<String, Ticket> tickets;
+
+    /**
+     * A ticket and the resumption secret that goes with it
+     */
+    public static class Ticket {
+        private final byte[] ticket;
+        private final byte[] secret;
+        private final long expires;
+
+        public Ticket(byte[] ticket, byte[] secret, long expires) {
+            this.ticket = ticket;
+            this.secret = secret;
+            this.expires = expires;
+        }
+
+        public byte[] getTicket() {
+            return ticket;
+        }
+
+        public byte[] getSecret() {
+            return secret;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param capacity most tickets kept, the least recently stored are dropped first
+     * @param lifetime milliseconds a ticket stays valid
+     */
+    public TicketCache(int capacity, long lifetime) {
+        this.capacity = capacity;
+        this.lifetime = lifetime;
+        tickets = new LinkedHashMap<String, Ticket>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+                return size() > TicketCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return tickets this process issued as a server, keyed by ticket
+     */
+    public static TicketCache server() {
+        return server;
+    }
+
+    /**
+     * @return tickets this process received as a client, keyed by address
+     */
+    public static TicketCache client() {
+        return client;
+    }
+
+    /**
+     * Stores the ticket and secret of an established session
+     * @param key the ticket (server) or address (client)
+     * @param ticket the opaque ticket
+     * @param secret the resumption secret
+     */
+    public synchronized void put(String key, byte[] ticket, byte[] secret) {
+        if (capacity <= 0) {
+            return;
+        }
+        tickets.remove(key);
+        tickets.put(key, new Ticket(ticket, secret, System.currentTimeMillis() + lifetime));
+    }
+
+    /**
+     * Removes and returns a ticket, if one is stored and has not expired
+     * @param key the ticket (server) or address (client)
+     * @return the ticket, or null if the full handshake is needed
+     */
+    public synchronized Ticket take(String key) {
+        expire();
+        return tickets.remove(key);
+    }
+
+    /**
+     * @return number of tickets stored
+     */
+    public synchronized int size() {
+        expire();
+        return tickets.size();
+    }
+
+    /**
+     * Drops expired tickets. They are stored oldest first, so this stops at the first valid one
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Ticket> it = tickets.values().iterator();
+        while (it.hasNext() && it.next().expires <= now) {
+            it.remove();
+        }
+    }
+
+    /**
+     * key turns a ticket into a map key
+     * @param ticket the ticket bytes
+     * @return the ticket as a string
+     */
+    public static String key(byte[] ticket) {
+        return Base64.getEncoder().encodeToString(ticket);
+    }
+}
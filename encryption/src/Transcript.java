@@ -0,0 +1,200 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.swing.AbstractListModel;
+
+/**
+ * List model holding the transcript shown in the GUI, one row per line.
+ * The newest rows are kept in a ring buffer of -Dlsb.gui.scrollback rows. Once it
+ * is full the oldest rows are written out a page at a time to a temporary spill
+ * file, and are read back in when the user scrolls up to them, so memory stays
+ * the same however long a session runs. Spilled pages are encrypted with a key
+ * that only lives in memory, so the file is useless once the application exits.
+ * Only used from the event dispatch thread.
+ * @author Samuel Lewis (srl8336)
+ */
+public class Transcript extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    public static final int SCROLLBACK = Math.max(1, Integer.getInteger("lsb.gui.scrollback", 5000));
+    public static final int COLUMNS = Math.max(10, Integer.getInteger("lsb.gui.columns", 80));
+
+    private static final int PAGE_ROWS = 256;  //rows written to or read from the spill file at once
+    private static final int CACHED_PAGES = 8; //spilled pages kept in memory while scrolling
+    private static final String MISSING = "<scrollback unavailable>";
+
+    private final String[] ring;   //rows not spilled yet, oldest at head
+    private int head;
+    private int count;
+    private int spilled;           //rows 0 .. spilled-1 are in the spill file
+    private long[] pageOffsets;    //where each spilled page starts in the file
+    private int pages;
+    private final LinkedHashMap<Integer, String[]> cache;
+
+    private RandomAccessFile file;
+    private SecretKey key;
+    private Cipher cipher;
+
+    public Transcript() {
+        ring = new String[SCROLLBACK + PAGE_ROWS];
+        pageOffsets = new long[64];
+        cache = new LinkedHashMap<Integer, String[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+                return size() > CACHED_PAGES;
+            }
+        };
+    }
+
+    @Override
+    public int getSize() {
+        return spilled + count;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        if (index >= spilled) {
+            return ring[(head + index - spilled) % ring.length];
+        }
+        String[] page = cache.get(index / PAGE_ROWS);
+        if (page == null) {
+            page = readPage(index / PAGE_ROWS);
+            cache.put(index / PAGE_ROWS, page);
+        }
+        return page[index % PAGE_ROWS];
+    }
+
+    /**
+     * Adds text to the end of the transcript, split into rows at newlines and
+     * wrapped at COLUMNS characters. Listeners are told about all of it at once.
+     * @param text Text to add, normally ending with a newline
+     */
+    public void append(String text) {
+        int first = getSize();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            wrap(text.substring(start, end));
+            start = end + 1;
+        }
+        if (getSize() > first) {
+            fireIntervalAdded(this, first, getSize() - 1);
+        }
+    }
+
+    private void wrap(String line) {
+        while (line.length() > COLUMNS) {
+            int cut = line.lastIndexOf(' ', COLUMNS);
+            if (cut <= 0) {
+                cut = COLUMNS;
+            }
+            add(line.substring(0, cut));
+            line = line.substring(cut).trim();
+        }
+        add(line);
+    }
+
+    private void add(String row) {
+        if (count == ring.length) {
+            spill();
+        }
+        ring[(head + count) % ring.length] = row;
+        count++;
+    }
+
+    /**
+     * Moves the oldest PAGE_ROWS rows of the ring into the spill file.
+     */
+    private void spill() {
+        String[] page = new String[PAGE_ROWS];
+        for (int i = 0; i < PAGE_ROWS; i++) {
+            page[i] = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        }
+        count -= PAGE_ROWS;
+
+        if (pages == pageOffsets.length) {
+            pageOffsets = Arrays.copyOf(pageOffsets, pages * 2);
+        }
+        try {
+            pageOffsets[pages] = writePage(pages, page);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            pageOffsets[pages] = -1;
+        }
+        pages++;
+        spilled += PAGE_ROWS;
+    }
+
+    private long writePage(int number, String[] page) throws IOException, GeneralSecurityException {
+        if (file == null) {
+            File f = File.createTempFile("lsb-transcript", ".bin");
+            f.deleteOnExit();
+            file = new RandomAccessFile(f, "rw");
+            f.delete(); //already open, so nothing else can find it
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128, new SecureRandom());
+            key = generator.generateKey();
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String row : page) {
+            out.writeUTF(row);
+        }
+        cipher.init(Cipher.ENCRYPT_MODE, key, nonce(number));
+        byte[] sealed = cipher.doFinal(bytes.toByteArray());
+
+        long offset = file.length();
+        file.seek(offset);
+        file.writeInt(sealed.length);
+        file.write(sealed);
+        return offset;
+    }
+
+    private String[] readPage(int number) {
+        String[] page = new String[PAGE_ROWS];
+        try {
+            if (pageOffsets[number] < 0) {
+                throw new IOException("page " + number + " was never written");
+            }
+            file.seek(pageOffsets[number]);
+            byte[] sealed = new byte[file.readInt()];
+            file.readFully(sealed);
+            cipher.init(Cipher.DECRYPT_MODE, key, nonce(number));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(cipher.doFinal(sealed)));
+            for (int i = 0; i < PAGE_ROWS; i++) {
+                page[i] = in.readUTF();
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            Arrays.fill(page, MISSING);
+        }
+        return page;
+    }
+
+    /**
+     * Every page is written once, so its number is a unique nonce under the key
+     */
+    private static GCMParameterSpec nonce(int number) {
+        return new GCMParameterSpec(128, ByteBuffer.allocate(12).putInt(8, number).array());
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Transport.java
+ *
+ * Version:     $Id$
+ *
+ * Revisions:   $Log$
+ *
+ */
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+/**
+ * the send/listen/quit contract the Manager relies on, once a connection is made.
+ * Implemented by the blocking Network and by the sessions of SelectorNetwork.
+ *
+ * @author      Jonathan Lo <jonathan.c.lo.us@gmail.com>
+ * @version
+ * @since
+ */
+public interface Transport
+{
+    /**
+     * sets how long the blocking receive calls wait, 0 waits forever
+     *
+     * @param t timeout in milliseconds
+     * @throws SocketException on socket error
+     */
+    void setChannelTimeout ( int t ) throws SocketException;
+
+    /**
+     * signals a QUIT and disconnects
+     *
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    boolean quit ( ) throws IOException;
+
+    /**
+     * sends a MSG message with the given message
+     *
+     * @param msg byte array of message to send
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    boolean send ( byte[] msg ) throws IOException;
+
+    /**
+     * sends a CHUNK message, one encrypted piece of a long message
+     *
+     * @param chunk byte array of the encrypted chunk
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    boolean sendChunk ( byte[] chunk ) throws IOException;
+
+    /**
+     * sends a FILE message, one encrypted record of a file transfer
+     *
+     * @param record byte array of the encrypted record
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    boolean sendFile ( byte[] record ) throws IOException;
+
+    /**
+     * sends a GROUP message, a group key or a group message. The same record
+     * is handed to every member's connection, so it must not be changed
+     *
+     * @param record byte array of the record
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    boolean sendGroup ( byte[] record ) throws IOException;
+
+    /**
+     * the number of packets queued but not yet written, lets a long message
+     * stream without crowding out the messages sent while it goes out
+     *
+     * @return packets waiting to be written
+     */
+    int backlog ( );
+
+    /**
+     * sends the size of a key, must be sent before the key
+     *
+     * @param key byte array of the key
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    boolean sendKeySize ( byte[] key ) throws IOException;
+
+    /**
+     * receives the size of the next key
+     *
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    boolean receiveKeySize ( ) throws IOException;
+
+    /**
+     * sends a key
+     *
+     * @param key byte array of the key
+     * @return true on completion
+     * @throws IOException on I/O error
+     */
+    boolean sendKey ( byte[] key ) throws IOException;
+
+    /**
+     * receives a key
+     *
+     * @return byte array of the key
+     * @throws IOException on I/O error
+     */
+    byte[] receiveKey ( ) throws IOException;
+
+    /**
+     * receives one packet and returns its data ( if available ).
+     * THIS IS A BLOCKING FUNCTION.
+     *
+     * @return byte array of data
+     * @throws IOException on I/O error
+     */
+    byte[] listen ( ) throws IOException;
+
+    /**
+     * starts piping incoming messages to the manager
+     */
+    void startListening ( );
+
+    /**
+     * checks whether a feature was agreed on by both sides during HELLO
+     *
+     * @param feature one of the Network.FEATURE_ constants
+     * @return true if both peers support the feature
+     */
+    boolean hasFeature ( int feature );
+
+    /**
+     * the protocol version both sides speak, picks the key exchange
+     *
+     * @return the lower of our and the peer's Network.PROTOCOL_VERSION, 0 for an old peer
+     */
+    int getVersion ( );
+
+    /**
+     * the address of the other end of the connection
+     *
+     * @return the peer's address, null if not connected
+     */
+    InetAddress getRemoteAddress ( );
+
+    /**
+     * the traffic counted on this connection
+     *
+     * @return bytes and packets in and out since the connection was made
+     */
+    Metrics.Session getStats ( );
+}
+
+// Transport.java END